@@ -0,0 +1,100 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload;
+
+import de.exlll.configlib.YamlConfigurationStore;
+import de.exlll.configlib.YamlConfigurations;
+import net.william278.schematicupload.config.ConfigProvider;
+import net.william278.schematicupload.config.Locales;
+import net.william278.schematicupload.config.Settings;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Stand-ins for the plugin and its configuration, for running plugin code outside a server
+public final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    // Create default settings, as they would be generated on first start
+    @NotNull
+    public static Settings createSettings() {
+        return createSettings("");
+    }
+
+    // Create settings from a YAML config, with anything it leaves out set to the default
+    @NotNull
+    public static Settings createSettings(@NotNull String yaml) {
+        try {
+            final Path file = Files.createTempFile("schematicupload-config", ".yml");
+            Files.writeString(file, yaml);
+            final Settings settings = YamlConfigurations.update(
+                    file, Settings.class, ConfigProvider.YAML_CONFIGURATION_PROPERTIES.build()
+            );
+            Files.deleteIfExists(file);
+            return settings;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Load the bundled English locales
+    @NotNull
+    public static Locales loadLocales() {
+        final YamlConfigurationStore<Locales> store = new YamlConfigurationStore<>(
+                Locales.class, ConfigProvider.YAML_CONFIGURATION_PROPERTIES.build()
+        );
+        try (InputStream input = Objects.requireNonNull(
+                BenchmarkFixtures.class.getClassLoader().getResourceAsStream("locales/en-gb.yml"))) {
+            return store.read(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Create a mock plugin, returning default settings and the bundled locales
+    @NotNull
+    public static SchematicUpload createPlugin() {
+        return createPlugin(createSettings());
+    }
+
+    // Create a mock plugin, returning the given settings and the bundled locales
+    @NotNull
+    public static SchematicUpload createPlugin(@NotNull Settings settings) {
+        final SchematicUpload plugin = mock(SchematicUpload.class);
+        final Locales locales = loadLocales();
+        when(plugin.getSettings()).thenReturn(settings);
+        when(plugin.getLocales()).thenReturn(locales);
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("SchematicUpload"));
+        when(plugin.getPlugin()).thenReturn(plugin);
+        return plugin;
+    }
+
+}
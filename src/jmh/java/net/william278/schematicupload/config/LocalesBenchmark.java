@@ -0,0 +1,63 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.config;
+
+import de.themoep.minedown.adventure.MineDown;
+import net.kyori.adventure.text.Component;
+import net.william278.schematicupload.BenchmarkFixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks formatting locales, with and without placeholders
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalesBenchmark {
+
+    private Locales locales;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        locales = BenchmarkFixtures.loadLocales();
+        locales.compile();
+    }
+
+    @Benchmark
+    public Optional<MineDown> getLocaleWithPlaceholders() {
+        return locales.getLocale("schematic_download_prompt",
+                "http://localhost:2780/api/list/link/abc.def", "20");
+    }
+
+    @Benchmark
+    public Optional<Component> getComponentWithPlaceholders() {
+        return locales.getComponent("schematic_upload_complete", "//schem load abcdefgh-[castle].schem fast.2");
+    }
+
+    @Benchmark
+    public Optional<Component> getComponentWithoutPlaceholders() {
+        return locales.getComponent("error_download_failed");
+    }
+
+}
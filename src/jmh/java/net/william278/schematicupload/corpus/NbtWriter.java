@@ -0,0 +1,182 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.corpus;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal, streaming writer of gzipped NBT, as used by every schematic format
+ * <p>
+ * Compounds and lists are opened and closed in order; the writer only tracks enough state to omit tag names
+ * inside lists, and does not check that lists are given the number or type of elements they declare.
+ */
+public final class NbtWriter implements Closeable {
+
+    static final byte TAG_END = 0;
+    static final byte TAG_BYTE = 1;
+    static final byte TAG_SHORT = 2;
+    static final byte TAG_INT = 3;
+    static final byte TAG_LONG = 4;
+    static final byte TAG_BYTE_ARRAY = 7;
+    static final byte TAG_STRING = 8;
+    static final byte TAG_LIST = 9;
+    static final byte TAG_COMPOUND = 10;
+    static final byte TAG_INT_ARRAY = 11;
+    static final byte TAG_LONG_ARRAY = 12;
+
+    private final DataOutputStream output;
+    // Whether each open compound or list is a list, in which case elements are written without a header
+    private final Deque<Boolean> inList = new ArrayDeque<>();
+
+    public NbtWriter(@NotNull OutputStream output) throws IOException {
+        this.output = new DataOutputStream(new GZIPOutputStream(output));
+    }
+
+    // Write a tag's type and name, unless it is an element of a list
+    private void header(byte type, @NotNull String name) throws IOException {
+        if (Boolean.TRUE.equals(inList.peek())) {
+            return;
+        }
+        output.writeByte(type);
+        output.writeUTF(name);
+    }
+
+    @NotNull
+    public NbtWriter beginCompound(@NotNull String name) throws IOException {
+        header(TAG_COMPOUND, name);
+        inList.push(false);
+        return this;
+    }
+
+    // Begin a compound element of the current list
+    @NotNull
+    public NbtWriter beginCompound() throws IOException {
+        return beginCompound("");
+    }
+
+    @NotNull
+    public NbtWriter endCompound() throws IOException {
+        inList.pop();
+        output.writeByte(TAG_END);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter beginList(@NotNull String name, byte elementType, int size) throws IOException {
+        header(TAG_LIST, name);
+        output.writeByte(size == 0 ? TAG_END : elementType);
+        output.writeInt(size);
+        inList.push(true);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter endList() {
+        inList.pop();
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter emptyList(@NotNull String name) throws IOException {
+        return beginList(name, TAG_END, 0).endList();
+    }
+
+    @NotNull
+    public NbtWriter writeByte(@NotNull String name, int value) throws IOException {
+        header(TAG_BYTE, name);
+        output.writeByte(value);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeShort(@NotNull String name, int value) throws IOException {
+        header(TAG_SHORT, name);
+        output.writeShort(value);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeInt(@NotNull String name, int value) throws IOException {
+        header(TAG_INT, name);
+        output.writeInt(value);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeLong(@NotNull String name, long value) throws IOException {
+        header(TAG_LONG, name);
+        output.writeLong(value);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeString(@NotNull String name, @NotNull String value) throws IOException {
+        header(TAG_STRING, name);
+        output.writeUTF(value);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeByteArray(@NotNull String name, byte[] value, int length) throws IOException {
+        header(TAG_BYTE_ARRAY, name);
+        output.writeInt(length);
+        output.write(value, 0, length);
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeByteArray(@NotNull String name, byte[] value) throws IOException {
+        return writeByteArray(name, value, value.length);
+    }
+
+    @NotNull
+    public NbtWriter writeIntArray(@NotNull String name, int... value) throws IOException {
+        header(TAG_INT_ARRAY, name);
+        output.writeInt(value.length);
+        for (int element : value) {
+            output.writeInt(element);
+        }
+        return this;
+    }
+
+    @NotNull
+    public NbtWriter writeLongArray(@NotNull String name, long[] value) throws IOException {
+        header(TAG_LONG_ARRAY, name);
+        output.writeInt(value.length);
+        for (long element : value) {
+            output.writeLong(element);
+        }
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+
+}
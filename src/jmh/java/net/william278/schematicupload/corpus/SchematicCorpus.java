@@ -0,0 +1,462 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.corpus;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic schematics, so uploads and conversions can be benchmarked without real player builds
+ * <p>
+ * Output is fully determined by the {@link Spec}, including its seed, so the same corpus can be regenerated on any
+ * machine. Blocks are drawn from a palette of real block states; entropy controls how often the next block differs
+ * from the last, from long runs of one block (0) to noise (1), which largely decides how well a file compresses.
+ */
+public final class SchematicCorpus {
+
+    // Data version written to modern formats (Minecraft 1.21)
+    private static final int DATA_VERSION = 3953;
+    private static final int LITEMATIC_VERSION = 6;
+    // Fixed timestamp, so litematic metadata does not vary between runs
+    private static final long TIMESTAMP = 1_700_000_000_000L;
+    private static final int MAX_DIMENSION = 1024;
+
+    private static final String[] COLORS = {"white", "orange", "magenta", "light_blue", "yellow", "lime", "pink",
+            "gray", "light_gray", "cyan", "purple", "blue", "brown", "green", "red", "black"};
+    private static final String[] COLORED_BLOCKS = {"wool", "concrete", "terracotta", "stained_glass",
+            "concrete_powder", "glazed_terracotta", "carpet", "stained_glass_pane"};
+    private static final String[] PLAIN_BLOCKS = {"air", "stone", "granite", "diorite", "andesite", "dirt",
+            "grass_block", "cobblestone", "oak_planks", "spruce_planks", "birch_planks", "sand", "gravel", "oak_log",
+            "glass", "bricks", "bookshelf", "obsidian", "deepslate", "tuff"};
+    private static final List<String> BLOCK_STATES = createBlockStates();
+    // Legacy block id and data value pairs; stone, dirt, cobblestone, planks, sand, gravel, logs, glass, bricks,
+    // bookshelves, obsidian, then the colored wool, stained glass, stained clay, carpet, concrete and concrete powder
+    private static final List<int[]> LEGACY_BLOCKS = createLegacyBlocks();
+
+    /**
+     * The largest palette that can be generated for a format
+     */
+    public static int getMaxPaletteSize(@NotNull Format format) {
+        return format == Format.LEGACY ? LEGACY_BLOCKS.size() : BLOCK_STATES.size();
+    }
+
+    private SchematicCorpus() {
+    }
+
+    /**
+     * Generate a schematic
+     *
+     * @param spec   The shape and content of the schematic
+     * @param output The stream to write the gzipped schematic to; not closed by this method
+     * @throws IOException if the schematic could not be written
+     */
+    public static void generate(@NotNull Spec spec, @NotNull OutputStream output) throws IOException {
+        final OutputStream unclosed = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+
+            @Override
+            public void write(byte @NotNull [] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+            }
+        };
+        try (NbtWriter writer = new NbtWriter(unclosed)) {
+            final int[] blocks = generateBlocks(spec);
+            switch (spec.format()) {
+                case SPONGE_V2 -> writeSpongeV2(writer, spec, blocks);
+                case SPONGE_V3 -> writeSpongeV3(writer, spec, blocks);
+                case LEGACY -> writeLegacy(writer, spec, blocks);
+                case LITEMATIC -> writeLitematic(writer, spec, blocks);
+            }
+        }
+    }
+
+    /**
+     * Generate a schematic into memory
+     *
+     * @param spec The shape and content of the schematic
+     * @return The gzipped schematic
+     */
+    public static byte[] generate(@NotNull Spec spec) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            generate(spec, output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * A standard corpus of every format, in small, medium and large sizes with rising palette size and entropy
+     *
+     * @param seed The seed to derive each schematic's seed from
+     * @return The specs of the corpus
+     */
+    @NotNull
+    public static List<Spec> standard(long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final List<Spec> specs = new ArrayList<>();
+        for (Format format : Format.values()) {
+            final int regions = format == Format.LITEMATIC ? 3 : 1;
+            specs.add(new Spec(format, 16, 16, 16, 8, 0.1, 1, random.nextLong()));
+            specs.add(new Spec(format, 48, 32, 48, 32, 0.3, regions, random.nextLong()));
+            specs.add(new Spec(format, 96, 64, 96, Math.min(96, getMaxPaletteSize(format)), 0.6, regions,
+                    random.nextLong()));
+        }
+        return specs;
+    }
+
+    /**
+     * Write a corpus to a directory
+     *
+     * @param specs     The specs of the schematics to write
+     * @param directory The directory to write to, created if needed
+     * @return The paths of the written schematics
+     * @throws IOException if a schematic could not be written
+     */
+    @NotNull
+    public static List<Path> write(@NotNull List<Spec> specs, @NotNull Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final List<Path> paths = new ArrayList<>();
+        for (Spec spec : specs) {
+            final Path path = directory.resolve(spec.getFileName());
+            try (OutputStream output = Files.newOutputStream(path)) {
+                generate(spec, output);
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    // Write the standard corpus; usage: <directory> [seed]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SchematicCorpus <directory> [seed]");
+            System.exit(1);
+        }
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 278L;
+        for (Path path : write(standard(seed), Path.of(args[0]))) {
+            System.out.printf("%s (%d bytes)%n", path, Files.size(path));
+        }
+    }
+
+    // Fill the volume with palette indices, in x, then z, then y order; index 0 is always air
+    private static int[] generateBlocks(@NotNull Spec spec) {
+        final SplittableRandom random = new SplittableRandom(spec.seed());
+        final int[] blocks = new int[spec.getVolume()];
+        int current = random.nextInt(spec.paletteSize());
+        for (int i = 0; i < blocks.length; i++) {
+            if (random.nextDouble() < spec.entropy()) {
+                current = random.nextInt(spec.paletteSize());
+            }
+            blocks[i] = current;
+        }
+        return blocks;
+    }
+
+    private static void writeSpongeV2(@NotNull NbtWriter writer, @NotNull Spec spec, int[] blocks) throws IOException {
+        writer.beginCompound("Schematic")
+                .writeInt("Version", 2)
+                .writeInt("DataVersion", DATA_VERSION);
+        writeSpongeHeader(writer, spec);
+        writer.writeInt("PaletteMax", spec.paletteSize());
+        writeSpongePalette(writer, spec);
+        writeVarInts(writer, "BlockData", blocks);
+        writer.emptyList("BlockEntities")
+                .endCompound();
+    }
+
+    private static void writeSpongeV3(@NotNull NbtWriter writer, @NotNull Spec spec, int[] blocks) throws IOException {
+        writer.beginCompound("")
+                .beginCompound("Schematic")
+                .writeInt("Version", 3)
+                .writeInt("DataVersion", DATA_VERSION);
+        writeSpongeHeader(writer, spec);
+        writer.beginCompound("Blocks");
+        writeSpongePalette(writer, spec);
+        writeVarInts(writer, "Data", blocks);
+        writer.emptyList("BlockEntities")
+                .endCompound()
+                .endCompound()
+                .endCompound();
+    }
+
+    private static void writeSpongeHeader(@NotNull NbtWriter writer, @NotNull Spec spec) throws IOException {
+        writer.beginCompound("Metadata")
+                .writeString("Name", spec.getName())
+                .writeInt("WEOffsetX", 0)
+                .writeInt("WEOffsetY", 0)
+                .writeInt("WEOffsetZ", 0)
+                .endCompound()
+                .writeShort("Width", spec.width())
+                .writeShort("Height", spec.height())
+                .writeShort("Length", spec.length())
+                .writeIntArray("Offset", 0, 0, 0);
+    }
+
+    private static void writeSpongePalette(@NotNull NbtWriter writer, @NotNull Spec spec) throws IOException {
+        writer.beginCompound("Palette");
+        for (int i = 0; i < spec.paletteSize(); i++) {
+            writer.writeInt(BLOCK_STATES.get(i), i);
+        }
+        writer.endCompound();
+    }
+
+    // Write palette indices as a byte array of variable-length integers, as in Sponge schematics
+    private static void writeVarInts(@NotNull NbtWriter writer, @NotNull String name, int[] values) throws IOException {
+        final byte[] bytes = new byte[values.length * 5];
+        int length = 0;
+        for (int value : values) {
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+        writer.writeByteArray(name, bytes, length);
+    }
+
+    private static void writeLegacy(@NotNull NbtWriter writer, @NotNull Spec spec, int[] blocks) throws IOException {
+        final byte[] ids = new byte[blocks.length];
+        final byte[] data = new byte[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            final int[] block = LEGACY_BLOCKS.get(blocks[i]);
+            ids[i] = (byte) block[0];
+            data[i] = (byte) block[1];
+        }
+        writer.beginCompound("Schematic")
+                .writeShort("Width", spec.width())
+                .writeShort("Height", spec.height())
+                .writeShort("Length", spec.length())
+                .writeString("Materials", "Alpha")
+                .writeByteArray("Blocks", ids)
+                .writeByteArray("Data", data)
+                .emptyList("Entities")
+                .emptyList("TileEntities")
+                .endCompound();
+    }
+
+    // Write a litematic, splitting the volume along the x axis into the spec's number of regions
+    private static void writeLitematic(@NotNull NbtWriter writer, @NotNull Spec spec, int[] blocks) throws IOException {
+        writer.beginCompound("")
+                .writeInt("MinecraftDataVersion", DATA_VERSION)
+                .writeInt("Version", LITEMATIC_VERSION)
+                .beginCompound("Metadata")
+                .writeString("Name", spec.getName())
+                .writeString("Author", "SchematicCorpus")
+                .writeString("Description", "Synthetic schematic for benchmarking")
+                .writeInt("RegionCount", spec.regions())
+                .writeInt("TotalBlocks", (int) Arrays.stream(blocks).filter(block -> block != 0).count())
+                .writeInt("TotalVolume", spec.getVolume())
+                .writeLong("TimeCreated", TIMESTAMP)
+                .writeLong("TimeModified", TIMESTAMP)
+                .beginCompound("EnclosingSize")
+                .writeInt("x", spec.width())
+                .writeInt("y", spec.height())
+                .writeInt("z", spec.length())
+                .endCompound()
+                .endCompound()
+                .beginCompound("Regions");
+
+        final int regionWidth = spec.width() / spec.regions();
+        for (int region = 0; region < spec.regions(); region++) {
+            final int startX = region * regionWidth;
+            final int width = region == spec.regions() - 1 ? spec.width() - startX : regionWidth;
+            writer.beginCompound("region-" + region)
+                    .beginCompound("Position")
+                    .writeInt("x", startX)
+                    .writeInt("y", 0)
+                    .writeInt("z", 0)
+                    .endCompound()
+                    .beginCompound("Size")
+                    .writeInt("x", width)
+                    .writeInt("y", spec.height())
+                    .writeInt("z", spec.length())
+                    .endCompound()
+                    .beginList("BlockStatePalette", NbtWriter.TAG_COMPOUND, spec.paletteSize());
+            for (int i = 0; i < spec.paletteSize(); i++) {
+                writer.beginCompound()
+                        .writeString("Name", BLOCK_STATES.get(i))
+                        .endCompound();
+            }
+            writer.endList()
+                    .writeLongArray("BlockStates", packRegion(spec, blocks, startX, width))
+                    .emptyList("Entities")
+                    .emptyList("TileEntities")
+                    .emptyList("PendingBlockTicks")
+                    .emptyList("PendingFluidTicks")
+                    .endCompound();
+        }
+        writer.endCompound()
+                .endCompound();
+    }
+
+    // Pack a region's palette indices tightly into longs, with entries spanning long boundaries, as Litematica does
+    private static long[] packRegion(@NotNull Spec spec, int[] blocks, int startX, int width) {
+        final int bits = Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(spec.paletteSize() - 1));
+        final int volume = width * spec.height() * spec.length();
+        final long[] packed = new long[(int) (((long) volume * bits + Long.SIZE - 1) / Long.SIZE)];
+        int index = 0;
+        for (int y = 0; y < spec.height(); y++) {
+            for (int z = 0; z < spec.length(); z++) {
+                for (int x = 0; x < width; x++) {
+                    final long value = blocks[(y * spec.length() + z) * spec.width() + startX + x];
+                    final long startBit = (long) index * bits;
+                    final int word = (int) (startBit >>> 6);
+                    final int offset = (int) (startBit & 63);
+                    packed[word] |= value << offset;
+                    if (offset + bits > Long.SIZE) {
+                        packed[word + 1] |= value >>> (Long.SIZE - offset);
+                    }
+                    index++;
+                }
+            }
+        }
+        return packed;
+    }
+
+    @NotNull
+    private static List<String> createBlockStates() {
+        final List<String> states = new ArrayList<>();
+        for (String block : PLAIN_BLOCKS) {
+            states.add("minecraft:" + block);
+        }
+        for (String block : COLORED_BLOCKS) {
+            for (String color : COLORS) {
+                states.add("minecraft:" + color + "_" + block);
+            }
+        }
+        return List.copyOf(states);
+    }
+
+    @NotNull
+    private static List<int[]> createLegacyBlocks() {
+        final List<int[]> blocks = new ArrayList<>();
+        blocks.add(new int[]{0, 0});
+        addLegacyBlock(blocks, 1, 7);
+        addLegacyBlock(blocks, 3, 1);
+        addLegacyBlock(blocks, 4, 1);
+        addLegacyBlock(blocks, 5, 6);
+        addLegacyBlock(blocks, 12, 1);
+        addLegacyBlock(blocks, 13, 1);
+        addLegacyBlock(blocks, 17, 4);
+        addLegacyBlock(blocks, 20, 1);
+        addLegacyBlock(blocks, 45, 1);
+        addLegacyBlock(blocks, 47, 1);
+        addLegacyBlock(blocks, 49, 1);
+        for (int id : new int[]{35, 95, 159, 171, 251, 252}) {
+            addLegacyBlock(blocks, id, 16);
+        }
+        return List.copyOf(blocks);
+    }
+
+    private static void addLegacyBlock(@NotNull List<int[]> blocks, int id, int variants) {
+        for (int data = 0; data < variants; data++) {
+            blocks.add(new int[]{id, data});
+        }
+    }
+
+    /**
+     * A schematic format that can be generated
+     */
+    public enum Format {
+        SPONGE_V2("v2", ".schem"),
+        SPONGE_V3("v3", ".schem"),
+        LEGACY("mce", ".schematic"),
+        LITEMATIC("lm", ".litematic");
+
+        private final String id;
+        private final String extension;
+
+        Format(@NotNull String id, @NotNull String extension) {
+            this.id = id;
+            this.extension = extension;
+        }
+
+        @NotNull
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * The shape and content of a synthetic schematic
+     *
+     * @param format      The format to write
+     * @param width       Size along the x axis
+     * @param height      Size along the y axis
+     * @param length      Size along the z axis
+     * @param paletteSize Number of distinct block states, including air
+     * @param entropy     Chance (0 to 1) of each block differing from the one before it
+     * @param regions     Number of regions to split a litematic into along the x axis; ignored by other formats
+     * @param seed        Seed of the block placement
+     */
+    public record Spec(@NotNull Format format, int width, int height, int length, int paletteSize, double entropy,
+                       int regions, long seed) {
+
+        public Spec {
+            if (width < 1 || height < 1 || length < 1
+                    || width > MAX_DIMENSION || height > MAX_DIMENSION || length > MAX_DIMENSION) {
+                throw new IllegalArgumentException("Dimensions must be between 1 and " + MAX_DIMENSION);
+            }
+            if (paletteSize < 1 || paletteSize > getMaxPaletteSize(format)) {
+                throw new IllegalArgumentException("Palette size must be between 1 and " + getMaxPaletteSize(format));
+            }
+            if (entropy < 0 || entropy > 1) {
+                throw new IllegalArgumentException("Entropy must be between 0 and 1");
+            }
+            if (regions < 1 || regions > width) {
+                throw new IllegalArgumentException("Regions must be between 1 and the width");
+            }
+        }
+
+        public int getVolume() {
+            return Math.multiplyExact(Math.multiplyExact(width, height), length);
+        }
+
+        // A short, descriptive name, e.g. lm-48x32x48-p32-e30-r3
+        @NotNull
+        public String getName() {
+            return String.format(Locale.ENGLISH, "%s-%dx%dx%d-p%d-e%d%s", format.id, width, height, length,
+                    paletteSize, Math.round(entropy * 100), format == Format.LITEMATIC ? "-r" + regions : "");
+        }
+
+        @NotNull
+        public String getFileName() {
+            return getName() + format.getExtension();
+        }
+
+    }
+
+}
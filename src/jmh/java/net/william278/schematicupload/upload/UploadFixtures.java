@@ -0,0 +1,36 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.upload;
+
+import net.william278.schematicupload.SchematicUpload;
+import org.jetbrains.annotations.NotNull;
+
+// Access to upload classes for benchmarks in other packages
+public final class UploadFixtures {
+
+    private UploadFixtures() {
+    }
+
+    @NotNull
+    public static UploadManager createUploadManager(@NotNull SchematicUpload plugin) {
+        return new UploadManager(plugin);
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.upload;
+
+import net.william278.schematicupload.BenchmarkFixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks upload code generation, consumption and rate limiting with many codes live at once
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadManagerBenchmark {
+
+    private static final int CONTENDED_THREADS = 8;
+
+    @Param({"10", "1000", "100000"})
+    private int liveCodes;
+
+    private UploadManager uploadManager;
+    private UUID[] players;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uploadManager = new UploadManager(BenchmarkFixtures.createPlugin());
+        players = new UUID[liveCodes];
+        for (int i = 0; i < liveCodes; i++) {
+            players[i] = UUID.randomUUID();
+            uploadManager.generateCode(players[i]);
+        }
+    }
+
+    private UUID randomPlayer() {
+        return players[ThreadLocalRandom.current().nextInt(players.length)];
+    }
+
+    @Benchmark
+    public UploadCode generateCode() {
+        return uploadManager.generateCode(randomPlayer());
+    }
+
+    // Generate a code for a player, then consume it, as a real upload would
+    @Benchmark
+    public UploadManager.ConsumptionResult generateAndConsumeCode() {
+        final UploadCode code = uploadManager.generateCode(randomPlayer());
+        return uploadManager.consumeCode(code.getCode());
+    }
+
+    // Look up a code that does not exist, as an attacker guessing codes would
+    @Benchmark
+    public UploadManager.ConsumptionResult consumeInvalidCode() {
+        return uploadManager.consumeCode("!invalid");
+    }
+
+    @Benchmark
+    public boolean canUpload() {
+        return uploadManager.canUpload(randomPlayer());
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public UploadManager.ConsumptionResult generateAndConsumeCodeContended() {
+        final UploadCode code = uploadManager.generateCode(randomPlayer());
+        return uploadManager.consumeCode(code.getCode());
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public boolean isCodeValidContended() {
+        return uploadManager.isCodeValid("!invalid");
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public boolean canUploadContended() {
+        return uploadManager.canUpload(randomPlayer());
+    }
+
+    @Benchmark
+    public UploadCode generateUploadCode() {
+        return UploadCode.generate();
+    }
+
+}
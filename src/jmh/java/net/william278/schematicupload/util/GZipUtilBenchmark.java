@@ -0,0 +1,85 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Benchmarks checking the GZip header of uploads, with and without mark support on the stream
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GZipUtilBenchmark {
+
+    private byte[] gzipped;
+    private byte[] plain;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        plain = new byte[64 * 1024];
+        new Random(278).nextBytes(plain);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(plain);
+        }
+        gzipped = output.toByteArray();
+    }
+
+    @Benchmark
+    public boolean gzippedMarkSupported() {
+        return GZipUtil.isGZipped(new ByteArrayInputStream(gzipped));
+    }
+
+    @Benchmark
+    public boolean plainMarkSupported() {
+        return GZipUtil.isGZipped(new ByteArrayInputStream(plain));
+    }
+
+    // A stream without mark support, like a multipart part stream, is wrapped in a buffer first
+    @Benchmark
+    public boolean gzippedMarkUnsupported() {
+        return GZipUtil.isGZipped(new UnmarkableInputStream(new ByteArrayInputStream(gzipped)));
+    }
+
+    private static final class UnmarkableInputStream extends FilterInputStream {
+
+        private UnmarkableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+    }
+
+}
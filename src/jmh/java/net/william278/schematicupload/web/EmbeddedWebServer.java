@@ -0,0 +1,117 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import lombok.Getter;
+import net.william278.schematicupload.BenchmarkFixtures;
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.store.FileSchematicStore;
+import net.william278.schematicupload.store.SchematicIndex;
+import net.william278.schematicupload.store.SchematicStore;
+import net.william278.schematicupload.upload.UploadFixtures;
+import net.william278.schematicupload.upload.UploadManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * The web tier, started in-process on an ephemeral port, with the rest of the plugin stubbed out
+ * <p>
+ * Uploads, listings and downloads go through the real servlets, filters, upload manager and file store, in a
+ * temporary directory deleted on close. Messages to players and anything needing a running Minecraft server are
+ * no-ops.
+ */
+@Getter
+final class EmbeddedWebServer implements Closeable {
+
+    static final String FORM_BOUNDARY = "SchematicUploadBenchmarkBoundary";
+
+    private final Path directory;
+    private final SchematicUpload plugin;
+    private final SchematicStore store;
+    private final SchematicIndex index;
+    private final UploadManager uploadManager;
+    private final WebServer webServer;
+    private final URI baseUri;
+
+    // Start the web tier with settings from a YAML config; a port of 0 lets the system pick a free one
+    EmbeddedWebServer(@NotNull String settingsYaml) throws IOException {
+        this.directory = Files.createTempDirectory("schematicupload-web");
+        final Path dataFolder = directory.resolve("plugin");
+        final Path schematicDirectory = directory.resolve("schematics");
+        // An existing web folder stops the server copying its files out of the plugin jar
+        Files.createDirectories(dataFolder.resolve("web"));
+
+        final Settings settings = BenchmarkFixtures.createSettings(settingsYaml);
+        this.plugin = BenchmarkFixtures.createPlugin(settings);
+        this.store = new FileSchematicStore(schematicDirectory);
+        this.index = new SchematicIndex(store);
+        this.uploadManager = UploadFixtures.createUploadManager(plugin);
+        this.webServer = new WebServer(plugin);
+        when(plugin.getDataFolder()).thenReturn(dataFolder.toFile());
+        when(plugin.getConfigDirectory()).thenReturn(dataFolder);
+        when(plugin.getSchematicDirectory()).thenReturn(schematicDirectory);
+        when(plugin.getSchematicStore()).thenReturn(store);
+        when(plugin.getSchematicIndex()).thenReturn(index);
+        when(plugin.getUploadManager()).thenReturn(uploadManager);
+        when(plugin.getWebServer()).thenReturn(webServer);
+
+        webServer.start();
+        if (webServer.getLocalPort() <= 0) {
+            close();
+            throw new IllegalStateException("The web server failed to start");
+        }
+        this.baseUri = URI.create("http://127.0.0.1:" + webServer.getLocalPort());
+    }
+
+    // Build the multipart form the upload page sends
+    static byte[] createUploadForm(@NotNull String code, @NotNull String fileName, byte[] content) {
+        final ByteArrayOutputStream form = new ByteArrayOutputStream(content.length + 512);
+        form.writeBytes(("--" + FORM_BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"input-code\"\r\n\r\n"
+                + code + "\r\n"
+                + "--" + FORM_BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file-upload\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        form.writeBytes(content);
+        form.writeBytes(("\r\n--" + FORM_BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return form.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        webServer.end();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+}
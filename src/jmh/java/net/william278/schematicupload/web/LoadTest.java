@@ -0,0 +1,459 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import net.william278.schematicupload.corpus.SchematicCorpus;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of uploads, listings, previews and downloads at the in-process web tier, to see how its thread pool
+ * and limits hold up under load before changing them on a live server
+ * <p>
+ * Requests are sent at a fixed rate on virtual threads, whether or not earlier ones have completed (an open
+ * model), and latency is measured from when each request was due to be sent. A slow server therefore shows up as
+ * latency, rather than hiding behind a load generator that waits for it (coordinated omission); service time, from
+ * when the request was actually sent, is reported alongside for comparison.
+ * <p>
+ * Run with {@code ./gradlew loadTest}, passing options as {@code -PloadTestArgs="rate=400 duration=60"}. Web server
+ * settings may be read from a config file with {@code config=<file>}; set its port to 0 to pick a free one.
+ */
+public final class LoadTest {
+
+    // Throttling and per-address bandwidth limits are off by default, as every simulated client shares one address
+    private static final String DEFAULT_SETTINGS = """
+            web_server_settings:
+              port: 0
+              throttle_settings:
+                enabled: false
+              bandwidth_settings:
+                per_ip_bytes_per_second: 0
+            """;
+    private static final String DEFAULT_MIX = "upload:10,invalid:5,slow:1,list:30,preview:24,download:30";
+    private static final long SAMPLE_INTERVAL_MILLIS = 100;
+
+    private final EmbeddedWebServer server;
+    private final HttpClient client;
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final List<SchematicCorpus.Spec> uploads;
+    private final List<byte[]> uploadContents;
+    private final List<String> downloads = new ArrayList<>();
+    private final int slowBytesPerSecond;
+    private final Duration timeout;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int maxInFlight;
+    private volatile int maxBusyThreads;
+    private volatile int maxQueuedJobs;
+
+    private LoadTest(@NotNull EmbeddedWebServer server, long seed, int slowBytesPerSecond,
+                     @NotNull Duration timeout) throws IOException {
+        this.server = server;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        this.slowBytesPerSecond = slowBytesPerSecond;
+        this.timeout = timeout;
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder());
+        }
+
+        // Upload the small and medium schematics of the corpus, and seed the store with them to download
+        this.uploads = SchematicCorpus.standard(seed).stream()
+                .filter(spec -> spec.getVolume() < 100_000)
+                .toList();
+        this.uploadContents = uploads.stream().map(SchematicCorpus::generate).toList();
+        for (int i = 0; i < uploads.size(); i++) {
+            final String name = "seed-" + uploads.get(i).getFileName();
+            server.getStore().put(name, new ByteArrayInputStream(uploadContents.get(i)));
+            server.getIndex().refresh(name);
+            downloads.add(name);
+        }
+    }
+
+    // Usage: [rate=200] [duration=30] [warmup=5] [mix=upload:10,invalid:5,...] [slowRate=16384] [timeout=30]
+    //        [seed=278] [config=<file>] [output=<results.json>]
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        final double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        final int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        final Mix mix = Mix.parse(options.getOrDefault("mix", DEFAULT_MIX));
+        final int slowRate = Integer.parseInt(options.getOrDefault("slowRate", "16384"));
+        final int timeout = Integer.parseInt(options.getOrDefault("timeout", "30"));
+        final long seed = Long.parseLong(options.getOrDefault("seed", "278"));
+        final String settings = options.containsKey("config")
+                ? Files.readString(Path.of(options.get("config"))) : DEFAULT_SETTINGS;
+        final String output = options.get("output");
+
+        try (EmbeddedWebServer server = new EmbeddedWebServer(settings)) {
+            final LoadTest test = new LoadTest(server, seed, slowRate, Duration.ofSeconds(timeout));
+            System.out.printf(Locale.ENGLISH, "Sending %.0f requests/s for %d s (after %d s warm-up) to %s%n",
+                    rate, duration, warmup, server.getBaseUri());
+            test.run(rate, warmup, duration, mix, seed);
+            final String report = test.toTable(duration);
+            System.out.println(report);
+            if (output != null) {
+                final Path outputFile = Path.of(output);
+                if (outputFile.getParent() != null) {
+                    Files.createDirectories(outputFile.getParent());
+                }
+                Files.writeString(outputFile, test.toJson(rate, duration, warmup, mix));
+                System.out.println("Results written to " + outputFile);
+            }
+        }
+    }
+
+    // Send requests at a fixed rate, recording those due after the warm-up
+    private void run(double rate, int warmupSeconds, int durationSeconds, @NotNull Mix mix, long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(this::sample, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; ; i++) {
+                final long intended = start + i * interval;
+                if (intended >= end) {
+                    break;
+                }
+                final long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                final Operation operation = mix.pick(random);
+                final int sample = random.nextInt(Integer.MAX_VALUE);
+                final boolean recorded = intended >= measureStart;
+                requests.execute(() -> send(operation, sample, intended, recorded));
+            }
+        } finally {
+            sampler.shutdownNow();
+        }
+    }
+
+    // Record the peak load on the server's thread pool and on the client
+    private void sample() {
+        final QueuedThreadPool threadPool = server.getWebServer().getThreadPool();
+        maxBusyThreads = Math.max(maxBusyThreads, threadPool.getBusyThreads());
+        maxQueuedJobs = Math.max(maxQueuedJobs, threadPool.getQueueSize());
+        maxInFlight = Math.max(maxInFlight, inFlight.get());
+    }
+
+    private void send(@NotNull Operation operation, int sample, long intended, boolean recorded) {
+        final HttpRequest request = createRequest(operation, sample);
+        inFlight.incrementAndGet();
+        final long sent = System.nanoTime();
+        int status;
+        try {
+            status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            status = -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = -1;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        final long done = System.nanoTime();
+        if (recorded) {
+            recorders.get(operation).record(operation.isExpected(status), status, done - intended, done - sent);
+        }
+    }
+
+    @NotNull
+    private HttpRequest createRequest(@NotNull Operation operation, int sample) {
+        final URI base = server.getBaseUri();
+        final String download = URLEncoder.encode(downloads.get(sample % downloads.size()), StandardCharsets.UTF_8);
+        return switch (operation) {
+            case UPLOAD, INVALID_UPLOAD, SLOW_UPLOAD -> {
+                final String code = operation == Operation.INVALID_UPLOAD ? "!invalid"
+                        : server.getUploadManager().generateCode(UUID.randomUUID()).getCode();
+                final int index = sample % uploads.size();
+                final byte[] form = EmbeddedWebServer.createUploadForm(code, uploads.get(index).getFileName(),
+                        uploadContents.get(index));
+                yield HttpRequest.newBuilder(base.resolve("/api"))
+                        .timeout(timeout)
+                        .header("Content-Type", "multipart/form-data; boundary=" + EmbeddedWebServer.FORM_BOUNDARY)
+                        .header("X-Upload-Code", code)
+                        .POST(operation == Operation.SLOW_UPLOAD
+                                ? HttpRequest.BodyPublishers.ofInputStream(() -> new SlowInputStream(form,
+                                slowBytesPerSecond))
+                                : HttpRequest.BodyPublishers.ofByteArray(form))
+                        .build();
+            }
+            case LIST -> HttpRequest.newBuilder(base.resolve("/api/list")).timeout(timeout).build();
+            case PREVIEW -> HttpRequest.newBuilder(base.resolve("/api/list/download/" + download + "?preview=true"))
+                    .timeout(timeout).build();
+            case DOWNLOAD -> HttpRequest.newBuilder(base.resolve("/api/list/download/" + download))
+                    .timeout(timeout).build();
+        };
+    }
+
+    @NotNull
+    private String toTable(int durationSeconds) {
+        final StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.ENGLISH, "%-9s %7s %7s %6s %6s %6s %9s %9s %9s %9s %9s | %9s %9s%n",
+                "operation", "count", "req/s", "ok", "503", "other", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms",
+                "max ms", "svc p50", "svc p99"));
+        for (Operation operation : Operation.values()) {
+            final Recorder recorder = recorders.get(operation);
+            final long[] latencies = recorder.getLatencies();
+            final long[] serviceTimes = recorder.getServiceTimes();
+            table.append(String.format(Locale.ENGLISH,
+                    "%-9s %7d %7.1f %6d %6d %6d %9.2f %9.2f %9.2f %9.2f %9.2f | %9.2f %9.2f%n",
+                    operation.getId(), latencies.length, latencies.length / (double) durationSeconds,
+                    recorder.getExpected(), recorder.getStatusCount(503),
+                    latencies.length - recorder.getExpected() - recorder.getStatusCount(503),
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                    percentile(latencies, 99.9), percentile(latencies, 100),
+                    percentile(serviceTimes, 50), percentile(serviceTimes, 99)));
+        }
+        table.append(String.format(Locale.ENGLISH, "Peak busy threads: %d/%d; peak queued jobs: %d; "
+                        + "peak requests in flight: %d%n", maxBusyThreads,
+                server.getWebServer().getThreadPool().getMaxThreads(), maxQueuedJobs, maxInFlight));
+        final LoadSheddingFilter loadShedding = server.getWebServer().getLoadSheddingFilter();
+        if (loadShedding != null) {
+            for (LoadSheddingFilter.Endpoint endpoint : LoadSheddingFilter.Endpoint.values()) {
+                final LoadSheddingFilter.ConcurrencyLimiter limiter = loadShedding.getLimiter(endpoint);
+                table.append(String.format(Locale.ENGLISH, "Concurrency limit (%s): %d at the end, %d refused%n",
+                        endpoint.name().toLowerCase(Locale.ENGLISH), limiter.getLimit(), limiter.getRejected()));
+            }
+        }
+        return table.toString();
+    }
+
+    @NotNull
+    private String toJson(double rate, int duration, int warmup, @NotNull Mix mix) {
+        final StringJoiner operations = new StringJoiner(",");
+        for (Operation operation : Operation.values()) {
+            final Recorder recorder = recorders.get(operation);
+            final long[] latencies = recorder.getLatencies();
+            final long[] serviceTimes = recorder.getServiceTimes();
+            operations.add(String.format(Locale.ENGLISH, "\"%s\":{\"count\":%d,\"expected\":%d,\"shed\":%d,"
+                            + "\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"p999Ms\":%.3f,\"maxMs\":%.3f,"
+                            + "\"serviceP50Ms\":%.3f,\"serviceP99Ms\":%.3f}",
+                    operation.getId(), latencies.length, recorder.getExpected(), recorder.getStatusCount(503),
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                    percentile(latencies, 99.9), percentile(latencies, 100),
+                    percentile(serviceTimes, 50), percentile(serviceTimes, 99)));
+        }
+        return String.format(Locale.ENGLISH, "{\"rate\":%.1f,\"duration\":%d,\"warmup\":%d,\"mix\":\"%s\","
+                        + "\"maxBusyThreads\":%d,\"maxQueuedJobs\":%d,\"maxInFlight\":%d,\"operations\":{%s}}%n",
+                rate, duration, warmup, mix, maxBusyThreads, maxQueuedJobs, maxInFlight, operations);
+    }
+
+    // Nearest-rank percentile of sorted nanosecond values, in milliseconds
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    /**
+     * A kind of request sent by the load test
+     */
+    private enum Operation {
+        UPLOAD("upload", 200),
+        INVALID_UPLOAD("invalid", 403),
+        SLOW_UPLOAD("slow", 200),
+        LIST("list", 200),
+        PREVIEW("preview", 200),
+        DOWNLOAD("download", 200);
+
+        private final String id;
+        private final int expectedStatus;
+
+        Operation(@NotNull String id, int expectedStatus) {
+            this.id = id;
+            this.expectedStatus = expectedStatus;
+        }
+
+        @NotNull
+        private String getId() {
+            return id;
+        }
+
+        private boolean isExpected(int status) {
+            return status == expectedStatus;
+        }
+
+        @NotNull
+        private static Operation byId(@NotNull String id) {
+            for (Operation operation : values()) {
+                if (operation.id.equals(id)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + id);
+        }
+    }
+
+    // The weighted mix of operations to send, e.g. upload:10,list:90
+    private record Mix(@NotNull Operation[] operations, int[] cumulativeWeights) {
+
+        @NotNull
+        private static Mix parse(@NotNull String mix) {
+            final List<Operation> operations = new ArrayList<>();
+            final List<Integer> weights = new ArrayList<>();
+            int total = 0;
+            for (String entry : mix.split(",")) {
+                final String[] parts = entry.trim().split(":");
+                final int weight = Integer.parseInt(parts[1]);
+                if (weight <= 0) {
+                    continue;
+                }
+                total += weight;
+                operations.add(Operation.byId(parts[0]));
+                weights.add(total);
+            }
+            if (operations.isEmpty()) {
+                throw new IllegalArgumentException("The mix must include at least one operation");
+            }
+            return new Mix(operations.toArray(Operation[]::new), weights.stream().mapToInt(i -> i).toArray());
+        }
+
+        @NotNull
+        private Operation pick(@NotNull SplittableRandom random) {
+            final int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (value < cumulativeWeights[i]) {
+                    return operations[i];
+                }
+            }
+            return operations[operations.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            final StringJoiner joiner = new StringJoiner(",");
+            for (int i = 0; i < operations.length; i++) {
+                joiner.add(operations[i].getId() + ":" + (cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1])));
+            }
+            return joiner.toString();
+        }
+    }
+
+    // Latencies and status codes of the requests of one operation
+    private static final class Recorder {
+
+        private long[] latencies = new long[1024];
+        private long[] serviceTimes = new long[1024];
+        private int count;
+        private int expected;
+        private final Map<Integer, Integer> statuses = new HashMap<>();
+
+        private synchronized void record(boolean isExpected, int status, long latency, long serviceTime) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+                serviceTimes = Arrays.copyOf(serviceTimes, count * 2);
+            }
+            latencies[count] = latency;
+            serviceTimes[count] = serviceTime;
+            count++;
+            if (isExpected) {
+                expected++;
+            }
+            statuses.merge(status, 1, Integer::sum);
+        }
+
+        private synchronized long[] getLatencies() {
+            final long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private synchronized long[] getServiceTimes() {
+            final long[] sorted = Arrays.copyOf(serviceTimes, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private synchronized int getExpected() {
+            return expected;
+        }
+
+        private synchronized int getStatusCount(int status) {
+            return statuses.getOrDefault(status, 0);
+        }
+
+    }
+
+    // Sends a request body at a limited rate, like a client on a slow connection
+    private static final class SlowInputStream extends InputStream {
+
+        private static final int CHUNKS_PER_SECOND = 10;
+
+        private final InputStream input;
+        private final int chunkSize;
+
+        private SlowInputStream(byte[] content, int bytesPerSecond) {
+            this.input = new ByteArrayInputStream(content);
+            this.chunkSize = Math.max(1, bytesPerSecond / CHUNKS_PER_SECOND);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte @NotNull [] buffer, int offset, int length) throws IOException {
+            try {
+                Thread.sleep(1000 / CHUNKS_PER_SECOND);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted whilst sending slowly", e);
+            }
+            return input.read(buffer, offset, Math.min(length, chunkSize));
+        }
+
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks sorting and encoding the schematic list served to the list page
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchematicListBenchmark {
+
+    private static final String[] WORDS = {"castle", "House", "tower", "Bridge", "farm", "ship", "Statue", "wall"};
+
+    @Param({"1000", "10000", "100000"})
+    private int entries;
+
+    private List<SchematicCatalogue.Entry> schematics;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Random random = new Random(278);
+        schematics = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            final String name = String.format("%08x-%s_%s %d.schem", random.nextInt(),
+                    WORDS[random.nextInt(WORDS.length)], WORDS[random.nextInt(WORDS.length)], i);
+            schematics.add(SchematicCatalogue.Entry.of(new SchematicStore.SchematicStat(name,
+                    1024 + random.nextInt(1_500_000), System.currentTimeMillis() - random.nextInt(Integer.MAX_VALUE))));
+        }
+    }
+
+    @Benchmark
+    public List<SchematicCatalogue.Entry> sort() {
+        return SchematicListServlet.sort(new ArrayList<>(schematics), SchematicListServlet.SortOrder.NAME, false);
+    }
+
+    @Benchmark
+    public List<SchematicCatalogue.Entry> sortByDate() {
+        return SchematicListServlet.sort(new ArrayList<>(schematics), SchematicListServlet.SortOrder.DATE, true);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return SchematicListServlet.toJson(schematics);
+    }
+
+    // The whole listing, as served for each request
+    @Benchmark
+    public String sortAndEncode() {
+        return SchematicListServlet.toJson(SchematicListServlet.sort(new ArrayList<>(schematics),
+                SchematicListServlet.SortOrder.NAME, false));
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import net.william278.schematicupload.corpus.SchematicCorpus;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Uploads a synthetic corpus through the full upload path - Jetty, the filters, multipart parsing, validation,
+ * conversion and storage - on an in-process web server, reporting throughput, latency percentiles, bytes allocated
+ * per upload and peak heap
+ * <p>
+ * Not a JMH benchmark, as uploads are handled on the server's threads, which JMH's profilers do not see. Allocation
+ * is counted across every thread in the process, so includes the client's share. Run with
+ * {@code ./gradlew uploadBenchmark}, passing options as {@code -PuploadBenchmarkArgs="uploads=1000 concurrency=8"}.
+ */
+public final class UploadPipelineBenchmark {
+
+    // Measure the upload path itself, rather than the protections in front of it
+    private static final String SETTINGS = """
+            web_server_settings:
+              port: 0
+              throttle_settings:
+                enabled: false
+              load_shedding_settings:
+                enabled: false
+            """;
+
+    private final EmbeddedWebServer server;
+    private final HttpClient client;
+    private final URI uri;
+    private final List<Sample> corpus;
+
+    private UploadPipelineBenchmark(@NotNull EmbeddedWebServer server, @NotNull List<Sample> corpus) {
+        this.server = server;
+        this.uri = server.getBaseUri().resolve("/api");
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        this.corpus = corpus;
+    }
+
+    // Usage: [uploads=500] [warmup=200] [concurrency=4] [seed=278] [output=<results.json>]
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        final int uploads = Integer.parseInt(options.getOrDefault("uploads", "500"));
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "200"));
+        final int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "4"));
+        final long seed = Long.parseLong(options.getOrDefault("seed", "278"));
+        final String output = options.get("output");
+
+        final List<Sample> corpus = SchematicCorpus.standard(seed).stream()
+                .map(spec -> new Sample(spec.format(), spec.getFileName(), SchematicCorpus.generate(spec)))
+                .toList();
+        try (EmbeddedWebServer server = new EmbeddedWebServer(SETTINGS)) {
+            final UploadPipelineBenchmark benchmark = new UploadPipelineBenchmark(server, corpus);
+            benchmark.run(warmup, concurrency);
+            final Result result = benchmark.measure(uploads, concurrency);
+            System.out.println(result.toTable());
+            if (output != null) {
+                final Path outputFile = Path.of(output);
+                if (outputFile.getParent() != null) {
+                    Files.createDirectories(outputFile.getParent());
+                }
+                Files.writeString(outputFile, result.toJson(uploads, warmup, concurrency, seed));
+                System.out.println("Results written to " + outputFile);
+            }
+        }
+    }
+
+    // Run a phase of uploads, measuring allocation and peak heap across it
+    @NotNull
+    private Result measure(int uploads, int concurrency) throws InterruptedException {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .toList();
+
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        final long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        final long start = System.nanoTime();
+        final Phase phase = run(uploads, concurrency);
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+        // Pools peak at different times, so their sum is an upper bound on the true peak
+        final long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        return new Result(phase, elapsed, allocatedBefore < 0 ? -1 : allocated, peakHeap);
+    }
+
+    // Upload the corpus in order, round-robin, from a number of concurrent clients
+    @NotNull
+    private Phase run(int uploads, int concurrency) throws InterruptedException {
+        final long[] latencies = new long[uploads];
+        final SchematicCorpus.Format[] formats = new SchematicCorpus.Format[uploads];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            clients.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < uploads) {
+                    final Sample sample = corpus.get(index % corpus.size());
+                    final long start = System.nanoTime();
+                    if (!upload(sample)) {
+                        failures.incrementAndGet();
+                    }
+                    latencies[index] = System.nanoTime() - start;
+                    formats[index] = sample.format();
+                    bytes.addAndGet(sample.content().length);
+                }
+            });
+        }
+        clients.shutdown();
+        if (!clients.awaitTermination(1, TimeUnit.HOURS)) {
+            throw new IllegalStateException("Uploads did not finish within an hour");
+        }
+        return new Phase(latencies, formats, failures.get(), bytes.get());
+    }
+
+    // Upload a schematic with a freshly generated code, returning whether it was accepted
+    private boolean upload(@NotNull Sample sample) {
+        final String code = server.getUploadManager().generateCode(UUID.randomUUID()).getCode();
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "multipart/form-data; boundary=" + EmbeddedWebServer.FORM_BOUNDARY)
+                .header("X-Upload-Code", code)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(
+                        EmbeddedWebServer.createUploadForm(code, sample.fileName(), sample.content())
+                ))
+                .build();
+        try {
+            final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                System.err.printf("Upload of %s failed (%d): %s%n", sample.fileName(), response.statusCode(),
+                        response.body().trim());
+                return false;
+            }
+            return true;
+        } catch (IOException | InterruptedException e) {
+            System.err.printf("Upload of %s failed: %s%n", sample.fileName(), e);
+            return false;
+        }
+    }
+
+    // A schematic in the corpus
+    private record Sample(@NotNull SchematicCorpus.Format format, @NotNull String fileName, byte[] content) {
+    }
+
+    // The latency of each upload in a phase, and the format uploaded
+    private record Phase(long[] latencies, SchematicCorpus.Format[] formats, int failures, long bytes) {
+
+        // Latencies of uploads of a format, or all uploads if null, in ascending order
+        private long[] getSorted(@Nullable SchematicCorpus.Format format) {
+            final long[] sorted = format == null ? latencies.clone() : IntStream
+                    .range(0, latencies.length)
+                    .filter(i -> formats[i] == format)
+                    .mapToLong(i -> latencies[i])
+                    .toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+    }
+
+    private record Result(@NotNull Phase phase, long elapsedNanos, long allocatedBytes, long peakHeapBytes) {
+
+        private double getThroughput() {
+            return phase.latencies().length / (elapsedNanos / 1e9);
+        }
+
+        // Nearest-rank percentile, in milliseconds
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        @NotNull
+        private String toTable() {
+            final StringBuilder table = new StringBuilder();
+            final int uploads = phase.latencies().length;
+            table.append(String.format(Locale.ENGLISH, "%d uploads (%d failed, %.1f MiB) in %.2f s: %.1f uploads/s%n",
+                    uploads, phase.failures(), phase.bytes() / 1048576d, elapsedNanos / 1e9, getThroughput()));
+            table.append(String.format(Locale.ENGLISH, "Allocated per upload: %s; peak heap: %.1f MiB%n",
+                    allocatedBytes < 0 ? "unsupported" : String.format(Locale.ENGLISH, "%.1f KiB",
+                            allocatedBytes / (double) uploads / 1024), peakHeapBytes / 1048576d));
+            table.append(String.format(Locale.ENGLISH, "%-10s %8s %10s %10s %10s%n", "format", "uploads",
+                    "p50 ms", "p99 ms", "max ms"));
+            for (SchematicCorpus.Format format : SchematicCorpus.Format.values()) {
+                appendRow(table, format.name().toLowerCase(Locale.ENGLISH), phase.getSorted(format));
+            }
+            appendRow(table, "all", phase.getSorted(null));
+            return table.toString();
+        }
+
+        private static void appendRow(@NotNull StringBuilder table, @NotNull String name, long[] sorted) {
+            table.append(String.format(Locale.ENGLISH, "%-10s %8d %10.2f %10.2f %10.2f%n", name, sorted.length,
+                    percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 100)));
+        }
+
+        @NotNull
+        private String toJson(int uploads, int warmup, int concurrency, long seed) {
+            final StringJoiner formats = new StringJoiner(",");
+            for (SchematicCorpus.Format format : SchematicCorpus.Format.values()) {
+                final long[] sorted = phase.getSorted(format);
+                formats.add(String.format(Locale.ENGLISH, "\"%s\":{\"uploads\":%d,\"p50Ms\":%.3f,\"p99Ms\":%.3f}",
+                        format.name().toLowerCase(Locale.ENGLISH), sorted.length,
+                        percentile(sorted, 50), percentile(sorted, 99)));
+            }
+            final long[] all = phase.getSorted(null);
+            return String.format(Locale.ENGLISH, "{\"uploads\":%d,\"warmup\":%d,\"concurrency\":%d,\"seed\":%d,"
+                            + "\"failures\":%d,\"throughput\":%.3f,\"p50Ms\":%.3f,\"p99Ms\":%.3f,"
+                            + "\"allocatedBytesPerUpload\":%d,\"peakHeapBytes\":%d,\"formats\":{%s}}%n",
+                    uploads, warmup, concurrency, seed, phase.failures(), getThroughput(),
+                    percentile(all, 50), percentile(all, 99),
+                    allocatedBytes < 0 ? -1 : allocatedBytes / uploads, peakHeapBytes, formats);
+        }
+
+    }
+
+}
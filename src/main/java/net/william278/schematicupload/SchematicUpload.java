@@ -26,7 +26,17 @@ import net.kyori.adventure.platform.bukkit.BukkitAudiences;
 import net.william278.schematicupload.command.CommandProvider;
 import net.william278.schematicupload.config.ConfigProvider;
 import net.william278.schematicupload.config.Locales;
+import net.william278.schematicupload.config.NotificationQueue;
 import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.pipeline.PipelineProvider;
+import net.william278.schematicupload.pipeline.ProcessingPipeline;
+import net.william278.schematicupload.store.SchematicCache;
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicIndex;
+import net.william278.schematicupload.store.SchematicStore;
+import net.william278.schematicupload.store.SchematicWatcher;
+import net.william278.schematicupload.store.SearchIndex;
+import net.william278.schematicupload.store.StoreProvider;
 import net.william278.schematicupload.upload.UploadManager;
 import net.william278.schematicupload.upload.UploadProvider;
 import net.william278.schematicupload.util.MetaProvider;
@@ -44,13 +54,21 @@ import java.util.logging.Level;
 @Setter
 @NoArgsConstructor
 public class SchematicUpload extends JavaPlugin implements ConfigProvider, CommandProvider, WebServerProvider,
-        MetricsProvider, UploadProvider, MetaProvider {
+        MetricsProvider, UploadProvider, MetaProvider, StoreProvider, PipelineProvider {
 
     public static final List<String> ALLOWED_EXTENSIONS = List.of(".schem", ".schematic", ".litematic");
 
     private Settings settings;
     private Locales locales;
+    private NotificationQueue notificationQueue;
     private UploadManager uploadManager;
+    private SchematicStore schematicStore;
+    private SchematicWatcher schematicWatcher;
+    private SchematicCache schematicCache;
+    private SchematicCatalogue schematicCatalogue;
+    private SchematicIndex schematicIndex;
+    private SearchIndex searchIndex;
+    private ProcessingPipeline processingPipeline;
     private WebServer webServer;
     private BukkitAudiences audiences;
 
@@ -59,7 +77,17 @@ public class SchematicUpload extends JavaPlugin implements ConfigProvider, Comma
         log(Level.INFO, "Enabling SchematicUpload v" + getPluginVersion());
         loadAudiences();
         loadSettings();
+        loadFlightRecorderEvents();
         loadLocales();
+        loadNotificationQueue();
+        loadSchematicStore();
+        loadSchematicWatcher();
+        loadSchematicCache();
+        loadSchematicCatalogue();
+        loadSchematicIndex();
+        loadSearchIndex();
+        loadProcessingPipeline();
+        scheduleArchiving();
         loadCommand();
         loadWebServer();
         loadUploadManager();
@@ -70,6 +98,8 @@ public class SchematicUpload extends JavaPlugin implements ConfigProvider, Comma
     @Override
     public void onDisable() {
         endWebServer();
+        endProcessingPipeline();
+        endSchematicStore();
         endAudiences();
     }
 
@@ -45,6 +45,9 @@ public interface CommandProvider {
         );
         bukkitDownload.setExecutor(downloadCommand);
         bukkitDownload.setTabCompleter(downloadCommand);
+
+        // Restore archived schematics when WorldEdit loads them
+        getPlugin().getServer().getPluginManager().registerEvents(new SchematicLoadListener(getPlugin()), getPlugin());
     }
 
     @NotNull
@@ -19,33 +19,27 @@
 
 package net.william278.schematicupload.command;
 
-import com.google.common.collect.Lists;
 import lombok.AllArgsConstructor;
 import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.store.SchematicStore;
+import net.william278.schematicupload.web.SchematicListServlet;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
-import org.bukkit.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.Duration;
-import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
-import java.util.UUID;
+import java.util.Optional;
 import java.util.logging.Level;
 
-import static net.william278.schematicupload.SchematicUpload.ALLOWED_EXTENSIONS;
-
 @AllArgsConstructor
 public class DownloadCommand implements TabExecutor {
 
-    public static final String DOWNLOAD_DIRECTORY = "download";
     private static final int DOWNLOAD_EXPIRY_MINUTES = 20;
+    private static final int MAX_COMPLETIONS = 100;
 
     private final SchematicUpload plugin;
 
@@ -56,7 +50,7 @@ public class DownloadCommand implements TabExecutor {
             return false;
         }
 
-        if (args.length == 0 || !getAvailableFiles().contains(args[0])) {
+        if (args.length == 0 || !plugin.getSchematicIndex().contains(args[0])) {
             plugin.sendMessage(player, "error_invalid_syntax", command.getUsage());
             return true;
         }
@@ -72,60 +66,42 @@ public class DownloadCommand implements TabExecutor {
         if (args.length > 1 || !sender.hasPermission("schematicupload.command.download")) {
             return List.of();
         }
-        final List<String> completions = Lists.newArrayList();
-        StringUtil.copyPartialMatches(args[0], getAvailableFiles(), completions);
-        Collections.sort(completions);
-        return completions;
+        return plugin.getSchematicIndex().complete(args.length == 0 ? "" : args[0], MAX_COMPLETIONS);
     }
 
+    // Mint a signed link to the schematic; the store is only touched off the main thread
     private void downloadSchematic(@NotNull Player player, @NotNull String fileName) {
-        final Path downloadsFolder = plugin.getConfigDirectory().resolve("web").resolve(DOWNLOAD_DIRECTORY);
-        try {
-            Files.createDirectories(downloadsFolder);
-            final Path toCopy = plugin.getSchematicDirectory().resolve(fileName);
-
-            // If too large, don't copy
-            if (Files.size(toCopy) > plugin.getSettings().getLimitSettings().getMaxFileSize()) {
-                plugin.sendMessage(player, "error_download_too_big");
-                return;
-            }
-
-            // Copy file to the downloads folder with a random name
-            final String downloadFile = String.format("%s-%s", UUID.randomUUID(), toCopy.getFileName());
-            Files.copy(toCopy, downloadsFolder.resolve(downloadFile));
-            plugin.sendMessage(
-                    player, "schematic_download_prompt",
-                    String.format(
-                            "%s/%s/%s",
-                            plugin.getSettings().getWebServerSettings().getUrl(),
-                            DOWNLOAD_DIRECTORY,
-                            downloadFile
-                    ),
-                    Integer.toString(DOWNLOAD_EXPIRY_MINUTES)
-            );
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                final Optional<SchematicStore.SchematicStat> schematic = plugin.getSchematicStore().stat(fileName);
+                if (schematic.isEmpty()) {
+                    plugin.queueMessage(player.getUniqueId(), "error_download_failed");
+                    return;
+                }
 
-            // Expire the download after a set amount of time
-            plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, (a) -> {
-                try {
-                    Files.delete(downloadsFolder.resolve(downloadFile));
-                } catch (Throwable e) {
-                    plugin.log(Level.WARNING, "Failed to expire downloaded schematic", e);
+                // If too large, don't offer a link
+                if (schematic.get().size() > plugin.getSettings().getLimitSettings().getMaxFileSize()) {
+                    plugin.queueMessage(player.getUniqueId(), "error_download_too_big");
+                    return;
                 }
-            }, Duration.ofMinutes(DOWNLOAD_EXPIRY_MINUTES).getSeconds() * 20L);
-        } catch (Throwable e) {
-            plugin.sendMessage(player, "error_download_failed");
-            plugin.log(Level.WARNING, "Failed to copy schematic for downloading", e);
-        }
-    }
 
-    @NotNull
-    private List<String> getAvailableFiles() {
-        return List.of(Objects.requireNonNull(
-                plugin.getSchematicDirectory().toFile().list(
-                        (dir, name) -> ALLOWED_EXTENSIONS.stream().anyMatch(name::endsWith)
-                ),
-                "Failed to list schematics in directory"
-        ));
+                final String token = plugin.getWebServer().getDownloadTokens()
+                        .mint(fileName, Duration.ofMinutes(DOWNLOAD_EXPIRY_MINUTES));
+                plugin.queueMessage(
+                        player.getUniqueId(), "schematic_download_prompt",
+                        String.format(
+                                "%s/api/list%s%s",
+                                plugin.getSettings().getWebServerSettings().getUrl(),
+                                SchematicListServlet.LINK_PATH,
+                                token
+                        ),
+                        Integer.toString(DOWNLOAD_EXPIRY_MINUTES)
+                );
+            } catch (Throwable e) {
+                plugin.queueMessage(player.getUniqueId(), "error_download_failed");
+                plugin.log(Level.WARNING, "Failed to create a schematic download link", e);
+            }
+        });
     }
 
 }
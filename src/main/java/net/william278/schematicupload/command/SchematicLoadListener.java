@@ -0,0 +1,100 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.command;
+
+import lombok.AllArgsConstructor;
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.store.SchematicIndex;
+import net.william278.schematicupload.store.SchematicStore;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.logging.Level;
+
+import static net.william278.schematicupload.SchematicUpload.ALLOWED_EXTENSIONS;
+
+// Fetches schematics to disk before WorldEdit tries to load them, such as archived schematics or those evicted from
+// the cache of a remote store, holding back the command until they are on disk
+@AllArgsConstructor
+public class SchematicLoadListener implements Listener {
+
+    private static final List<String> SCHEMATIC_COMMANDS = List.of(
+            "//schem", "//schematic", "/schem", "/schematic",
+            "/worldedit:/schem", "/worldedit:/schematic", "/worldedit:schem", "/worldedit:schematic"
+    );
+
+    private final SchematicUpload plugin;
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onSchematicCommand(@NotNull PlayerCommandPreprocessEvent event) {
+        final String[] args = event.getMessage().split(" ");
+        if (args.length < 3 || !SCHEMATIC_COMMANDS.contains(args[0].toLowerCase(Locale.ENGLISH))
+                || !args[1].equalsIgnoreCase("load")) {
+            return;
+        }
+
+        // WorldEdit accepts a path within the schematic directory, with or without the file extension
+        final String path = args[2];
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        final SchematicStore store = plugin.getSchematicStore();
+        final Optional<String> missing = getMissingName(store, plugin.getSchematicIndex(), name);
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        // Fetch the schematic off the main thread, then run the command again once it is on disk
+        event.setCancelled(true);
+        final Player player = event.getPlayer();
+        final String command = event.getMessage().substring(1);
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                store.getLocalFile(missing.get());
+            } catch (Throwable e) {
+                plugin.log(Level.WARNING, "Failed to fetch schematic " + missing.get() + " to disk", e);
+            }
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (player.isOnline()) {
+                    player.performCommand(command);
+                }
+            });
+        });
+    }
+
+    // Get the name of the indexed schematic a command refers to, if it may not be on disk, checking in memory only
+    @NotNull
+    private static Optional<String> getMissingName(@NotNull SchematicStore store, @NotNull SchematicIndex index,
+                                                   @NotNull String name) {
+        final List<String> candidates = SchematicStore.isValidName(name) ? List.of(name)
+                : ALLOWED_EXTENSIONS.stream().map(extension -> name + extension).toList();
+        return candidates.stream()
+                .filter(SchematicStore::isValidName)
+                .filter(index::contains)
+                .filter(store::needsFetching)
+                .findFirst();
+    }
+
+}
@@ -24,6 +24,10 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.TextColor;
 import net.william278.desertwell.about.AboutMenu;
 import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.pipeline.ProcessingPipeline;
+import net.william278.schematicupload.store.FileSchematicStore;
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicStore;
 import net.william278.schematicupload.upload.UploadCode;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
@@ -32,13 +36,25 @@ import org.bukkit.entity.Player;
 import org.bukkit.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 public class UploadCommand implements TabExecutor {
 
-    private static final List<String> TAB_COMPLETIONS = List.of("about", "reload");
+    private static final List<String> TAB_COMPLETIONS = List.of("about", "reload", "migrate", "history", "backfill");
+    private static final int MIGRATION_PARALLELISM = 4;
+    private static final int HISTORY_PAGE_SIZE = 8;
+    private static final DateTimeFormatter HISTORY_DATE_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm", Locale.ENGLISH).withZone(ZoneId.systemDefault());
     private final AboutMenu aboutMenu;
     private final SchematicUpload plugin;
 
@@ -64,10 +80,17 @@ public class UploadCommand implements TabExecutor {
             return false;
         }
 
+        if (args.length >= 1 && args[0].equalsIgnoreCase("history")) {
+            showHistory(player, command, args);
+            return true;
+        }
+
         if (args.length == 1) {
             switch (args[0].toLowerCase(Locale.ENGLISH)) {
                 case "about" -> showAboutMenu(player);
                 case "reload" -> reloadPlugin(player);
+                case "migrate" -> migrateSchematics(player);
+                case "backfill" -> backfillSchematics(player);
                 default -> plugin.sendMessage(player, "error_invalid_syntax", command.getUsage());
             }
             return true;
@@ -80,6 +103,10 @@ public class UploadCommand implements TabExecutor {
     @Override
     public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command,
                                       @NotNull String alias, String[] args) {
+        if (args.length == 2 && args[0].equalsIgnoreCase("history")
+            && sender.hasPermission("schematicupload.command.history.others")) {
+            return null;
+        }
         if (args.length > 1 || !sender.hasPermission("schematicupload.command")) {
             return List.of();
         }
@@ -96,6 +123,15 @@ public class UploadCommand implements TabExecutor {
             return;
         }
 
+        // Check the player has room for another schematic before they go to the trouble of uploading one
+        final SchematicCatalogue catalogue = plugin.getSchematicCatalogue();
+        if (catalogue != null && !plugin.getUploadManager().isWithinQuota(player.getUniqueId(), null, 0)) {
+            final SchematicCatalogue.Usage usage = catalogue.getUsage(player.getUniqueId());
+            plugin.sendMessage(player, "error_quota_reached", Integer.toString(usage.files()),
+                    formatSize(usage.bytes()));
+            return;
+        }
+
         final UploadCode code = plugin.getUploadManager().generateCode(player.getUniqueId());
         plugin.sendMessage(
                 player,
@@ -120,6 +156,134 @@ public class UploadCommand implements TabExecutor {
         plugin.sendMessage(player, "config_reloaded");
     }
 
+    private void migrateSchematics(@NotNull Player player) {
+        if (!player.hasPermission("schematicupload.command.migrate")) {
+            plugin.sendMessage(player, "error_no_permission");
+            return;
+        }
+        final FileSchematicStore store = plugin.getLocalSchematicStore();
+        plugin.sendMessage(player, "migration_started", store.getLayout().name().toLowerCase(Locale.ENGLISH));
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                final FileSchematicStore.MigrationResult result = store.migrate(MIGRATION_PARALLELISM);
+                plugin.queueMessage(player.getUniqueId(), "migration_complete",
+                        Integer.toString(result.moved()), Integer.toString(result.failed()));
+            } catch (Throwable e) {
+                plugin.queueMessage(player.getUniqueId(), "error_migration_failed");
+                plugin.log(Level.SEVERE, "Failed to migrate schematics to the " + store.getLayout() + " layout", e);
+            }
+        });
+    }
+
+    // Run every schematic in the store through the processing pipeline, behind uploads and changes
+    private void backfillSchematics(@NotNull Player player) {
+        if (!player.hasPermission("schematicupload.command.backfill")) {
+            plugin.sendMessage(player, "error_no_permission");
+            return;
+        }
+        final ProcessingPipeline pipeline = plugin.getProcessingPipeline();
+        if (pipeline == null) {
+            plugin.sendMessage(player, "error_backfill_unavailable");
+            return;
+        }
+        final List<SchematicStore.SchematicStat> schematics = plugin.getSchematicIndex().list();
+        plugin.sendMessage(player, "backfill_started", Integer.toString(schematics.size()));
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            final AtomicInteger failed = new AtomicInteger();
+            final CompletableFuture<?>[] jobs = schematics.stream()
+                    .map(stat -> pipeline.submit(stat.name(), ProcessingPipeline.Priority.BACKFILL)
+                            .whenComplete((result, error) -> {
+                                if (error != null) {
+                                    failed.incrementAndGet();
+                                }
+                            }))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(jobs).whenComplete((result, error) -> plugin.queueMessage(
+                    player.getUniqueId(), "backfill_complete",
+                    Integer.toString(jobs.length - failed.get()), Integer.toString(failed.get())
+            ));
+        });
+    }
+
+    // Show a page of the schematics a player has uploaded, newest first, reading the catalogue off the main thread
+    private void showHistory(@NotNull Player player, @NotNull Command command, @NotNull String[] args) {
+        if (!player.hasPermission("schematicupload.command.history")) {
+            plugin.sendMessage(player, "error_no_permission");
+            return;
+        }
+        String target = null;
+        int page = 1;
+        try {
+            if (args.length == 2 && args[1].chars().allMatch(Character::isDigit)) {
+                page = Integer.parseInt(args[1]);
+            } else if (args.length >= 2) {
+                target = args[1];
+                page = args.length >= 3 ? Integer.parseInt(args[2]) : 1;
+            }
+        } catch (NumberFormatException e) {
+            plugin.sendMessage(player, "error_invalid_syntax", "/" + command.getName() + " history [player] [page]");
+            return;
+        }
+        if (target != null && target.equalsIgnoreCase(player.getName())) {
+            target = null;
+        }
+        if (target != null && !player.hasPermission("schematicupload.command.history.others")) {
+            plugin.sendMessage(player, "error_no_permission");
+            return;
+        }
+
+        final UUID viewer = player.getUniqueId();
+        final String targetName = target != null ? target : player.getName();
+        final boolean self = target == null;
+        final int requestedPage = Math.max(1, page);
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                final SchematicCatalogue catalogue = plugin.getSchematicCatalogue();
+                final Optional<UUID> uploader = catalogue == null ? Optional.empty()
+                        : self ? Optional.of(viewer) : catalogue.findUploader(targetName);
+                if (catalogue == null || uploader.isEmpty()) {
+                    plugin.queueMessage(viewer, "error_unknown_uploader", targetName);
+                    return;
+                }
+                final SchematicCatalogue.Usage usage = catalogue.getUsage(uploader.get());
+                if (usage.files() == 0) {
+                    plugin.queueMessage(viewer, "upload_history_empty", targetName);
+                    return;
+                }
+
+                final int pages = (usage.files() + HISTORY_PAGE_SIZE - 1) / HISTORY_PAGE_SIZE;
+                final int shown = Math.min(requestedPage, pages);
+                plugin.queueMessage(viewer, "upload_history_header", targetName, Integer.toString(usage.files()),
+                        formatSize(usage.bytes()), Integer.toString(shown), Integer.toString(pages));
+                for (SchematicCatalogue.Entry entry : catalogue.getUploads(uploader.get(),
+                        (shown - 1) * HISTORY_PAGE_SIZE, HISTORY_PAGE_SIZE)) {
+                    plugin.queueMessage(viewer, "upload_history_entry", entry.name(), formatSize(entry.size()),
+                            HISTORY_DATE_FORMAT.format(Instant.ofEpochMilli(entry.uploadedAt())),
+                            "//schem load " + plugin.getSchematicStore().getLoadPath(entry.name()));
+                }
+                if (shown < pages) {
+                    plugin.queueMessage(viewer, "upload_history_next", self
+                            ? String.format("/%s history %d", command.getName(), shown + 1)
+                            : String.format("/%s history %s %d", command.getName(), targetName, shown + 1));
+                }
+            } catch (Throwable e) {
+                plugin.queueMessage(viewer, "error_history_failed");
+                plugin.log(Level.WARNING, "Failed to look up the upload history of " + targetName, e);
+            }
+        });
+    }
+
+    // Format a size in bytes for chat
+    @NotNull
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%.1f KiB", bytes / 1024d);
+        }
+        return String.format(Locale.ENGLISH, "%.1f MiB", bytes / (1024d * 1024d));
+    }
+
     private void showAboutMenu(@NotNull Player player) {
         if (!player.hasPermission("schematicupload.command.about")) {
             plugin.sendMessage(player, "error_no_permission");
@@ -35,6 +35,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.UUID;
 import java.util.function.Function;
 import java.util.logging.Level;
 
@@ -63,9 +64,25 @@ public interface ConfigProvider {
     void setLocales(@NotNull Locales locales);
 
     default void sendMessage(@NotNull Player player, @NotNull String message, @NotNull String... placeholders) {
-        getLocales().getLocale(message, placeholders)
-                .ifPresent(locale -> getAudience(player)
-                        .sendMessage(locale.toComponent()));
+        getLocales().getComponent(message, placeholders)
+                .ifPresent(locale -> getAudience(player).sendMessage(locale));
+    }
+
+    // Queue a message to be sent to a player on the main thread; safe to call from any thread
+    default void queueMessage(@NotNull UUID player, @NotNull String message, @NotNull String... placeholders) {
+        getLocales().getComponent(message, placeholders)
+                .ifPresent(locale -> getNotificationQueue().queue(player, locale));
+    }
+
+    @NotNull
+    NotificationQueue getNotificationQueue();
+
+    void setNotificationQueue(@NotNull NotificationQueue notificationQueue);
+
+    default void loadNotificationQueue() {
+        final NotificationQueue queue = new NotificationQueue(getPlugin());
+        queue.start();
+        setNotificationQueue(queue);
     }
 
     default void loadLocales() {
@@ -74,6 +91,7 @@ public interface ConfigProvider {
         );
         try (InputStream input = getResource(String.format("locales/%s.yml", getSettings().getLanguage()))) {
             final Locales locales = store.read(input);
+            locales.compile();
             store.save(
                     locales,
                     getConfigDirectory().resolve(String.format("messages-%s.yml", getSettings().getLanguage()))
@@ -25,11 +25,17 @@ import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import org.apache.commons.text.StringEscapeUtils;
+import net.kyori.adventure.text.Component;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Getter
 @Configuration
@@ -44,9 +50,14 @@ public class Locales {
             ┗╸ Information: https://william278.net/project/schematicupload/""";
 
     protected static final String DEFAULT_LOCALE = "en-gb";
+    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("%(\\d+)%");
 
     private Map<String, String> locales;
 
+    // Locales compiled into templates when loaded; not saved to the locales file
+    @Getter(AccessLevel.NONE)
+    private transient Map<String, Template> templates;
+
     /**
      * Returns a raw, unformatted locale loaded from the locales file
      *
@@ -67,7 +78,7 @@ public class Locales {
      * @return An {@link Optional} containing the replacement-applied locale corresponding to the id, if it exists
      */
     public Optional<String> getRawLocale(@NotNull String localeId, @NotNull String... replacements) {
-        return getRawLocale(localeId).map(locale -> applyReplacements(locale, replacements));
+        return getTemplate(localeId).map(template -> template.render(replacements, false));
     }
 
     /**
@@ -90,8 +101,21 @@ public class Locales {
      * @return An {@link Optional} containing the replacement-applied, formatted locale corresponding to the id, if it exists
      */
     public Optional<MineDown> getLocale(@NotNull String localeId, @NotNull String... replacements) {
-        return getRawLocale(localeId, Arrays.stream(replacements).map(Locales::escapeText)
-                .toArray(String[]::new)).map(this::format);
+        return getTemplate(localeId).map(template -> format(template.render(replacements, true)));
+    }
+
+    /**
+     * Returns a formatted locale from the locales file as a {@link Component}, with replacements applied
+     * <p>
+     * Locales without placeholders are only parsed once, when loaded. Replacements will be MineDown-escaped
+     *
+     * @param localeId     String identifier of the locale, corresponding to a key in the file
+     * @param replacements Ordered array of replacement strings to fill in placeholders with
+     * @return An {@link Optional} containing the formatted locale corresponding to the id, if it exists
+     */
+    public Optional<Component> getComponent(@NotNull String localeId, @NotNull String... replacements) {
+        return getTemplate(localeId).map(template -> template.component() != null ? template.component()
+                : format(template.render(replacements, true)).toComponent());
     }
 
     /**
@@ -106,21 +130,20 @@ public class Locales {
     }
 
     /**
-     * Apply placeholder replacements to a raw locale
-     *
-     * @param rawLocale    The raw, unparsed locale
-     * @param replacements Ordered array of replacement strings to fill in placeholders with
-     * @return the raw locale, with inserted placeholders
+     * Compile every locale into a {@link Template}, splitting out placeholders and parsing locales without any
      */
+    void compile() {
+        final Map<String, Template> compiled = new HashMap<>(locales.size() * 2);
+        locales.forEach((id, locale) -> compiled.put(id, Template.compile(StringEscapeUtils.unescapeJava(locale))));
+        this.templates = compiled;
+    }
+
     @NotNull
-    private String applyReplacements(@NotNull String rawLocale, @NotNull String... replacements) {
-        int replacementIndexer = 1;
-        for (String replacement : replacements) {
-            String replacementString = "%" + replacementIndexer + "%";
-            rawLocale = rawLocale.replace(replacementString, replacement);
-            replacementIndexer += 1;
+    private Optional<Template> getTemplate(@NotNull String localeId) {
+        if (templates == null) {
+            compile();
         }
-        return rawLocale;
+        return Optional.ofNullable(templates.get(localeId));
     }
 
     /**
@@ -131,7 +154,13 @@ public class Locales {
      */
     @NotNull
     public static String escapeText(@NotNull String string) {
-        final StringBuilder value = new StringBuilder();
+        final StringBuilder value = new StringBuilder(string.length() + 8);
+        appendEscaped(value, string);
+        return value.toString();
+    }
+
+    // Append a string to a builder, escaped from MineDown formatting
+    private static void appendEscaped(@NotNull StringBuilder value, @NotNull String string) {
         for (int i = 0; i < string.length(); ++i) {
             char c = string.charAt(i);
             boolean isEscape = c == '\\';
@@ -143,7 +172,64 @@ public class Locales {
 
             value.append(c);
         }
-        return value.toString();
+    }
+
+    /**
+     * A locale split into literal segments around its placeholders
+     *
+     * @param literals  The literal text before, between and after each placeholder
+     * @param slots     The zero-based replacement index of each placeholder
+     * @param length    The total length of the literal text
+     * @param component The parsed locale, if it has no placeholders
+     */
+    private record Template(@NotNull String[] literals, @NotNull int[] slots, int length,
+                            @Nullable Component component) {
+
+        @NotNull
+        private static Template compile(@NotNull String locale) {
+            final List<String> literals = new ArrayList<>();
+            final List<Integer> slots = new ArrayList<>();
+            final Matcher matcher = PLACEHOLDER_PATTERN.matcher(locale);
+            int start = 0;
+            while (matcher.find()) {
+                literals.add(locale.substring(start, matcher.start()));
+                slots.add(Integer.parseInt(matcher.group(1)) - 1);
+                start = matcher.end();
+            }
+            literals.add(locale.substring(start));
+
+            final int length = literals.stream().mapToInt(String::length).sum();
+            return new Template(
+                    literals.toArray(String[]::new),
+                    slots.stream().mapToInt(Integer::intValue).toArray(),
+                    length,
+                    slots.isEmpty() ? new MineDown(locale).toComponent() : null
+            );
+        }
+
+        // Fill in the placeholders; those without a replacement are left as-is
+        @NotNull
+        private String render(@NotNull String[] replacements, boolean escape) {
+            int size = length;
+            for (String replacement : replacements) {
+                size += replacement.length();
+            }
+            final StringBuilder builder = new StringBuilder(escape ? size + size / 8 : size);
+            builder.append(literals[0]);
+            for (int i = 0; i < slots.length; i++) {
+                final int slot = slots[i];
+                if (slot < 0 || slot >= replacements.length) {
+                    builder.append('%').append(slot + 1).append('%');
+                } else if (escape) {
+                    appendEscaped(builder, replacements[slot]);
+                } else {
+                    builder.append(replacements[slot]);
+                }
+                builder.append(literals[i + 1]);
+            }
+            return builder.toString();
+        }
+
     }
 
 }
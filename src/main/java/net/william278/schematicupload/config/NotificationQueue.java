@@ -0,0 +1,95 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.config;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.JoinConfiguration;
+import net.william278.schematicupload.SchematicUpload;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A queue of chat messages to send to players, filled from any thread and drained on the main thread
+ * <p>
+ * Messages are formatted by the thread that queues them, so draining only looks up players and sends. At most
+ * {@link #MAX_NOTIFICATIONS_PER_TICK} messages are drained each tick, and messages drained in the same tick for the
+ * same player are combined into one, with duplicates dropped.
+ */
+public class NotificationQueue {
+
+    public static final int MAX_NOTIFICATIONS_PER_TICK = 64;
+
+    private final SchematicUpload plugin;
+    private final ConcurrentLinkedQueue<Notification> queue = new ConcurrentLinkedQueue<>();
+
+    public NotificationQueue(@NotNull SchematicUpload plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Queue a message to be sent to a player, if they are online when it is drained
+     *
+     * @param player  The UUID of the player to notify
+     * @param message The formatted message
+     */
+    public void queue(@NotNull UUID player, @NotNull Component message) {
+        queue.offer(new Notification(player, message));
+    }
+
+    // Start draining the queue every tick
+    public void start() {
+        plugin.getServer().getScheduler().runTaskTimer(plugin, this::drain, 1L, 1L);
+    }
+
+    // Send up to a tick's budget of queued messages; must be called on the main thread
+    private void drain() {
+        if (queue.isEmpty()) {
+            return;
+        }
+
+        final Map<UUID, List<Component>> batches = new LinkedHashMap<>();
+        Notification notification;
+        for (int i = 0; i < MAX_NOTIFICATIONS_PER_TICK && (notification = queue.poll()) != null; i++) {
+            final List<Component> messages = batches.computeIfAbsent(notification.player(), p -> new ArrayList<>());
+            if (!messages.contains(notification.message())) {
+                messages.add(notification.message());
+            }
+        }
+
+        batches.forEach((uuid, messages) -> {
+            final Player player = plugin.getServer().getPlayer(uuid);
+            if (player != null) {
+                plugin.getAudience(player).sendMessage(messages.size() == 1
+                        ? messages.get(0) : Component.join(JoinConfiguration.newlines(), messages));
+            }
+        });
+    }
+
+    private record Notification(@NotNull UUID player, @NotNull Component message) {
+    }
+
+}
@@ -24,6 +24,10 @@ import de.exlll.configlib.Configuration;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import net.william278.schematicupload.store.FileSchematicStore;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @Getter
 @Configuration
@@ -43,6 +47,10 @@ public final class Settings {
     @Comment("Whether to automatically check for plugin updates on startup")
     private boolean checkForUpdates = true;
 
+    @Comment({"Whether to emit Java Flight Recorder events for uploads, conversions, listings, downloads,",
+            "searches, previews, cache loads and processing stages, so they appear in recordings of the server"})
+    private boolean flightRecorderEvents = false;
+
     @Comment({"Specify a custom directory where schematics should go.",
             "If WorldEdit is installed, the WE schematics directory will be used instead of this"})
     private String customSchematicDirectory = "schematics";
@@ -59,6 +67,171 @@ public final class Settings {
 
         @Comment("Port to use for the web server (e.g., 8000)")
         private int port = 2780;
+
+        @Comment({"Whether to handle requests on virtual threads, rather than a fixed pool of platform threads.",
+                "Recommended when many clients upload at once, as uploads and conversions block whilst running"})
+        private boolean useVirtualThreads = false;
+
+        @Comment("Maximum and minimum number of threads in the web server thread pool")
+        private int maxThreads = 32;
+        private int minThreads = 8;
+
+        @Comment("Time (in milliseconds) an idle thread in the pool is kept before being stopped")
+        private int threadIdleTimeout = 60000;
+
+        @Comment("Maximum number of jobs waiting for a thread, or 0 for no limit")
+        private int maxQueuedJobs = 1024;
+
+        @Comment("Number of threads accepting and selecting connections, or -1 to pick based on the CPU count")
+        private int acceptors = -1;
+        private int selectors = -1;
+
+        @Comment("Time (in milliseconds) an idle connection is kept open before being closed")
+        private long idleTimeout = 30000L;
+
+        @Comment("Number of pending connections the operating system should queue, or 0 for its default")
+        private int acceptQueueSize = 0;
+
+        @Comment("Size (in bytes) of the response buffer used before a response is committed")
+        private int outputBufferSize = 32768;
+
+        @Comment({"Whether to accept cleartext HTTP/2 (h2c) alongside HTTP/1.1 on the port above.",
+                "Browsers only use HTTP/2 over TLS, but h2c is useful behind a reverse proxy"})
+        private boolean http2Cleartext = false;
+
+        @Comment("Whether to return the time taken by each phase of a request in the Server-Timing header")
+        private boolean serverTimingHeader = true;
+
+        @Comment("Requests taking longer than this (in milliseconds) are logged with their timings, or 0 to disable")
+        private long slowRequestThreshold = 5000L;
+
+        @Comment({"Whether to serve metrics in the Prometheus text format at /metrics.",
+                "Metrics are only served to clients connecting from this machine"})
+        private boolean metricsEnabled = false;
+
+        @Comment({"Maximum number of list pages streaming catalogue changes at once, or 0 to disable the stream.",
+                "Each open page holds a connection, but no thread, whilst waiting for changes"})
+        private int maxEventStreams = 256;
+
+        @Comment({"Maximum number of schematics, and their total size (in bytes), in one ZIP bundle download.",
+                "Bundles are streamed as they are read, so their size does not affect memory use"})
+        private int maxBundleEntries = 100;
+        private long maxBundleSize = 268435456L;
+
+        @Comment("Settings for throttling clients by IP address")
+        private ThrottleSettings throttleSettings = new ThrottleSettings();
+
+        @Getter
+        @Configuration
+        @NoArgsConstructor(access = AccessLevel.PRIVATE)
+        public static class ThrottleSettings {
+            @Comment("Whether to throttle connections, requests and uploads from each IP address")
+            private boolean enabled = true;
+
+            @Comment("Maximum number of open connections from one IP address")
+            private int maxConnectionsPerIp = 16;
+
+            @Comment({"IP addresses of reverse proxies in front of the web server (e.g., 127.0.0.1).",
+                    "Requests through them are throttled by the client address in their X-Forwarded-For header,",
+                    "and connections from them are not limited. Without this, every client of a proxy shares its limits"})
+            private List<String> trustedProxies = new ArrayList<>();
+
+            @Comment("Sustained requests per second allowed from one IP address, and how many may burst at once")
+            private double requestsPerSecond = 20d;
+            private int requestBurst = 60;
+
+            @Comment("Sustained uploads per minute allowed from one IP address, and how many may burst at once")
+            private double uploadsPerMinute = 6d;
+            private int uploadBurst = 3;
+
+            @Comment({"Whether uploads must send their code in the X-Upload-Code header (or 'code' query parameter),",
+                    "so that uploads without a valid code are refused before the file is received. A code that is sent",
+                    "is always checked. Customised upload pages must send the header, or have this disabled"})
+            private boolean requireCodeHeader = true;
+
+            @Comment("Bytes allowed in an upload request on top of the maximum file size, for the rest of the form")
+            private long maxFormOverhead = 16384L;
+        }
+
+        @Comment("Settings for refusing requests when the web server is overloaded")
+        private LoadSheddingSettings loadSheddingSettings = new LoadSheddingSettings();
+
+        @Getter
+        @Configuration
+        @NoArgsConstructor(access = AccessLevel.PRIVATE)
+        public static class LoadSheddingSettings {
+            @Comment("Whether to refuse requests with a 503 when too many are in progress")
+            private boolean enabled = true;
+
+            @Comment({"Maximum number of uploads, list API requests, downloads and static file requests handled at once.",
+                    "Each limit is lowered automatically while requests are queueing, and recovers afterwards.",
+                    "Downloads are limited separately, as bandwidth shaping can hold them open for some time"})
+            private int uploadConcurrency = 8;
+            private int listConcurrency = 16;
+            private int downloadConcurrency = 16;
+            private int staticConcurrency = 32;
+
+            @Comment("Maximum number of requests of each kind waiting for a slot before more are refused")
+            private int queueSize = 16;
+
+            @Comment("Maximum time (in milliseconds) a request may wait for a slot before being refused")
+            private long maxQueueWait = 1000L;
+
+            @Comment("Queueing delay (in milliseconds) above which a standing queue is assumed and the limit lowered")
+            private long targetQueueDelay = 50L;
+
+            @Comment("Interval (in milliseconds) over which queueing delay is measured before adapting the limit")
+            private long adaptInterval = 500L;
+
+            @Comment("Seconds clients are asked to wait before retrying a refused request")
+            private int retryAfterSeconds = 5;
+        }
+
+        @Comment("Settings for limiting the bandwidth used by downloads, so they do not starve game traffic")
+        private BandwidthSettings bandwidthSettings = new BandwidthSettings();
+
+        @Getter
+        @Configuration
+        @NoArgsConstructor(access = AccessLevel.PRIVATE)
+        public static class BandwidthSettings {
+            @Comment({"Bytes per second all downloads may use together, and that downloads to one IP address may use.",
+                    "Concurrent downloads share the bandwidth evenly. Set to 0 for no limit"})
+            private long globalBytesPerSecond = 8388608L;
+            private long perIpBytesPerSecond = 2097152L;
+
+            @Comment("Bytes a download may send at full speed before being slowed to the limits above")
+            private long burstBytes = 1048576L;
+
+            @Comment("Downloads no larger than this many bytes are never slowed")
+            private long smallFileThreshold = 262144L;
+        }
+
+        @Comment("Settings for serving HTTPS, with HTTP/2 negotiated by ALPN")
+        private TlsSettings tlsSettings = new TlsSettings();
+
+        @Getter
+        @Configuration
+        @NoArgsConstructor(access = AccessLevel.PRIVATE)
+        public static class TlsSettings {
+            @Comment("Whether to serve HTTPS on a second port. Remember to update the URL above")
+            private boolean enabled = false;
+
+            @Comment("Port to use for HTTPS")
+            private int port = 2781;
+
+            @Comment("Path to the keystore holding the certificate, relative to the plugin folder")
+            private String keystorePath = "keystore.p12";
+
+            @Comment("Type of the keystore (e.g., PKCS12, JKS)")
+            private String keystoreType = "PKCS12";
+
+            @Comment("Password of the keystore, and of the key within it if different")
+            private String keystorePassword = "";
+            private String keyManagerPassword = "";
+
+            @Comment("Whether to offer HTTP/2 to clients that support it")
+            private boolean http2 = true;
+        }
     }
 
     @Comment("Settings for the built-in web server")
@@ -74,6 +247,115 @@ public final class Settings {
         private long periodMinutes = 60L;
         @Comment("Maximum number of schematics that can be uploaded per period")
         private int schematicsPerPeriod = 3;
+        @Comment({"Maximum number of schematics, and their total size (in bytes), each player may have stored.",
+                "Set to 0 for no limit"})
+        private int maxStoredSchematics = 0;
+        private long maxStoredBytes = 0L;
+    }
+
+    @Comment("Settings for where uploaded schematics are stored")
+    private StorageSettings storageSettings = new StorageSettings();
+
+    @Getter
+    @Configuration
+    @NoArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class StorageSettings {
+        @Comment({"Storage backend to use (FILE or S3).",
+                "With S3, the schematic directory is used as a local cache so WorldEdit can still load schematics"})
+        private StorageType type = StorageType.FILE;
+
+        @Comment({"How schematic files are laid out on disk (FLAT or SHARDED).",
+                "SHARDED fans files out into hashed subdirectories (ab/cd/<name>) for very large catalogues.",
+                "After changing this, restart the server and use /schematicupload migrate to move existing files"})
+        private FileSchematicStore.Layout layout = FileSchematicStore.Layout.FLAT;
+
+        @Comment("Maximum size (in bytes) of the local schematic cache when using a remote storage backend")
+        private long cacheSize = 1073741824L;
+
+        @Comment({"Maximum size (in bytes) of the in-memory cache of frequently downloaded schematics.",
+                "The cache is held off-heap, so counts towards -XX:MaxDirectMemorySize. Set to 0 to disable"})
+        private long memoryCacheSize = 67108864L;
+
+        @Comment("Maximum size (in bytes) of a single schematic to keep in the in-memory cache")
+        private long memoryCacheMaxEntrySize = 4194304L;
+
+        @Comment("Settings for S3-compatible object storage (e.g., AWS S3, MinIO)")
+        private S3Settings s3Settings = new S3Settings();
+
+        @Comment("Settings for packing rarely accessed schematics into cold-storage archive files")
+        private ArchiveSettings archiveSettings = new ArchiveSettings();
+
+        public enum StorageType {
+            FILE,
+            S3
+        }
+
+        @Getter
+        @Configuration
+        @NoArgsConstructor(access = AccessLevel.PRIVATE)
+        public static class S3Settings {
+            @Comment("Endpoint URL of the S3 API (e.g., https://s3.amazonaws.com or http://localhost:9000)")
+            private String endpoint = "https://s3.amazonaws.com";
+
+            @Comment("Region of the bucket (MinIO uses us-east-1 by default)")
+            private String region = "us-east-1";
+
+            @Comment("Name of the bucket to store schematics in")
+            private String bucket = "schematics";
+
+            @Comment("Prefix to store schematic keys under within the bucket")
+            private String keyPrefix = "schematics/";
+
+            @Comment("Access key ID to authenticate with")
+            private String accessKey = "";
+
+            @Comment("Secret access key to authenticate with")
+            private String secretKey = "";
+
+            @Comment("Whether to use path-style (endpoint/bucket/key) rather than virtual-hosted-style requests")
+            private boolean pathStyle = true;
+        }
+
+        @Getter
+        @Configuration
+        @NoArgsConstructor(access = AccessLevel.PRIVATE)
+        public static class ArchiveSettings {
+            @Comment({"Whether to periodically pack schematics that haven't been touched for a while into archive files.",
+                    "Archived schematics can still be listed and downloaded, and are restored when loaded in-game"})
+            private boolean enabled = false;
+
+            @Comment("Number of days a schematic must go untouched before it is archived")
+            private int archiveAfterDays = 30;
+
+            @Comment("How often (in hours) to check for schematics to archive")
+            private int checkIntervalHours = 24;
+
+            @Comment({"Percentage of an archive file that must be taken up by schematics since restored or removed",
+                    "before it is rewritten without them, freeing disk space and memory, or 0 to never rewrite them"})
+            private int compactUnusedPercent = 50;
+        }
+    }
+
+    @Comment("Settings for the pipeline that derives hashes, metadata and previews from schematics in the background")
+    private PipelineSettings pipelineSettings = new PipelineSettings();
+
+    @Getter
+    @Configuration
+    @NoArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class PipelineSettings {
+        @Comment("Number of threads processing schematics. Uploads are always processed before backfilled schematics")
+        private int threads = 2;
+
+        @Comment({"Maximum number of schematics waiting to be processed. Changes seen once the queue is full are left",
+                "for the next backfill; uploads are always queued"})
+        private int maxQueuedJobs = 1024;
+
+        @Comment("Number of times to retry a stage that fails, and the delay (in milliseconds) before the first retry")
+        private int maxRetries = 3;
+        private long retryDelay = 5000L;
+
+        @Comment("Whether to read small schematics into the memory cache once processed, ready for previews")
+        private boolean warmCache = true;
     }
 
 }
@@ -0,0 +1,183 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.metrics;
+
+import jdk.jfr.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Java Flight Recorder events for the work SchematicUpload does, so that it can be correlated with tick lag and GC
+ * pauses in a recording
+ * <p>
+ * The events are unregistered until {@link #register()} is called, so creating, beginning and committing them
+ * costs next to nothing when disabled.
+ */
+public final class FlightRecorderEvents {
+
+    private static final String CATEGORY = "SchematicUpload";
+    private static final List<Class<? extends Event>> EVENTS = List.of(
+            Upload.class, Conversion.class, Listing.class, Download.class, Preview.class, Bundle.class,
+            CacheLoad.class, ProcessingStage.class, Search.class
+    );
+
+    private FlightRecorderEvents() {
+    }
+
+    // Register the events with the flight recorder, so that they are recorded
+    public static void register() {
+        EVENTS.forEach(FlightRecorder::register);
+    }
+
+    // Get the format of a schematic from its file name
+    @NotNull
+    public static String getFormat(@NotNull String fileName) {
+        final int extension = fileName.lastIndexOf('.');
+        return extension < 0 ? "unknown" : fileName.substring(extension + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    // Describe the outcome of a request from its response status
+    @NotNull
+    public static String getOutcome(int status) {
+        if (status >= 500) {
+            return "error";
+        }
+        return status >= 400 ? "rejected" : "success";
+    }
+
+    // Fields shared by events about a single schematic
+    @Category(CATEGORY)
+    public abstract static class SchematicEvent extends Event {
+        @Label("File Name")
+        public String fileName;
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+        @Label("Format")
+        public String format;
+        @Label("Outcome")
+        public String outcome;
+    }
+
+    @Name("net.william278.schematicupload.Upload")
+    @Label("Schematic Upload")
+    @Description("A schematic uploaded through the web server")
+    @Threshold("10 ms")
+    @Registered(false)
+    public static final class Upload extends SchematicEvent {
+        @Label("Player")
+        public String player;
+    }
+
+    @Name("net.william278.schematicupload.Conversion")
+    @Label("Schematic Conversion")
+    @Description("A Litematica schematic converted to WorldEdit schematics")
+    @Threshold("10 ms")
+    @Registered(false)
+    public static final class Conversion extends SchematicEvent {
+        @Label("Player")
+        public String player;
+    }
+
+    @Name("net.william278.schematicupload.Listing")
+    @Label("Schematic Listing")
+    @Description("The list of schematics served through the web server")
+    @Category(CATEGORY)
+    @Threshold("5 ms")
+    @Registered(false)
+    public static final class Listing extends Event {
+        @Label("Schematics")
+        public int count;
+        @Label("Outcome")
+        public String outcome;
+    }
+
+    @Name("net.william278.schematicupload.Search")
+    @Label("Schematic Search")
+    @Description("A search of the schematics served through the web server")
+    @Category(CATEGORY)
+    @Threshold("5 ms")
+    @Registered(false)
+    public static final class Search extends Event {
+        @Label("Query")
+        public String query;
+        @Label("Matches")
+        public int count;
+        @Label("Outcome")
+        public String outcome;
+    }
+
+    @Name("net.william278.schematicupload.Bundle")
+    @Label("Schematic Bundle")
+    @Description("A ZIP bundle of schematics streamed through the web server")
+    @Category(CATEGORY)
+    @Threshold("10 ms")
+    @Registered(false)
+    public static final class Bundle extends Event {
+        @Label("Schematics")
+        public int count;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Outcome")
+        public String outcome;
+    }
+
+    @Name("net.william278.schematicupload.Download")
+    @Label("Schematic Download")
+    @Description("A schematic downloaded through the web server")
+    @Threshold("10 ms")
+    @Registered(false)
+    public static final class Download extends SchematicEvent {
+    }
+
+    @Name("net.william278.schematicupload.Preview")
+    @Label("Schematic Preview")
+    @Description("A schematic fetched by the list page to render a preview")
+    @Threshold("10 ms")
+    @Registered(false)
+    public static final class Preview extends SchematicEvent {
+    }
+
+    @Name("net.william278.schematicupload.CacheLoad")
+    @Label("Schematic Cache Load")
+    @Description("A schematic read into the in-memory cache")
+    @Threshold("1 ms")
+    @Registered(false)
+    public static final class CacheLoad extends SchematicEvent {
+    }
+
+    @Name("net.william278.schematicupload.ProcessingStage")
+    @Label("Schematic Processing Stage")
+    @Description("A stage of the background pipeline run against a schematic")
+    @Threshold("5 ms")
+    @Registered(false)
+    public static final class ProcessingStage extends SchematicEvent {
+        @Label("Stage")
+        public String stage;
+        @Label("Priority")
+        public String priority;
+        @Label("Attempt")
+        public int attempt;
+    }
+
+}
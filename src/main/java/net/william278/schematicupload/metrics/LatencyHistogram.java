@@ -0,0 +1,89 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets, recorded without allocating or locking
+ * <p>
+ * Each bucket is a {@link LongAdder}, which stripes its count across cells under contention, so recording from
+ * many request threads at once does not contend on a single counter.
+ */
+public final class LatencyHistogram {
+
+    // Upper bounds of each bucket, in seconds, as exposed to Prometheus
+    static final double[] BUCKET_BOUNDS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // One counter per bucket, plus a final counter for values above the last bound
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Append this histogram in Prometheus text format
+     *
+     * @param builder The builder to append to
+     * @param name    The metric name
+     * @param labels  Labels identifying this histogram, formatted as {@code key="value"}, or empty
+     */
+    void write(@NotNull StringBuilder builder, @NotNull String name, @NotNull String labels) {
+        final String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulative += buckets[i].sum();
+            builder.append(name).append("_bucket{").append(prefix).append("le=\"").append(BUCKET_BOUNDS[i])
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += buckets[BUCKET_BOUNDS.length].sum();
+        builder.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        final String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+        builder.append(name).append("_sum").append(braced).append(' ')
+                .append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+        builder.append(name).append("_count").append(braced).append(' ').append(cumulative).append('\n');
+    }
+
+}
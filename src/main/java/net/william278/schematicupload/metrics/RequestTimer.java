@@ -0,0 +1,115 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.metrics;
+
+import jakarta.servlet.ServletRequest;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Times the phases of handling a single request, for the {@code Server-Timing} header and the slow-request log
+ * <p>
+ * Each {@link #mark(String)} ends the current phase and starts the next. A timer is created for every request by
+ * the timing filter and stored as a request attribute; use {@link #of(ServletRequest)} to get it.
+ */
+public final class RequestTimer {
+
+    public static final String ATTRIBUTE = RequestTimer.class.getName();
+    private static final int MAX_PHASES = 12;
+
+    @Getter
+    private final String id;
+    private final long start;
+    private long lastMark;
+    private final String[] phases = new String[MAX_PHASES];
+    private final long[] durations = new long[MAX_PHASES];
+    private int count;
+
+    public RequestTimer(@NotNull String id) {
+        this.id = id;
+        this.start = System.nanoTime();
+        this.lastMark = start;
+    }
+
+    /**
+     * Get the timer for a request, or a new one if the request is not being timed
+     *
+     * @param request The request
+     * @return The request's timer
+     */
+    @NotNull
+    public static RequestTimer of(@NotNull ServletRequest request) {
+        final Object timer = request.getAttribute(ATTRIBUTE);
+        return timer instanceof RequestTimer requestTimer ? requestTimer : new RequestTimer("-");
+    }
+
+    /**
+     * End the current phase, and start the next
+     *
+     * @param phase The name of the phase that ended
+     * @return The duration of the phase, in nanoseconds
+     */
+    public long mark(@NotNull String phase) {
+        final long now = System.nanoTime();
+        final long duration = now - lastMark;
+        lastMark = now;
+        if (count < MAX_PHASES) {
+            phases[count] = phase;
+            durations[count++] = duration;
+        }
+        return duration;
+    }
+
+    // Nanoseconds since the request started
+    public long getElapsed() {
+        return System.nanoTime() - start;
+    }
+
+    // Format the phases as a Server-Timing header value, with durations in milliseconds
+    @NotNull
+    public String toServerTiming() {
+        final StringBuilder builder = new StringBuilder(32 + count * 24);
+        for (int i = 0; i < count; i++) {
+            builder.append(phases[i]).append(";dur=").append(toMillis(durations[i])).append(", ");
+        }
+        return builder.append("total;dur=").append(toMillis(getElapsed())).toString();
+    }
+
+    // Format the phases as space-separated key=value pairs, with durations in milliseconds
+    @NotNull
+    public String toLogString() {
+        final StringBuilder builder = new StringBuilder(count * 24);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(phases[i]).append("_ms=").append(toMillis(durations[i]));
+        }
+        return builder.toString();
+    }
+
+    @NotNull
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000d);
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Telemetry recorded by the web server: request latency per endpoint, latency of each upload pipeline stage,
+ * response counts and bytes transferred
+ * <p>
+ * Everything is held in {@link LongAdder}s indexed by enum ordinal, so recording is lock-free and allocation-free.
+ */
+public class WebMetrics {
+
+    static final String PREFIX = "schematicupload_";
+
+    private final LatencyHistogram[] requestDurations = histograms(Endpoint.values().length);
+    private final LatencyHistogram[] stageDurations = histograms(Stage.values().length);
+    private final LongAdder[][] responses = new LongAdder[Endpoint.values().length][5];
+    private final LongAdder activeRequests = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+
+    public WebMetrics() {
+        for (LongAdder[] statuses : responses) {
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+        }
+    }
+
+    public void requestStarted() {
+        activeRequests.increment();
+    }
+
+    public void requestFinished(@NotNull Endpoint endpoint, int status, long nanos) {
+        activeRequests.decrement();
+        requestDurations[endpoint.ordinal()].record(nanos);
+        responses[endpoint.ordinal()][Math.min(4, Math.max(0, status / 100 - 1))].increment();
+    }
+
+    // Record the time taken by an upload stage
+    public void recordStage(@NotNull Stage stage, long nanos) {
+        stageDurations[stage.ordinal()].record(nanos);
+    }
+
+    public void addUploadedBytes(long bytes) {
+        uploadedBytes.add(bytes);
+    }
+
+    public void addDownloadedBytes(long bytes) {
+        downloadedBytes.add(bytes);
+    }
+
+    // Append these metrics in Prometheus text format
+    public void write(@NotNull StringBuilder builder) {
+        writeHeader(builder, "request_duration_seconds", "histogram", "Time taken to handle requests");
+        for (Endpoint endpoint : Endpoint.values()) {
+            requestDurations[endpoint.ordinal()].write(builder, PREFIX + "request_duration_seconds",
+                    "endpoint=\"" + endpoint.getId() + "\"");
+        }
+
+        writeHeader(builder, "upload_stage_duration_seconds", "histogram", "Time taken by each stage of uploads");
+        for (Stage stage : Stage.values()) {
+            stageDurations[stage.ordinal()].write(builder, PREFIX + "upload_stage_duration_seconds",
+                    "stage=\"" + stage.getId() + "\"");
+        }
+
+        writeHeader(builder, "responses_total", "counter", "Responses sent, by endpoint and status class");
+        for (Endpoint endpoint : Endpoint.values()) {
+            for (int i = 0; i < 5; i++) {
+                writeValue(builder, "responses_total", "endpoint=\"" + endpoint.getId()
+                        + "\",status=\"" + (i + 1) + "xx\"", responses[endpoint.ordinal()][i].sum());
+            }
+        }
+
+        writeHeader(builder, "requests_active", "gauge", "Requests currently being handled");
+        writeValue(builder, "requests_active", "", activeRequests.sum());
+        writeHeader(builder, "uploaded_bytes_total", "counter", "Bytes of schematics received in uploads");
+        writeValue(builder, "uploaded_bytes_total", "", uploadedBytes.sum());
+        writeHeader(builder, "downloaded_bytes_total", "counter", "Bytes of schematics sent in downloads");
+        writeValue(builder, "downloaded_bytes_total", "", downloadedBytes.sum());
+    }
+
+    public static void writeHeader(@NotNull StringBuilder builder, @NotNull String name,
+                                   @NotNull String type, @NotNull String help) {
+        builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    public static void writeValue(@NotNull StringBuilder builder, @NotNull String name,
+                                  @NotNull String labels, double value) {
+        builder.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            builder.append((long) value);
+        } else {
+            builder.append(value);
+        }
+        builder.append('\n');
+    }
+
+    @NotNull
+    private static LatencyHistogram[] histograms(int count) {
+        final LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * A group of requests that metrics are recorded for
+     */
+    public enum Endpoint {
+        UPLOAD,
+        LIST,
+        DOWNLOAD,
+        METRICS,
+        STATIC;
+
+        @NotNull
+        public static Endpoint of(@NotNull String path) {
+            if (path.equals("/api")) {
+                return UPLOAD;
+            }
+            if (path.startsWith("/api/list/download/") || path.startsWith("/api/list/link/")
+                    || path.equals("/api/list/bundle")) {
+                return DOWNLOAD;
+            }
+            if (path.startsWith("/api/")) {
+                return LIST;
+            }
+            if (path.equals("/metrics")) {
+                return METRICS;
+            }
+            return STATIC;
+        }
+
+        @NotNull
+        public String getId() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * A stage of handling an upload
+     */
+    public enum Stage {
+        RECEIVE,
+        VALIDATE,
+        CONVERT,
+        WRITE,
+        NOTIFY;
+
+        @NotNull
+        public String getId() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.store.SchematicCatalogue;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+
+// Records the hash, format and dimensions of a schematic in the catalogue
+final class CatalogueStage implements Stage {
+
+    static final String NAME = "catalogue";
+    private final SchematicCatalogue catalogue;
+
+    CatalogueStage(@NotNull SchematicCatalogue catalogue) {
+        this.catalogue = catalogue;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @NotNull
+    @Override
+    public List<String> getDependencies() {
+        return List.of(MetadataStage.NAME);
+    }
+
+    @Override
+    public boolean isComplete(@NotNull Job job) {
+        final SchematicCatalogue.Entry entry = catalogue.describe(job.getStat());
+        return entry.isDerived() && entry.hash().equals(job.getHash()) && entry.format() == job.getFormat()
+               && Objects.equals(entry.dimensions(), job.getDimensions());
+    }
+
+    @Override
+    public void process(@NotNull Job job) throws IOException {
+        catalogue.recordDerived(job.getStat(), Objects.requireNonNull(job.getHash()),
+                Objects.requireNonNull(job.getFormat()), job.getDimensions());
+    }
+
+}
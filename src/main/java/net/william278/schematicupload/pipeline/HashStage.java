@@ -0,0 +1,69 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.store.SchematicCatalogue;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Hashes the contents of a schematic with SHA-256, unless it is catalogued as it is now
+final class HashStage implements Stage {
+
+    static final String NAME = "hash";
+    private final SchematicCatalogue catalogue;
+
+    HashStage(@NotNull SchematicCatalogue catalogue) {
+        this.catalogue = catalogue;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isComplete(@NotNull Job job) {
+        final String hash = catalogue.describe(job.getStat()).hash();
+        job.setHash(hash);
+        return hash != null;
+    }
+
+    @Override
+    public void process(@NotNull Job job) throws Exception {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (InputStream input = new DigestInputStream(job.open(), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+        job.setHash(HexFormat.of().formatHex(digest.digest()));
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import lombok.Getter;
+import lombok.Setter;
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicStore;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A schematic being run through the {@link ProcessingPipeline}, carrying what its stages derive from it to the
+ * stages that follow
+ */
+@Getter
+public class Job {
+
+    private final SchematicStore.SchematicStat stat;
+    private final ProcessingPipeline.Priority priority;
+    private final SchematicStore store;
+    @Setter
+    @Nullable
+    private String hash;
+    @Setter
+    @Nullable
+    private SchematicCatalogue.Format format;
+    @Setter
+    @Nullable
+    private SchematicCatalogue.Dimensions dimensions;
+
+    Job(@NotNull SchematicStore.SchematicStat stat, @NotNull ProcessingPipeline.Priority priority,
+        @NotNull SchematicStore store) {
+        this.stat = stat;
+        this.priority = priority;
+        this.store = store;
+    }
+
+    @NotNull
+    public String getName() {
+        return stat.name();
+    }
+
+    // Open a stream of the schematic contents
+    @NotNull
+    public InputStream open() throws IOException {
+        return store.get(stat.name());
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.util.NbtReader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+// Picks the format and dimensions of a schematic out of its NBT. The contents are only read if they have changed
+// since the schematic was last catalogued, going by their hash, so a file that was only touched isn't parsed again
+final class MetadataStage implements Stage {
+
+    static final String NAME = "metadata";
+    private final SchematicCatalogue catalogue;
+
+    MetadataStage(@NotNull SchematicCatalogue catalogue) {
+        this.catalogue = catalogue;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @NotNull
+    @Override
+    public List<String> getDependencies() {
+        return List.of(HashStage.NAME);
+    }
+
+    @Override
+    public boolean isComplete(@NotNull Job job) {
+        final Optional<SchematicCatalogue.Entry> entry = catalogue.get(job.getName());
+        if (entry.isEmpty() || !entry.get().isDerived() || !entry.get().hash().equals(job.getHash())) {
+            return false;
+        }
+        job.setFormat(entry.get().format());
+        job.setDimensions(entry.get().dimensions());
+        return true;
+    }
+
+    @Override
+    public void process(@NotNull Job job) throws IOException {
+        SchematicCatalogue.Format format = SchematicCatalogue.Format.of(job.getName());
+        SchematicCatalogue.Dimensions dimensions = null;
+        try (InputStream input = job.open()) {
+            final Map<String, Object> values;
+            try {
+                values = NbtReader.readValues(new GZIPInputStream(input, 8192), 3);
+            } catch (IOException e) {
+                // Not valid NBT, so only the format guessed from the file name is known
+                job.setFormat(format);
+                return;
+            }
+            if (values.containsKey("Metadata.EnclosingSize.x")) {
+                format = SchematicCatalogue.Format.LITEMATIC;
+                dimensions = getDimensions(values, "Metadata.EnclosingSize.", "x", "y", "z");
+            } else if (values.containsKey("Schematic.Width")) {
+                format = SchematicCatalogue.Format.SPONGE;
+                dimensions = getDimensions(values, "Schematic.", "Width", "Height", "Length");
+            } else if (values.containsKey("Width")) {
+                format = values.containsKey("Materials")
+                        ? SchematicCatalogue.Format.LEGACY : SchematicCatalogue.Format.SPONGE;
+                dimensions = getDimensions(values, "", "Width", "Height", "Length");
+            }
+        }
+        job.setFormat(format);
+        job.setDimensions(dimensions);
+    }
+
+    // Get dimensions from NBT values; shorts are unsigned in schematics
+    @Nullable
+    private static SchematicCatalogue.Dimensions getDimensions(@NotNull Map<String, Object> values,
+                                                               @NotNull String prefix, @NotNull String x,
+                                                               @NotNull String y, @NotNull String z) {
+        final int[] sizes = new int[3];
+        final String[] keys = {x, y, z};
+        for (int i = 0; i < keys.length; i++) {
+            final Object value = values.get(prefix + keys[i]);
+            if (value instanceof Short shortValue) {
+                sizes[i] = Short.toUnsignedInt(shortValue);
+            } else if (value instanceof Number number) {
+                sizes[i] = Math.abs(number.intValue());
+            } else {
+                return null;
+            }
+        }
+        return new SchematicCatalogue.Dimensions(sizes[0], sizes[1], sizes[2]);
+    }
+
+}
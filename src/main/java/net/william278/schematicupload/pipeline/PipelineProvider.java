@@ -0,0 +1,80 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+public interface PipelineProvider {
+
+    @Nullable
+    ProcessingPipeline getProcessingPipeline();
+
+    void setProcessingPipeline(@Nullable ProcessingPipeline processingPipeline);
+
+    // Start the pipeline that derives metadata from schematics, processing those that change on disk as they do
+    default void loadProcessingPipeline() {
+        final Settings.PipelineSettings settings = getPlugin().getSettings().getPipelineSettings();
+        final List<Stage> stages = new ArrayList<>();
+        final SchematicCatalogue catalogue = getPlugin().getSchematicCatalogue();
+        if (catalogue != null) {
+            stages.add(new HashStage(catalogue));
+            stages.add(new MetadataStage(catalogue));
+            stages.add(new CatalogueStage(catalogue));
+            stages.add(new SearchStage(getPlugin().getSearchIndex(), catalogue));
+        }
+        if (settings.isWarmCache()) {
+            stages.add(new PreviewStage(getPlugin().getSchematicCache()));
+        }
+
+        try {
+            final ProcessingPipeline pipeline = new ProcessingPipeline(
+                    stages, getPlugin().getSchematicStore(), settings, getPlugin().getLogger()
+            );
+            getPlugin().getSchematicIndex().addListener(change -> {
+                if (change.type() != SchematicIndex.Change.Type.REMOVED) {
+                    pipeline.submit(change.stat().name(), ProcessingPipeline.Priority.CHANGE);
+                }
+            });
+            setProcessingPipeline(pipeline);
+        } catch (Throwable e) {
+            getPlugin().log(Level.SEVERE, "Failed to start the schematic processing pipeline", e);
+        }
+    }
+
+    default void endProcessingPipeline() {
+        final ProcessingPipeline pipeline = getProcessingPipeline();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @NotNull
+    SchematicUpload getPlugin();
+
+}
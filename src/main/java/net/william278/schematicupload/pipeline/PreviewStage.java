@@ -0,0 +1,57 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.store.SchematicCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads a schematic small enough to cache into the memory cache, so the list page's preview of it is served
+// without touching the store
+final class PreviewStage implements Stage {
+
+    static final String NAME = "preview";
+    private final SchematicCache cache;
+
+    PreviewStage(@NotNull SchematicCache cache) {
+        this.cache = cache;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isComplete(@NotNull Job job) {
+        return !cache.isCacheable(job.getStat().size()) || cache.contains(job.getStat());
+    }
+
+    @Override
+    public void process(@NotNull Job job) throws IOException {
+        try (InputStream input = job.open()) {
+            cache.load(job.getStat(), input);
+        }
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.metrics.FlightRecorderEvents;
+import net.william278.schematicupload.store.SchematicStore;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs schematics through a series of named {@link Stage}s in the background, off the request path
+ * <p>
+ * Stages are run in an order that respects their dependencies. Jobs are queued by {@link Priority}, so a
+ * schematic that has just been uploaded is processed before one that has changed on disk, and both before those
+ * being backfilled; a schematic already waiting is only queued once, at the highest priority it was submitted at.
+ * The queue is bounded: changes seen whilst it is full are dropped, to be picked up by the next backfill, and
+ * backfills wait for room. A stage that fails is retried after a growing delay, resuming at that stage.
+ */
+public class ProcessingPipeline implements Closeable {
+
+    private final List<Stage> stages;
+    private final SchematicStore store;
+    private final Settings.PipelineSettings settings;
+    private final Logger logger;
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    // Jobs waiting in the queue by schematic name, guarded by this pipeline
+    private final Map<String, Task> queued = new HashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "SchematicUpload-Pipeline-Retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean closed;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder stagesRun = new LongAdder();
+    private final LongAdder stagesSkipped = new LongAdder();
+
+    public ProcessingPipeline(@NotNull Collection<Stage> stages, @NotNull SchematicStore store,
+                              @NotNull Settings.PipelineSettings settings, @NotNull Logger logger) {
+        this.stages = order(stages);
+        this.store = store;
+        this.settings = settings;
+        this.logger = logger;
+        for (int i = 0; i < Math.max(1, settings.getThreads()); i++) {
+            final Thread thread = new Thread(this::work, "SchematicUpload-Pipeline-" + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            workers.add(thread);
+        }
+    }
+
+    /**
+     * Submit a schematic to be processed. Backfills wait for room in the queue, so should not be submitted from
+     * the main thread
+     *
+     * @param name     The schematic file name
+     * @param priority The priority to process it at
+     * @return A future completed once the schematic has been through every stage, or completed exceptionally if a
+     * stage failed too many times. A change dropped because the queue is full is completed straight away
+     */
+    @NotNull
+    public CompletableFuture<Void> submit(@NotNull String name, @NotNull Priority priority) {
+        synchronized (this) {
+            final Task waiting = queued.get(name);
+            if (waiting != null && waiting.priority.compareTo(priority) <= 0) {
+                return waiting.future;
+            }
+            if (waiting != null && queue.remove(waiting)) {
+                // Requeue the waiting job at the higher priority
+                final Task task = new Task(name, priority, waiting.attempt, waiting.job, waiting.future,
+                        sequence.getAndIncrement());
+                task.stage = waiting.stage;
+                queued.put(name, task);
+                queue.add(task);
+                return task.future;
+            }
+
+            while (!closed && priority == Priority.BACKFILL && queued.size() >= settings.getMaxQueuedJobs()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return CompletableFuture.failedFuture(new CancellationException("Interrupted whilst queueing"));
+                }
+            }
+            if (closed) {
+                return CompletableFuture.failedFuture(new CancellationException("The pipeline is closed"));
+            }
+            if (priority == Priority.CHANGE && queued.size() >= settings.getMaxQueuedJobs()) {
+                dropped.increment();
+                return CompletableFuture.completedFuture(null);
+            }
+            return enqueue(new Task(name, priority, 0, null, new CompletableFuture<>(), sequence.getAndIncrement()));
+        }
+    }
+
+    // Queue a task, or if the schematic is already waiting, complete the task along with the waiting one
+    @NotNull
+    private synchronized CompletableFuture<Void> enqueue(@NotNull Task task) {
+        final Task waiting = queued.get(task.name);
+        if (waiting != null) {
+            waiting.future.whenComplete((result, error) -> complete(task.future, error));
+            return task.future;
+        }
+        queued.put(task.name, task);
+        queue.add(task);
+        return task.future;
+    }
+
+    private void work() {
+        while (!closed) {
+            final Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                queued.remove(task.name, task);
+                notifyAll();
+            }
+            running.incrementAndGet();
+            try {
+                run(task);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    // Run a job through each stage it has yet to pass, starting afresh if the schematic has changed since
+    private void run(@NotNull Task task) {
+        final Job job;
+        int stage = task.stage;
+        try {
+            final Optional<SchematicStore.SchematicStat> stat = store.stat(task.name);
+            if (stat.isEmpty()) {
+                completed.increment();
+                task.future.complete(null);
+                return;
+            }
+            if (task.job != null && task.job.getStat().equals(stat.get())) {
+                job = task.job;
+            } else {
+                job = new Job(stat.get(), task.priority, store);
+                stage = 0;
+            }
+        } catch (Throwable e) {
+            retry(task, null, task.stage, e);
+            return;
+        }
+
+        for (; stage < stages.size(); stage++) {
+            if (closed) {
+                task.future.cancel(false);
+                return;
+            }
+            final Stage current = stages.get(stage);
+            final FlightRecorderEvents.ProcessingStage event = new FlightRecorderEvents.ProcessingStage();
+            event.begin();
+            try {
+                if (current.isComplete(job)) {
+                    stagesSkipped.increment();
+                    event.outcome = "skipped";
+                } else {
+                    current.process(job);
+                    stagesRun.increment();
+                    event.outcome = "success";
+                }
+            } catch (Throwable e) {
+                event.outcome = "error";
+                retry(task, job, stage, e);
+                return;
+            } finally {
+                if (event.shouldCommit()) {
+                    event.fileName = job.getName();
+                    event.bytes = job.getStat().size();
+                    event.format = FlightRecorderEvents.getFormat(job.getName());
+                    event.stage = current.getName();
+                    event.priority = task.priority.name().toLowerCase(Locale.ENGLISH);
+                    event.attempt = task.attempt + 1;
+                    event.commit();
+                }
+            }
+        }
+        completed.increment();
+        task.future.complete(null);
+    }
+
+    // Retry a failed job from the stage that failed, after a delay that doubles with each attempt
+    private void retry(@NotNull Task task, @Nullable Job job, int stage, @NotNull Throwable error) {
+        final boolean missing = error instanceof NoSuchFileException || error instanceof FileNotFoundException;
+        if (closed || missing || task.attempt >= settings.getMaxRetries()) {
+            if (missing) {
+                completed.increment();
+                task.future.complete(null);
+                return;
+            }
+            failed.increment();
+            logger.log(Level.WARNING, "Failed to process schematic " + task.name + " at the "
+                                      + stages.get(Math.min(stage, stages.size() - 1)).getName() + " stage", error);
+            task.future.completeExceptionally(error);
+            return;
+        }
+        retried.increment();
+        final long delay = Math.max(0, settings.getRetryDelay()) << Math.min(task.attempt, 16);
+        final Task retry = new Task(task.name, task.priority, task.attempt + 1, job, task.future,
+                sequence.getAndIncrement());
+        retry.stage = stage;
+        try {
+            retries.schedule(() -> {
+                if (!closed) {
+                    enqueue(retry);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            task.future.cancel(false);
+        }
+    }
+
+    private static void complete(@NotNull CompletableFuture<Void> future, @Nullable Throwable error) {
+        if (error == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    // Order stages so each comes after those it depends on, otherwise keeping the order they were given in
+    @NotNull
+    private static List<Stage> order(@NotNull Collection<Stage> stages) {
+        final Map<String, Stage> byName = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            if (byName.put(stage.getName(), stage) != null) {
+                throw new IllegalStateException("Duplicate pipeline stage: " + stage.getName());
+            }
+        }
+        final List<Stage> ordered = new ArrayList<>(byName.size());
+        final Set<String> placed = new HashSet<>();
+        while (ordered.size() < byName.size()) {
+            boolean progressed = false;
+            for (Stage stage : byName.values()) {
+                if (placed.contains(stage.getName())) {
+                    continue;
+                }
+                for (String dependency : stage.getDependencies()) {
+                    if (!byName.containsKey(dependency)) {
+                        throw new IllegalStateException("Pipeline stage " + stage.getName()
+                                                        + " depends on missing stage " + dependency);
+                    }
+                }
+                if (placed.containsAll(stage.getDependencies())) {
+                    ordered.add(stage);
+                    placed.add(stage.getName());
+                    progressed = true;
+                }
+            }
+            if (!progressed) {
+                throw new IllegalStateException("Pipeline stages have a dependency cycle");
+            }
+        }
+        return List.copyOf(ordered);
+    }
+
+    // The names of the stages, in the order they are run
+    @NotNull
+    public List<String> getStageNames() {
+        return stages.stream().map(Stage::getName).toList();
+    }
+
+    public synchronized int getQueuedJobs() {
+        return queued.size();
+    }
+
+    public int getRunningJobs() {
+        return running.get();
+    }
+
+    public long getCompletedJobs() {
+        return completed.sum();
+    }
+
+    public long getFailedJobs() {
+        return failed.sum();
+    }
+
+    public long getDroppedJobs() {
+        return dropped.sum();
+    }
+
+    public long getRetries() {
+        return retried.sum();
+    }
+
+    public long getStagesRun() {
+        return stagesRun.sum();
+    }
+
+    public long getStagesSkipped() {
+        return stagesSkipped.sum();
+    }
+
+    @Override
+    public void close() {
+        final List<Task> cancelled;
+        synchronized (this) {
+            closed = true;
+            cancelled = List.copyOf(queued.values());
+            queued.clear();
+            queue.clear();
+            notifyAll();
+        }
+        retries.shutdownNow();
+        workers.forEach(Thread::interrupt);
+        cancelled.forEach(task -> task.future.cancel(false));
+    }
+
+    /**
+     * The priority of a job; jobs of a higher priority are always taken from the queue first
+     */
+    public enum Priority {
+        // A schematic a player has just uploaded
+        UPLOAD,
+        // A schematic found to have been added or changed on disk
+        CHANGE,
+        // An existing schematic being processed in bulk
+        BACKFILL
+    }
+
+    // A job waiting in the queue, ordered by priority and then by when it was queued
+    private static final class Task implements Comparable<Task> {
+        private final String name;
+        private final Priority priority;
+        private final int attempt;
+        @Nullable
+        private final Job job;
+        private final CompletableFuture<Void> future;
+        private final long sequence;
+        private int stage;
+
+        private Task(@NotNull String name, @NotNull Priority priority, int attempt, @Nullable Job job,
+                     @NotNull CompletableFuture<Void> future, long sequence) {
+            this.name = name;
+            this.priority = priority;
+            this.attempt = attempt;
+            this.job = job;
+            this.future = future;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NotNull Task other) {
+            final int comparison = priority.compareTo(other.priority);
+            return comparison != 0 ? comparison : Long.compare(sequence, other.sequence);
+        }
+    }
+
+}
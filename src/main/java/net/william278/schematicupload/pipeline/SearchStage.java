@@ -0,0 +1,62 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SearchIndex;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+// Indexes a schematic for searching with the metadata catalogued for it
+final class SearchStage implements Stage {
+
+    static final String NAME = "search";
+    private final SearchIndex index;
+    private final SchematicCatalogue catalogue;
+
+    SearchStage(@NotNull SearchIndex index, @NotNull SchematicCatalogue catalogue) {
+        this.index = index;
+        this.catalogue = catalogue;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @NotNull
+    @Override
+    public List<String> getDependencies() {
+        return List.of(CatalogueStage.NAME);
+    }
+
+    @Override
+    public boolean isComplete(@NotNull Job job) {
+        return index.isIndexed(catalogue.describe(job.getStat()));
+    }
+
+    @Override
+    public void process(@NotNull Job job) {
+        index.put(catalogue.describe(job.getStat()));
+    }
+
+}
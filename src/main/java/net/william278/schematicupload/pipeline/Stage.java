@@ -0,0 +1,63 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.pipeline;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * A named stage of the {@link ProcessingPipeline}, run against each schematic once the stages it depends on have
+ * <p>
+ * Stages should be idempotent: a stage is skipped if {@link #isComplete(Job)} finds its work already done, so that
+ * re-running a schematic whose contents are unchanged reads and writes as little as possible.
+ */
+public interface Stage {
+
+    // The unique name of this stage
+    @NotNull
+    String getName();
+
+    // The names of the stages that must have run before this one
+    @NotNull
+    default List<String> getDependencies() {
+        return List.of();
+    }
+
+    /**
+     * Check whether the work of this stage has already been done for a schematic, filling in the {@link Job} with
+     * anything later stages need from it if so
+     *
+     * @param job The job for the schematic
+     * @return {@code true} if the stage can be skipped
+     */
+    default boolean isComplete(@NotNull Job job) {
+        return false;
+    }
+
+    /**
+     * Run this stage against a schematic
+     *
+     * @param job The job for the schematic
+     * @throws Exception if the stage failed, and should be retried
+     */
+    void process(@NotNull Job job) throws Exception;
+
+}
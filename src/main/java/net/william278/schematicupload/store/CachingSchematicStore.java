@@ -0,0 +1,202 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * A {@link SchematicStore} that fronts a remote store with a read-through, size-bounded LRU cache on local disk
+ * <p>
+ * The local cache is the schematic directory WorldEdit loads from, so cached schematics can be loaded in-game
+ * without touching the remote store. Writes go to local disk first, then are streamed on to the remote store.
+ * Cached copies take the remote store's modification time, so a schematic stats the same whether cached or not.
+ */
+public class CachingSchematicStore implements SchematicStore {
+
+    private final SchematicStore remote;
+    private final FileSchematicStore local;
+    private final long maxCacheBytes;
+
+    // Cached schematic names to their size, in least-recently-used order
+    private final LinkedHashMap<String, Long> cached = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    public CachingSchematicStore(@NotNull SchematicStore remote, @NotNull FileSchematicStore local,
+                                 long maxCacheBytes) throws IOException {
+        this.remote = remote;
+        this.local = local;
+        this.maxCacheBytes = maxCacheBytes;
+
+        // Index schematics already on disk, oldest first; those not in the remote store are kept when evicted
+        final List<SchematicStat> existing = local.listAll();
+        existing.sort(Comparator.comparingLong(SchematicStat::lastModified));
+        for (SchematicStat stat : existing) {
+            track(stat.name(), stat.size());
+        }
+    }
+
+    @Override
+    public void put(@NotNull String name, @NotNull InputStream data) throws IOException {
+        local.put(name, data);
+        try (InputStream input = local.get(name)) {
+            remote.put(name, input);
+        } catch (IOException e) {
+            local.delete(name);
+            throw e;
+        }
+        matchRemoteTime(name);
+        track(name, local.stat(name).map(SchematicStat::size).orElse(0L));
+    }
+
+    @NotNull
+    @Override
+    public InputStream get(@NotNull String name) throws IOException {
+        return Files.newInputStream(fetch(name));
+    }
+
+    @NotNull
+    @Override
+    public Optional<SchematicStat> stat(@NotNull String name) throws IOException {
+        final Optional<SchematicStat> cachedStat = isCached(name) ? local.stat(name) : Optional.empty();
+        return cachedStat.isPresent() ? cachedStat : remote.stat(name);
+    }
+
+    @NotNull
+    @Override
+    public Page list(@Nullable String cursor, int limit) throws IOException {
+        return remote.list(cursor, limit);
+    }
+
+    @Override
+    public boolean delete(@NotNull String name) throws IOException {
+        synchronized (cached) {
+            final Long size = cached.remove(name);
+            if (size != null) {
+                cachedBytes -= size;
+            }
+        }
+        local.delete(name);
+        return remote.delete(name);
+    }
+
+    @NotNull
+    @Override
+    public Optional<Path> getLocalFile(@NotNull String name) throws IOException {
+        if (remote.stat(name).isEmpty() && !isCached(name)) {
+            return Optional.empty();
+        }
+        return Optional.of(fetch(name));
+    }
+
+    @Override
+    public boolean needsFetching(@NotNull String name) {
+        synchronized (cached) {
+            return !cached.containsKey(name) || local.needsFetching(name);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Optional<ByteBuffer> getBuffer(@NotNull String name) throws IOException {
+        return isCached(name) ? local.getBuffer(name) : Optional.empty();
+    }
+
+    @NotNull
+    @Override
+    public String getLoadPath(@NotNull String name) {
+        return local.getLoadPath(name);
+    }
+
+    @NotNull
+    public FileSchematicStore getLocalStore() {
+        return local;
+    }
+
+    @Override
+    public void close() throws IOException {
+        remote.close();
+    }
+
+    // Ensure a schematic is in the local cache, fetching it from the remote store if needed
+    @NotNull
+    private Path fetch(@NotNull String name) throws IOException {
+        final Optional<Path> cachedFile = isCached(name) ? local.getLocalFile(name) : Optional.empty();
+        if (cachedFile.isPresent()) {
+            return cachedFile.get();
+        }
+        try (InputStream input = remote.get(name)) {
+            local.put(name, input);
+        }
+        matchRemoteTime(name);
+        track(name, local.stat(name).map(SchematicStat::size).orElse(0L));
+        return local.getLocalFile(name).orElseThrow(() -> new IOException("Failed to cache " + name));
+    }
+
+    // Set a cached copy's modification time to the remote store's, so stats don't change when it is cached or evicted
+    private void matchRemoteTime(@NotNull String name) throws IOException {
+        final Optional<SchematicStat> remoteStat = remote.stat(name);
+        final Optional<Path> file = local.getLocalFile(name);
+        if (remoteStat.isPresent() && file.isPresent()) {
+            Files.setLastModifiedTime(file.get(), FileTime.fromMillis(remoteStat.get().lastModified()));
+        }
+    }
+
+    // Returns true if the schematic is cached, marking it as recently used
+    private boolean isCached(@NotNull String name) {
+        synchronized (cached) {
+            return cached.get(name) != null;
+        }
+    }
+
+    // Record a schematic as cached, evicting the least recently used schematics if the cache is over capacity.
+    // Schematics only on local disk, such as those saved in-game, are no longer counted as cached rather than deleted
+    private void track(@NotNull String name, long size) throws IOException {
+        final List<String> evicted = new ArrayList<>();
+        synchronized (cached) {
+            final Long previous = cached.put(name, size);
+            cachedBytes += size - (previous == null ? 0 : previous);
+            final Iterator<Map.Entry<String, Long>> iterator = cached.entrySet().iterator();
+            while (cachedBytes > maxCacheBytes && cached.size() > 1 && iterator.hasNext()) {
+                final Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(name)) {
+                    continue;
+                }
+                cachedBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                iterator.remove();
+            }
+        }
+        for (String eviction : evicted) {
+            if (remote.stat(eviction).isPresent()) {
+                local.delete(eviction);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SchematicStore} that keeps schematics as files in a local directory
+ * <p>
+ * Schematics are either stored flat in the directory, or fanned out into two levels of hashed subdirectories
+ * ({@code ab/cd/<name>}) to keep directory sizes small for very large catalogues. Schematics still stored in the
+ * other layout are resolved until they are moved into place with {@link #migrate(int)}.
+ * <p>
+ * Rarely used schematics can optionally be moved into a {@link PackArchive}; they remain readable, and are
+ * rehydrated back to a file when one is needed on disk.
+ */
+public class FileSchematicStore implements SchematicStore {
+
+    // Directory, relative to the store root, where in-progress writes are staged
+    public static final String TEMP_DIRECTORY = ".temp";
+    private static final Pattern SHARD_PATTERN = Pattern.compile("[0-9a-f]{2}");
+
+    @Getter
+    private final Path directory;
+    @Getter
+    private final Layout layout;
+    @Nullable
+    private final PackArchive archive;
+
+    public FileSchematicStore(@NotNull Path directory, @NotNull Layout layout, @Nullable PackArchive archive) {
+        this.directory = directory;
+        this.layout = layout;
+        this.archive = archive;
+    }
+
+    public FileSchematicStore(@NotNull Path directory, @NotNull Layout layout) {
+        this(directory, layout, null);
+    }
+
+    public FileSchematicStore(@NotNull Path directory) {
+        this(directory, Layout.FLAT);
+    }
+
+    @Override
+    public void put(@NotNull String name, @NotNull InputStream data) throws IOException {
+        final Path existing = resolve(name);
+        final Path target = getLayoutPath(name);
+        final Path temp = directory.resolve(TEMP_DIRECTORY).resolve(UUID.randomUUID() + ".part");
+        Files.createDirectories(temp.getParent());
+        Files.createDirectories(target.getParent());
+
+        // Write to a staging file first, so partially-written schematics are never visible
+        try {
+            Files.copy(data, temp, StandardCopyOption.REPLACE_EXISTING);
+            if (archive == null) {
+                moveIntoPlace(temp, target);
+            } else {
+                // Replace the schematic under the archive's lock, so it can't be packed and deleted part way through
+                synchronized (archive) {
+                    moveIntoPlace(temp, target);
+                    archive.remove(name);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        // Remove any copy left behind in the other layout
+        if (!existing.equals(target)) {
+            Files.deleteIfExists(existing);
+        }
+    }
+
+    private static void moveIntoPlace(@NotNull Path temp, @NotNull Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @NotNull
+    @Override
+    public InputStream get(@NotNull String name) throws IOException {
+        final Optional<ByteBuffer> packed = getBuffer(name);
+        if (packed.isPresent()) {
+            return new ByteBufferInputStream(packed.get());
+        }
+        return Files.newInputStream(resolve(name));
+    }
+
+    @NotNull
+    @Override
+    public Optional<SchematicStat> stat(@NotNull String name) throws IOException {
+        final Path file = resolve(name);
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return Optional.empty();
+            }
+            return Optional.of(new SchematicStat(name, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch (NoSuchFileException e) {
+            return archive != null ? archive.stat(name) : Optional.empty();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Page list(@Nullable String cursor, int limit) throws IOException {
+        final int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        if (!Files.isDirectory(directory)) {
+            return new Page(List.of(), null);
+        }
+
+        return toPage(new ArrayList<>(listStats(cursor).values()), pageSize);
+    }
+
+    // Walk the store once, rather than once per page
+    @NotNull
+    @Override
+    public List<SchematicStat> listAll() throws IOException {
+        final List<SchematicStat> schematics = new ArrayList<>(listStats(null).values());
+        schematics.sort(Comparator.comparing(SchematicStat::name));
+        return schematics;
+    }
+
+    // Stat every schematic named after the cursor, both on disk and in the archive
+    @NotNull
+    private Map<String, SchematicStat> listStats(@Nullable String cursor) throws IOException {
+        final Map<String, SchematicStat> schematics = new HashMap<>();
+        walk((file, attributes) -> {
+            final String name = file.getFileName().toString();
+            if (cursor == null || name.compareTo(cursor) > 0) {
+                schematics.put(name, new SchematicStat(name, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        });
+        if (archive != null) {
+            for (SchematicStat packed : archive.list()) {
+                if (cursor == null || packed.name().compareTo(cursor) > 0) {
+                    schematics.putIfAbsent(packed.name(), packed);
+                }
+            }
+        }
+        return schematics;
+    }
+
+    @Override
+    public boolean delete(@NotNull String name) throws IOException {
+        final boolean deletedFlat = Files.deleteIfExists(getLayoutPath(name, Layout.FLAT));
+        final boolean deletedSharded = Files.deleteIfExists(getLayoutPath(name, Layout.SHARDED));
+        final boolean deletedPacked = archive != null && archive.remove(name);
+        return deletedFlat || deletedSharded || deletedPacked;
+    }
+
+    @NotNull
+    @Override
+    public Optional<Path> getLocalFile(@NotNull String name) throws IOException {
+        final Path file = resolve(name);
+        if (Files.isRegularFile(file)) {
+            return Optional.of(file);
+        }
+
+        // Rehydrate the schematic from the archive, so WorldEdit can load it
+        final Optional<ByteBuffer> packed = getBuffer(name);
+        if (packed.isEmpty()) {
+            return Optional.empty();
+        }
+        put(name, new ByteBufferInputStream(packed.get()));
+        return Optional.of(resolve(name));
+    }
+
+    // Archived schematics are rehydrated to disk when fetched; one may also be on disk already
+    @Override
+    public boolean needsFetching(@NotNull String name) {
+        return archive != null && archive.stat(name).isPresent();
+    }
+
+    @NotNull
+    @Override
+    public Optional<ByteBuffer> getBuffer(@NotNull String name) {
+        if (archive == null || Files.exists(resolve(name))) {
+            return Optional.empty();
+        }
+        return archive.read(name);
+    }
+
+    @NotNull
+    @Override
+    public String getLoadPath(@NotNull String name) {
+        final Path relative = directory.relativize(resolve(name));
+        return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Move every schematic that is not stored according to the current {@link Layout} into place
+     *
+     * @param parallelism The number of files to move concurrently
+     * @return The result of the migration
+     * @throws IOException if the store could not be listed
+     */
+    @NotNull
+    public MigrationResult migrate(int parallelism) throws IOException {
+        final List<Path> misplaced = listFiles().stream()
+                .filter(file -> !file.equals(getLayoutPath(file.getFileName().toString())))
+                .toList();
+        final AtomicInteger moved = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.submit(() -> misplaced.parallelStream().forEach(file -> {
+                try {
+                    final Path target = getLayoutPath(file.getFileName().toString());
+                    Files.createDirectories(target.getParent());
+                    Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    moved.incrementAndGet();
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst migrating schematics");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to migrate schematics", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return new MigrationResult(moved.get(), failed.get());
+    }
+
+    /**
+     * Move schematics that have not been accessed or modified for a while into the {@link PackArchive}
+     *
+     * @param minimumAge How long a schematic must have been untouched for to be archived
+     * @return The number of schematics archived
+     * @throws IOException if the schematics could not be archived
+     */
+    public int archive(@NotNull Duration minimumAge) throws IOException {
+        if (archive == null) {
+            return 0;
+        }
+        final long cutoff = System.currentTimeMillis() - minimumAge.toMillis();
+        final List<Path> untouched = new ArrayList<>();
+        walk((file, attributes) -> {
+            final long lastTouched = Math.max(
+                    attributes.lastAccessTime().toMillis(),
+                    attributes.lastModifiedTime().toMillis()
+            );
+            if (lastTouched < cutoff) {
+                untouched.add(file);
+            }
+        });
+        return untouched.isEmpty() ? 0 : archive.pack(untouched);
+    }
+
+    /**
+     * Compact the {@link PackArchive}, rewriting packs that are mostly schematics that have since been restored
+     *
+     * @param minUnusedFraction The fraction of a pack that must be unused for it to be compacted
+     * @return The number of bytes freed
+     * @throws IOException if the archive could not be compacted
+     */
+    public long compactArchive(double minUnusedFraction) throws IOException {
+        return archive == null ? 0 : archive.compact(minUnusedFraction);
+    }
+
+    // Resolve the path of an existing schematic, falling back to the other layout for unmigrated files
+    @NotNull
+    protected Path resolve(@NotNull String name) {
+        final Path path = getLayoutPath(name);
+        if (!Files.exists(path)) {
+            final Path otherPath = getLayoutPath(name, layout == Layout.FLAT ? Layout.SHARDED : Layout.FLAT);
+            if (Files.exists(otherPath)) {
+                return otherPath;
+            }
+        }
+        return path;
+    }
+
+    // Get the path a schematic should be stored at in the current layout
+    @NotNull
+    private Path getLayoutPath(@NotNull String name) {
+        return getLayoutPath(name, layout);
+    }
+
+    @NotNull
+    private Path getLayoutPath(@NotNull String name, @NotNull Layout layout) {
+        if (!SchematicStore.isValidName(name)) {
+            throw new IllegalArgumentException("Invalid schematic name: " + name);
+        }
+        if (layout == Layout.FLAT) {
+            return directory.resolve(name);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        final String hash = String.format("%08x", crc.getValue());
+        return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(name);
+    }
+
+    // List the files of every schematic in the store, in either layout
+    @NotNull
+    private List<Path> listFiles() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        walk((file, attributes) -> files.add(file));
+        return files;
+    }
+
+    // Walk the files of every schematic in the store, in either layout, with the attributes read by the walk. Files
+    // that are moved or deleted during the walk are skipped
+    private void walk(@NotNull BiConsumer<Path, BasicFileAttributes> visitor) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 3, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                final Path relative = directory.relativize(dir);
+                return relative.toString().isEmpty() || isShardPrefix(relative)
+                        ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && SchematicStore.isValidName(file.getFileName().toString())
+                    && isInShard(directory.relativize(file.getParent()))) {
+                    visitor.accept(file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+    }
+
+    // Returns true if a directory, relative to the store root, is a shard directory or its parent
+    private static boolean isShardPrefix(@NotNull Path relative) {
+        for (int i = 0; i < relative.getNameCount(); i++) {
+            if (!SHARD_PATTERN.matcher(relative.getName(i).toString()).matches()) {
+                return false;
+            }
+        }
+        return relative.getNameCount() <= 2;
+    }
+
+    // Returns true if a directory, relative to the store root, is the root itself or a two-level shard directory
+    private static boolean isInShard(@NotNull Path relative) {
+        if (relative.toString().isEmpty()) {
+            return true;
+        }
+        return relative.getNameCount() == 2
+                && SHARD_PATTERN.matcher(relative.getName(0).toString()).matches()
+                && SHARD_PATTERN.matcher(relative.getName(1).toString()).matches();
+    }
+
+    // Sort the schematics by name and cut them down to a page
+    @NotNull
+    static Page toPage(@NotNull List<SchematicStat> schematics, int pageSize) {
+        schematics.sort((a, b) -> a.name().compareTo(b.name()));
+        if (schematics.size() <= pageSize) {
+            return new Page(schematics, null);
+        }
+        final List<SchematicStat> page = new ArrayList<>(schematics.subList(0, pageSize));
+        return new Page(page, page.get(page.size() - 1).name());
+    }
+
+    /**
+     * How schematic files are laid out on disk
+     */
+    public enum Layout {
+        // Stored directly in the schematic directory, as <name>
+        FLAT,
+        // Fanned out into hashed subdirectories, as ab/cd/<name>
+        SHARDED
+    }
+
+    /**
+     * The result of a {@link #migrate(int) layout migration}
+     *
+     * @param moved  The number of schematics moved into place
+     * @param failed The number of schematics that could not be moved
+     */
+    public record MigrationResult(int moved, int failed) {
+    }
+
+}
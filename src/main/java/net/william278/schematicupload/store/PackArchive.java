@@ -0,0 +1,503 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Cold storage for rarely accessed schematics, packed together into append-only pack files
+ * <p>
+ * Each pack is a data file of concatenated schematics ({@code pack-N.pack}) and an index of the schematics in it,
+ * sorted by name ({@code pack-N.idx}). Packs are never modified once written; schematics removed from the archive
+ * are recorded in a removal log and skipped. Pack data is memory-mapped, so reads are served as slices of the
+ * mapping without copying.
+ * <p>
+ * Packs that have come to be mostly removed schematics are compacted: the schematics still read from them are
+ * written to a new pack, and the old pack is deleted, along with removal records no pack needs any more. A dropped
+ * pack is unmapped once the reads of it in progress have finished and it is garbage collected; where a mapped file
+ * can't be deleted, as on Windows, it is deleted by a later compaction instead.
+ */
+public class PackArchive {
+
+    // Directory, relative to the store root, where pack files are kept
+    public static final String ARCHIVE_DIRECTORY = ".packs";
+    private static final int INDEX_MAGIC = 0x5355504B; // "SUPK"
+    private static final int INDEX_VERSION = 1;
+    private static final String REMOVED_LOG = "removed.log";
+    // Packs are memory-mapped, so must stay within the maximum size of a single mapping
+    private static final long MAX_PACK_SIZE = 1024L * 1024L * 1024L;
+
+    private final Path directory;
+    // Schematic names to the newest pack they have been removed from
+    private final Map<String, Integer> removed = new ConcurrentHashMap<>();
+    // Held whilst packing or compacting, so packs are published in the order of their IDs
+    private final Object packing = new Object();
+    private volatile List<Pack> packs = List.of();
+    // Packs no longer read from whose files could not yet be deleted; guarded by the archive
+    private final List<DroppedPack> dropped = new ArrayList<>();
+    private int nextPackId;
+
+    public PackArchive(@NotNull Path storeDirectory) throws IOException {
+        this.directory = storeDirectory.resolve(ARCHIVE_DIRECTORY);
+        load();
+    }
+
+    /**
+     * Get a read-only slice of a packed schematic's contents
+     *
+     * @param name The schematic file name
+     * @return An {@link Optional} containing the schematic contents, if it is in the archive
+     */
+    @NotNull
+    public Optional<ByteBuffer> read(@NotNull String name) {
+        return find(name).map(entry -> entry.pack().slice(entry.index()));
+    }
+
+    /**
+     * Get information about a packed schematic
+     *
+     * @param name The schematic file name
+     * @return An {@link Optional} containing the {@link SchematicStore.SchematicStat}, if it is in the archive
+     */
+    @NotNull
+    public Optional<SchematicStore.SchematicStat> stat(@NotNull String name) {
+        return find(name).map(entry -> entry.pack().stat(entry.index()));
+    }
+
+    // Returns every schematic in the archive
+    @NotNull
+    public List<SchematicStore.SchematicStat> list() {
+        final Map<String, SchematicStore.SchematicStat> schematics = new HashMap<>();
+        for (Pack pack : packs) {
+            for (int i = 0; i < pack.names().length; i++) {
+                if (isVisible(pack, i)) {
+                    schematics.putIfAbsent(pack.names()[i], pack.stat(i));
+                }
+            }
+        }
+        return new ArrayList<>(schematics.values());
+    }
+
+    /**
+     * Remove a schematic from the archive. Its data is left in the pack, but will no longer be read
+     *
+     * @param name The schematic file name
+     * @return {@code true} if the schematic was in the archive
+     * @throws IOException if the removal could not be recorded
+     */
+    public synchronized boolean remove(@NotNull String name) throws IOException {
+        final Optional<PackEntry> entry = find(name);
+        if (entry.isEmpty()) {
+            return false;
+        }
+        recordRemoval(name, entry.get().pack().id());
+        return true;
+    }
+
+    // Record that a schematic has been removed from a pack and any older ones
+    private void recordRemoval(@NotNull String name, int packId) throws IOException {
+        Files.writeString(directory.resolve(REMOVED_LOG), packId + "\t" + name + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        removed.merge(name, packId, Math::max);
+    }
+
+    /**
+     * Pack the given schematic files into a new pack, then delete the originals. The files are copied without
+     * holding the archive's lock; {@link FileSchematicStore} replaces schematics whilst holding it, so a file that
+     * was replaced whilst being packed is noticed and kept
+     *
+     * @param files The schematic files to pack
+     * @return The number of schematics packed
+     * @throws IOException if the pack could not be written
+     */
+    public int pack(@NotNull List<Path> files) throws IOException {
+        synchronized (packing) {
+            Files.createDirectories(directory);
+            int packed = 0;
+            int start = 0;
+            while (start < files.size()) {
+                // Fill a pack up to the maximum pack size
+                long packSize = 0;
+                int end = start;
+                while (end < files.size() && (end == start || packSize + sizeOf(files.get(end)) <= MAX_PACK_SIZE)) {
+                    packSize += sizeOf(files.get(end++));
+                }
+                packed += writePack(files.subList(start, end));
+                start = end;
+            }
+            return packed;
+        }
+    }
+
+    /**
+     * Compact packs in which at least the given fraction of data is no longer read, because the schematics have been
+     * removed from the archive or packed again since. The schematics still read from each are copied into a new
+     * pack without holding the archive's lock, and the old pack is then deleted
+     *
+     * @param minUnusedFraction The fraction of a pack's data that must be unused for it to be compacted
+     * @return The number of bytes of pack data freed
+     * @throws IOException if a pack could not be compacted
+     */
+    public long compact(double minUnusedFraction) throws IOException {
+        synchronized (packing) {
+            long freed = 0;
+            for (Pack pack : packs) {
+                final long size = pack.data().capacity();
+                if (size > 0 && size - getLiveBytes(pack) >= size * minUnusedFraction) {
+                    freed += compact(pack);
+                }
+            }
+            synchronized (this) {
+                deleteDropped();
+            }
+            return freed;
+        }
+    }
+
+    // Copy the schematics still read from a pack into a new one, and drop the old pack, returning the bytes freed
+    private long compact(@NotNull Pack pack) throws IOException {
+        final int id;
+        synchronized (this) {
+            id = nextPackId++;
+        }
+        final Path dataFile = getDataFile(id);
+        final TreeMap<String, long[]> index = new TreeMap<>();
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < pack.names().length; i++) {
+                if (!isLive(pack, i)) {
+                    continue;
+                }
+                final long offset = channel.position();
+                final ByteBuffer data = pack.slice(i);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                index.put(pack.names()[i], new long[]{offset, pack.sizes()[i], pack.lastModified()[i]});
+            }
+            channel.force(true);
+        }
+
+        // Leave out schematics removed whilst copying, then publish the new pack in place of the old one
+        synchronized (this) {
+            index.keySet().removeIf(name -> {
+                final int i = Arrays.binarySearch(pack.names(), name);
+                return !isLive(pack, i);
+            });
+            final List<Pack> updated = new ArrayList<>(packs);
+            updated.remove(pack);
+            if (index.isEmpty()) {
+                Files.deleteIfExists(dataFile);
+            } else {
+                writeIndex(id, index);
+                updated.add(0, Pack.open(id, dataFile, getIndexFile(id)));
+            }
+            packs = List.copyOf(updated);
+            dropped.add(new DroppedPack(pack.id(), pack.names()));
+            return pack.data().capacity() - index.values().stream().mapToLong(entry -> entry[1]).sum();
+        }
+    }
+
+    // Get the total size of the schematics still read from a pack
+    private long getLiveBytes(@NotNull Pack pack) {
+        long live = 0;
+        for (int i = 0; i < pack.names().length; i++) {
+            if (isLive(pack, i)) {
+                live += pack.sizes()[i];
+            }
+        }
+        return live;
+    }
+
+    // Returns true if a packed schematic is the copy read from the archive
+    private boolean isLive(@NotNull Pack pack, int index) {
+        final Optional<PackEntry> entry = find(pack.names()[index]);
+        return entry.isPresent() && entry.get().pack() == pack;
+    }
+
+    // Delete the files of dropped packs, then forget removals that no remaining pack has a copy to hide
+    private void deleteDropped() throws IOException {
+        dropped.removeIf(pack -> {
+            try {
+                Files.deleteIfExists(getIndexFile(pack.id()));
+                Files.deleteIfExists(getDataFile(pack.id()));
+                return true;
+            } catch (IOException e) {
+                // Still mapped; the pack's index is kept so the pack is skipped again if loaded
+                return false;
+            }
+        });
+
+        final Map<String, Integer> needed = new HashMap<>();
+        for (Pack pack : packs) {
+            for (String name : pack.names()) {
+                needed.merge(name, pack.id(), Math::min);
+            }
+        }
+        for (DroppedPack pack : dropped) {
+            for (String name : pack.names()) {
+                needed.merge(name, pack.id(), Math::min);
+            }
+        }
+        if (!removed.keySet().removeIf(name -> !needed.containsKey(name) || needed.get(name) > removed.get(name))) {
+            return;
+        }
+
+        // Rewrite the removal log with what is left
+        final Path log = directory.resolve(REMOVED_LOG);
+        final Path tempLog = directory.resolve(REMOVED_LOG + ".tmp");
+        final List<String> lines = new ArrayList<>(removed.size());
+        removed.forEach((name, packId) -> lines.add(packId + "\t" + name));
+        Files.write(tempLog, lines, StandardCharsets.UTF_8);
+        Files.move(tempLog, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Get the size of a file, or 0 if it has gone
+    private static long sizeOf(@NotNull Path file) throws IOException {
+        try {
+            return Files.size(file);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    // Write a single pack from a list of files and delete the originals once it is safely on disk
+    private int writePack(@NotNull List<Path> files) throws IOException {
+        final int id;
+        synchronized (this) {
+            id = nextPackId++;
+        }
+        final Path dataFile = getDataFile(id);
+
+        // Append each schematic to the data file, noting the attributes of the file that was copied
+        final TreeMap<String, long[]> index = new TreeMap<>();
+        final Map<String, Path> sources = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                if (index.containsKey(name)) {
+                    continue;
+                }
+                final long offset = channel.position();
+                try {
+                    final long lastModified = Files.getLastModifiedTime(file).toMillis();
+                    try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+                        long transferred = 0;
+                        final long size = input.size();
+                        while (transferred < size) {
+                            transferred += input.transferTo(transferred, size - transferred, channel);
+                        }
+                        channel.position(offset + size);
+                        index.put(name, new long[]{offset, size, lastModified});
+                        sources.put(name, file);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted or moved since it was listed
+                    channel.position(offset);
+                }
+            }
+            channel.force(true);
+        }
+
+        writeIndex(id, index);
+
+        // Publish the new pack, then remove the originals that are unchanged since they were copied. Schematics that
+        // were replaced meanwhile are removed from the pack instead, so the copy on disk is kept and the stale one
+        // is never read
+        synchronized (this) {
+            final List<Path> unchanged = new ArrayList<>(sources.size());
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                final Path file = sources.get(entry.getKey());
+                if (isUnchanged(file, entry.getValue()[1], entry.getValue()[2])) {
+                    unchanged.add(file);
+                } else {
+                    recordRemoval(entry.getKey(), id);
+                }
+            }
+            final List<Pack> updated = new ArrayList<>(packs);
+            updated.add(0, Pack.open(id, dataFile, getIndexFile(id)));
+            packs = List.copyOf(updated);
+            for (Path file : unchanged) {
+                Files.deleteIfExists(file);
+            }
+            return unchanged.size();
+        }
+    }
+
+    // Write the sorted index of a pack; the pack only becomes visible once the index is moved into place
+    private void writeIndex(int id, @NotNull SortedMap<String, long[]> index) throws IOException {
+        final Path indexFile = getIndexFile(id);
+        final Path tempIndexFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempIndexFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(INDEX_VERSION);
+            output.writeInt(index.size());
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue()[0]);
+                output.writeLong(entry.getValue()[1]);
+                output.writeLong(entry.getValue()[2]);
+            }
+        }
+        Files.move(tempIndexFile, indexFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @NotNull
+    private Path getDataFile(int id) {
+        return directory.resolve(String.format("pack-%05d.pack", id));
+    }
+
+    @NotNull
+    private Path getIndexFile(int id) {
+        return directory.resolve(String.format("pack-%05d.idx", id));
+    }
+
+    // Returns true if a file still has the size and modification time it was packed with
+    private static boolean isUnchanged(@NotNull Path file, long size, long lastModified) throws IOException {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    // Load existing packs and the removal log from disk
+    private void load() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        final Path removedLog = directory.resolve(REMOVED_LOG);
+        if (Files.exists(removedLog)) {
+            for (String line : Files.readAllLines(removedLog, StandardCharsets.UTF_8)) {
+                final int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    removed.merge(line.substring(separator + 1), Integer.parseInt(line.substring(0, separator)), Math::max);
+                }
+            }
+        }
+
+        final List<Path> packFiles;
+        try (Stream<Path> stream = Files.list(directory)) {
+            packFiles = stream.filter(file -> file.getFileName().toString().matches("pack-\\d+\\.(pack|idx)"))
+                    .sorted(Comparator.reverseOrder())
+                    .toList();
+        }
+
+        // Packs without an index were never completed, but their IDs must not be reused
+        final List<Pack> loaded = new ArrayList<>();
+        for (Path file : packFiles) {
+            final String fileName = file.getFileName().toString();
+            final String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+            final int id = Integer.parseInt(baseName.substring("pack-".length()));
+            nextPackId = Math.max(nextPackId, id + 1);
+            if (fileName.endsWith(".idx")) {
+                loaded.add(Pack.open(id, directory.resolve(baseName + ".pack"), file));
+            }
+        }
+        packs = List.copyOf(loaded);
+
+        // Drop packs left behind by a compaction whose files couldn't be deleted, as nothing is read from them
+        for (Pack pack : loaded) {
+            if (IntStream.range(0, pack.names().length).noneMatch(i -> isLive(pack, i))) {
+                final List<Pack> updated = new ArrayList<>(packs);
+                updated.remove(pack);
+                packs = List.copyOf(updated);
+                dropped.add(new DroppedPack(pack.id(), pack.names()));
+            }
+        }
+    }
+
+    // Find the newest packed copy of a schematic
+    @NotNull
+    private Optional<PackEntry> find(@NotNull String name) {
+        for (Pack pack : packs) {
+            final int index = Arrays.binarySearch(pack.names(), name);
+            if (index >= 0) {
+                return isVisible(pack, index) ? Optional.of(new PackEntry(pack, index)) : Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    // Returns true if a packed schematic has not since been removed from the archive
+    private boolean isVisible(@NotNull Pack pack, int index) {
+        return removed.getOrDefault(pack.names()[index], -1) < pack.id();
+    }
+
+    private record PackEntry(@NotNull Pack pack, int index) {
+    }
+
+    // A pack that is no longer read from, kept until its files are deleted
+    private record DroppedPack(int id, @NotNull String[] names) {
+    }
+
+    // A memory-mapped pack and its sorted index
+    private record Pack(int id, @NotNull MappedByteBuffer data, @NotNull String[] names, long[] offsets, long[] sizes,
+                        long[] lastModified) {
+
+        @NotNull
+        private static Pack open(int id, @NotNull Path dataFile, @NotNull Path indexFile) throws IOException {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)));
+                 FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+                if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                    throw new IOException("Invalid pack index: " + indexFile);
+                }
+                final int count = input.readInt();
+                final String[] names = new String[count];
+                final long[] offsets = new long[count];
+                final long[] sizes = new long[count];
+                final long[] lastModified = new long[count];
+                for (int i = 0; i < count; i++) {
+                    names[i] = input.readUTF();
+                    offsets[i] = input.readLong();
+                    sizes[i] = input.readLong();
+                    lastModified[i] = input.readLong();
+                }
+                return new Pack(id, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                        names, offsets, sizes, lastModified);
+            }
+        }
+
+        @NotNull
+        private ByteBuffer slice(int index) {
+            return data.slice((int) offsets[index], (int) sizes[index]).asReadOnlyBuffer();
+        }
+
+        @NotNull
+        private SchematicStore.SchematicStat stat(int index) {
+            return new SchematicStore.SchematicStat(names[index], sizes[index], lastModified[index]);
+        }
+
+    }
+
+}
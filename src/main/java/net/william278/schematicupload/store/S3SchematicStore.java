@@ -0,0 +1,405 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import net.william278.schematicupload.config.Settings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link SchematicStore} backed by an S3-compatible object storage service (AWS S3, MinIO, etc.)
+ * <p>
+ * Requests are signed with AWS Signature Version 4. Large schematics are streamed up in fixed-size parts using
+ * a multipart upload, so only one part is ever held in memory.
+ */
+public class S3SchematicStore implements SchematicStore {
+
+    // S3 requires every part of a multipart upload, except the last, to be at least 5 MiB
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+    private static final String EMPTY_PAYLOAD_HASH = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    private final HttpClient client;
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String keyPrefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyle;
+
+    public S3SchematicStore(@NotNull Settings.StorageSettings.S3Settings settings) {
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        this.endpoint = URI.create(settings.getEndpoint());
+        this.region = settings.getRegion();
+        this.bucket = settings.getBucket();
+        this.keyPrefix = settings.getKeyPrefix();
+        this.accessKey = settings.getAccessKey();
+        this.secretKey = settings.getSecretKey();
+        this.pathStyle = settings.isPathStyle();
+    }
+
+    @Override
+    public void put(@NotNull String name, @NotNull InputStream data) throws IOException {
+        checkName(name);
+        final byte[] firstPart = data.readNBytes(PART_SIZE);
+        if (firstPart.length < PART_SIZE) {
+            final HttpResponse<String> response = send("PUT", key(name), Map.of(), firstPart);
+            checkStatus(response, "store " + name);
+            return;
+        }
+
+        // Stream the schematic up as a multipart upload
+        final String uploadId = createMultipartUpload(name);
+        try {
+            final List<String> eTags = new ArrayList<>();
+            byte[] part = firstPart;
+            while (part.length > 0) {
+                final HttpResponse<String> response = send("PUT", key(name), Map.of(
+                        "partNumber", Integer.toString(eTags.size() + 1),
+                        "uploadId", uploadId
+                ), part);
+                checkStatus(response, "upload part of " + name);
+                eTags.add(response.headers().firstValue("ETag")
+                        .orElseThrow(() -> new IOException("S3 did not return an ETag for an uploaded part")));
+                part = data.readNBytes(PART_SIZE);
+            }
+            completeMultipartUpload(name, uploadId, eTags);
+        } catch (IOException | RuntimeException e) {
+            try {
+                send("DELETE", key(name), Map.of("uploadId", uploadId), null);
+            } catch (IOException abortException) {
+                e.addSuppressed(abortException);
+            }
+            throw e;
+        }
+    }
+
+    @NotNull
+    @Override
+    public InputStream get(@NotNull String name) throws IOException {
+        checkName(name);
+        final HttpResponse<InputStream> response = send(
+                request("GET", key(name), Map.of(), null),
+                HttpResponse.BodyHandlers.ofInputStream()
+        );
+        if (response.statusCode() == 404) {
+            response.body().close();
+            throw new NoSuchFileException(name);
+        }
+        if (response.statusCode() / 100 != 2) {
+            response.body().close();
+            throw new IOException("Failed to fetch " + name + " from S3 (HTTP " + response.statusCode() + ")");
+        }
+        return response.body();
+    }
+
+    @NotNull
+    @Override
+    public Optional<SchematicStat> stat(@NotNull String name) throws IOException {
+        checkName(name);
+        final HttpResponse<Void> response = send(
+                request("HEAD", key(name), Map.of(), null),
+                HttpResponse.BodyHandlers.discarding()
+        );
+        if (response.statusCode() == 404) {
+            return Optional.empty();
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Failed to stat " + name + " on S3 (HTTP " + response.statusCode() + ")");
+        }
+        final long size = response.headers().firstValueAsLong("Content-Length").orElse(0L);
+        final long lastModified = response.headers().firstValue("Last-Modified")
+                .map(date -> ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli())
+                .orElse(0L);
+        return Optional.of(new SchematicStat(name, size, lastModified));
+    }
+
+    @NotNull
+    @Override
+    public Page list(@Nullable String cursor, int limit) throws IOException {
+        final Map<String, String> query = new HashMap<>();
+        query.put("list-type", "2");
+        query.put("max-keys", Integer.toString(Math.max(1, Math.min(limit, MAX_PAGE_SIZE))));
+        query.put("prefix", keyPrefix);
+        if (cursor != null) {
+            query.put("start-after", key(cursor));
+        }
+
+        final HttpResponse<String> response = send("GET", "", query, null);
+        checkStatus(response, "list schematics");
+        final Document document = parseXml(response.body());
+        final List<SchematicStat> schematics = new ArrayList<>();
+        final NodeList contents = document.getElementsByTagName("Contents");
+        String lastName = null;
+        for (int i = 0; i < contents.getLength(); i++) {
+            final Element content = (Element) contents.item(i);
+            final String key = childText(content, "Key");
+            if (key == null || !key.startsWith(keyPrefix)) {
+                continue;
+            }
+            lastName = key.substring(keyPrefix.length());
+            if (!SchematicStore.isValidName(lastName)) {
+                continue;
+            }
+            final String size = childText(content, "Size");
+            final String lastModified = childText(content, "LastModified");
+            schematics.add(new SchematicStat(
+                    lastName,
+                    size == null ? 0L : Long.parseLong(size),
+                    lastModified == null ? 0L : Instant.parse(lastModified).toEpochMilli()
+            ));
+        }
+        final boolean truncated = "true".equals(childText(document.getDocumentElement(), "IsTruncated"));
+        return new Page(schematics, truncated ? lastName : null);
+    }
+
+    @Override
+    public boolean delete(@NotNull String name) throws IOException {
+        if (stat(name).isEmpty()) {
+            return false;
+        }
+        checkStatus(send("DELETE", key(name), Map.of(), null), "delete " + name);
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public Optional<Path> getLocalFile(@NotNull String name) {
+        return Optional.empty();
+    }
+
+    @NotNull
+    private String createMultipartUpload(@NotNull String name) throws IOException {
+        final HttpResponse<String> response = send("POST", key(name), Map.of("uploads", ""), null);
+        checkStatus(response, "start multipart upload of " + name);
+        return Optional.ofNullable(childText(parseXml(response.body()).getDocumentElement(), "UploadId"))
+                .orElseThrow(() -> new IOException("S3 did not return an upload ID"));
+    }
+
+    private void completeMultipartUpload(@NotNull String name, @NotNull String uploadId,
+                                         @NotNull List<String> eTags) throws IOException {
+        final StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < eTags.size(); i++) {
+            body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                    .append(eTags.get(i).replace("&", "&amp;").replace("\"", "&quot;"))
+                    .append("</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+
+        // S3 may report a failure to complete in the body of a 200 response
+        final HttpResponse<String> response = send("POST", key(name), Map.of("uploadId", uploadId),
+                body.toString().getBytes(StandardCharsets.UTF_8));
+        checkStatus(response, "complete multipart upload of " + name);
+        if (response.body().contains("<Error>")) {
+            throw new IOException("Failed to complete multipart upload of " + name + ": " + response.body());
+        }
+    }
+
+    @NotNull
+    private HttpResponse<String> send(@NotNull String method, @NotNull String key, @NotNull Map<String, String> query,
+                                      byte @Nullable [] body) throws IOException {
+        return send(request(method, key, query, body), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @NotNull
+    private <T> HttpResponse<T> send(@NotNull HttpRequest request,
+                                     @NotNull HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return client.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for S3");
+        }
+    }
+
+    // Build a request signed with AWS Signature Version 4
+    @NotNull
+    private HttpRequest request(@NotNull String method, @NotNull String key, @NotNull Map<String, String> query,
+                                byte @Nullable [] body) throws IOException {
+        final String path = pathStyle
+                ? "/" + encode(bucket) + (key.isEmpty() ? "" : "/" + encodePath(key))
+                : "/" + encodePath(key);
+        final String host = (pathStyle ? "" : bucket + ".") + endpoint.getHost();
+        final int port = endpoint.getPort();
+        final boolean defaultPort = port == -1
+                || (port == 80 && "http".equals(endpoint.getScheme()))
+                || (port == 443 && "https".equals(endpoint.getScheme()));
+        final String authority = defaultPort ? host : host + ":" + port;
+        final String canonicalQuery = new TreeMap<>(query).entrySet().stream()
+                .map(entry -> encode(entry.getKey()) + "=" + encode(entry.getValue()))
+                .collect(Collectors.joining("&"));
+        final String payloadHash = body == null ? EMPTY_PAYLOAD_HASH : hex(sha256(body));
+        final Instant now = Instant.now();
+        final String amzDate = AMZ_DATE.format(now);
+        final String date = amzDate.substring(0, 8);
+        final String scope = date + "/" + region + "/s3/aws4_request";
+
+        final String canonicalRequest = String.join("\n",
+                method,
+                path,
+                canonicalQuery,
+                "host:" + authority,
+                "x-amz-content-sha256:" + payloadHash,
+                "x-amz-date:" + amzDate,
+                "",
+                "host;x-amz-content-sha256;x-amz-date",
+                payloadHash
+        );
+        final String stringToSign = String.join("\n",
+                "AWS4-HMAC-SHA256",
+                amzDate,
+                scope,
+                hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)))
+        );
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        final String signature = hex(hmac(signingKey, stringToSign));
+
+        final URI uri = URI.create(endpoint.getScheme() + "://" + authority + path
+                + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery));
+        return HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("x-amz-content-sha256", payloadHash)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", String.format(
+                        "AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=%s",
+                        accessKey, scope, signature
+                ))
+                .method(method, body == null
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+    }
+
+    @NotNull
+    private String key(@NotNull String name) {
+        return keyPrefix + name;
+    }
+
+    private void checkName(@NotNull String name) {
+        if (!SchematicStore.isValidName(name)) {
+            throw new IllegalArgumentException("Invalid schematic name: " + name);
+        }
+    }
+
+    private static void checkStatus(@NotNull HttpResponse<String> response, @NotNull String action) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(String.format("Failed to %s on S3 (HTTP %d): %s",
+                    action, response.statusCode(), response.body()));
+        }
+    }
+
+    @NotNull
+    private static Document parseXml(@NotNull String xml) throws IOException {
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed to parse S3 response", e);
+        }
+    }
+
+    @Nullable
+    private static String childText(@NotNull Element parent, @NotNull String tagName) {
+        final NodeList children = parent.getElementsByTagName(tagName);
+        return children.getLength() == 0 ? null : children.item(0).getTextContent();
+    }
+
+    // URI-encode a string per RFC 3986, as required by SigV4
+    @NotNull
+    private static String encode(@NotNull String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    @NotNull
+    private static String encodePath(@NotNull String path) {
+        return Arrays.stream(path.split("/", -1))
+                .map(S3SchematicStore::encode)
+                .collect(Collectors.joining("/"));
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, @NotNull String data) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    @NotNull
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import net.william278.schematicupload.metrics.FlightRecorderEvents;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded, least-recently-used cache of schematic contents, held off-heap in direct buffers
+ * <p>
+ * Entries are keyed by schematic name, and are only served while the schematic's size and modification time
+ * still match, so a changed file is never served stale even before its entry is invalidated.
+ */
+public class SchematicCache {
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SchematicCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Math.min(maxBytes, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Get the cached contents of a schematic
+     *
+     * @param stat The current {@link SchematicStore.SchematicStat} of the schematic
+     * @return An {@link Optional} containing a read-only view of the contents, if cached and up to date
+     */
+    @NotNull
+    public Optional<ByteBuffer> get(@NotNull SchematicStore.SchematicStat stat) {
+        synchronized (entries) {
+            final Entry entry = entries.get(stat.name());
+            if (entry != null && entry.matches(stat)) {
+                hits.increment();
+                return Optional.of(entry.buffer().asReadOnlyBuffer());
+            }
+            if (entry != null) {
+                remove(stat.name());
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Read a schematic into the cache
+     *
+     * @param stat  The current {@link SchematicStore.SchematicStat} of the schematic
+     * @param input A stream of the schematic contents; not closed by this method
+     * @return A read-only view of the cached contents
+     * @throws IOException if the schematic could not be read
+     */
+    @NotNull
+    public ByteBuffer load(@NotNull SchematicStore.SchematicStat stat, @NotNull InputStream input) throws IOException {
+        if (!isCacheable(stat.size())) {
+            throw new IllegalArgumentException("Schematic is too large to cache: " + stat.name());
+        }
+        final FlightRecorderEvents.CacheLoad event = new FlightRecorderEvents.CacheLoad();
+        event.begin();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((int) stat.size());
+        try {
+            final ReadableByteChannel channel = Channels.newChannel(input);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    event.outcome = "changed";
+                    throw new IOException("Schematic " + stat.name() + " changed whilst being cached");
+                }
+            }
+            event.outcome = "success";
+        } finally {
+            if (event.shouldCommit()) {
+                event.fileName = stat.name();
+                event.bytes = stat.size();
+                event.format = FlightRecorderEvents.getFormat(stat.name());
+                event.outcome = event.outcome == null ? "error" : event.outcome;
+                event.commit();
+            }
+        }
+        buffer.flip();
+
+        synchronized (entries) {
+            remove(stat.name());
+            entries.put(stat.name(), new Entry(stat.size(), stat.lastModified(), buffer));
+            usedBytes += stat.size();
+            final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                final Map.Entry<String, Entry> eldest = iterator.next();
+                if (eldest.getKey().equals(stat.name())) {
+                    continue;
+                }
+                usedBytes -= eldest.getValue().size();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // Returns true if a schematic is cached and up to date, without counting towards the hit rate
+    public boolean contains(@NotNull SchematicStore.SchematicStat stat) {
+        synchronized (entries) {
+            final Entry entry = entries.get(stat.name());
+            return entry != null && entry.matches(stat);
+        }
+    }
+
+    // Returns true if a schematic of the given size may be cached
+    public boolean isCacheable(long size) {
+        return size > 0 && size <= maxEntryBytes;
+    }
+
+    // Drop a schematic from the cache
+    public void invalidate(@NotNull String name) {
+        synchronized (entries) {
+            remove(name);
+        }
+    }
+
+    // Drop every schematic from the cache
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            usedBytes = 0;
+        }
+    }
+
+    private void remove(@NotNull String name) {
+        final Entry removed = entries.remove(name);
+        if (removed != null) {
+            usedBytes -= removed.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getUsedBytes() {
+        synchronized (entries) {
+            return usedBytes;
+        }
+    }
+
+    private record Entry(long size, long lastModified, @NotNull ByteBuffer buffer) {
+
+        private boolean matches(@NotNull SchematicStore.SchematicStat stat) {
+            return size == stat.size() && lastModified == stat.lastModified();
+        }
+
+    }
+
+}
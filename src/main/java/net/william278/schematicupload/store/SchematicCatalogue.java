@@ -0,0 +1,667 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent catalogue of metadata about schematics: who uploaded them and when, their content hash, format
+ * and dimensions
+ * <p>
+ * The catalogue is an append-only file of binary records, each framed by its length and a CRC32 so that a record
+ * torn by a crash is detected and dropped. A record either sets every field of an entry or removes it, so the
+ * last record for a name wins. The file is read sequentially once at startup, and is compacted by rewriting the
+ * live entries once records that have been superseded outnumber them. Hashes, formats and dimensions are derived
+ * by the {@link net.william278.schematicupload.pipeline.ProcessingPipeline}, whenever a schematic is found that
+ * has changed since it was last catalogued.
+ * <p>
+ * Each uploader's schematics are also indexed, newest first, along with running totals of how many they have and
+ * how large they are, so their history can be paged through and their quota checked without a scan.
+ */
+public class SchematicCatalogue implements Closeable {
+
+    public static final String FILE_NAME = "catalogue.dat";
+    private static final int MAGIC = 0x53554354; // "SUCT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MAX_RECORD_SIZE = 65536;
+    private static final int HASH_SIZE = 32;
+    // Superseded records allowed before compacting, on top of one per live entry
+    private static final int COMPACT_SLACK = 1024;
+    private static final Comparator<Entry> NEWEST_FIRST = Comparator.comparingLong(Entry::uploadedAt).reversed()
+            .thenComparing(Entry::name);
+
+    private final Path file;
+    private final SchematicStore store;
+    private final Logger logger;
+    // Writes removals seen by the index, which must not block whilst it is locked
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "SchematicUpload-Catalogue");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Each uploader's schematics, guarded by this catalogue; their usage and names may be read without locking
+    private final Map<UUID, NavigableSet<Entry>> uploads = new HashMap<>();
+    private final Map<UUID, Usage> usage = new ConcurrentHashMap<>();
+    private final Map<String, UUID> uploaderNames = new ConcurrentHashMap<>();
+    // Guarded by this catalogue
+    private FileChannel channel;
+    private long records;
+
+    public SchematicCatalogue(@NotNull Path file, @NotNull SchematicStore store,
+                              @NotNull Logger logger) throws IOException {
+        this.file = file;
+        this.store = store;
+        this.logger = logger;
+        load();
+    }
+
+    /**
+     * Get the catalogued metadata of a schematic
+     *
+     * @param name The schematic file name
+     * @return An {@link Optional} containing the entry, if the schematic is catalogued
+     */
+    @NotNull
+    public Optional<Entry> get(@NotNull String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    // Returns every catalogued schematic, in no particular order
+    @NotNull
+    public List<Entry> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get how many schematics a player has uploaded, and their total size
+     *
+     * @param uploader The UUID of the player
+     * @return The player's {@link Usage}
+     */
+    @NotNull
+    public Usage getUsage(@NotNull UUID uploader) {
+        return usage.getOrDefault(uploader, Usage.NONE);
+    }
+
+    /**
+     * Get a page of the schematics a player has uploaded, newest first
+     *
+     * @param uploader The UUID of the player
+     * @param offset   The number of schematics to skip
+     * @param limit    The maximum number of schematics to return
+     * @return The player's schematics on the page
+     */
+    @NotNull
+    public synchronized List<Entry> getUploads(@NotNull UUID uploader, int offset, int limit) {
+        final NavigableSet<Entry> uploaded = uploads.get(uploader);
+        if (uploaded == null) {
+            return List.of();
+        }
+        return uploaded.stream().skip(Math.max(0, offset)).limit(limit).toList();
+    }
+
+    /**
+     * Find the UUID of an uploader by the name they last uploaded under
+     *
+     * @param name The player name, ignoring case
+     * @return An {@link Optional} containing the UUID, if a player of that name has uploaded a schematic
+     */
+    @NotNull
+    public Optional<UUID> findUploader(@NotNull String name) {
+        return Optional.ofNullable(uploaderNames.get(name.toLowerCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * Describe a schematic in the store with what is known about it. Metadata derived from its contents is only
+     * included while the schematic is unchanged since it was catalogued
+     *
+     * @param stat The current {@link SchematicStore.SchematicStat} of the schematic
+     * @return The entry describing the schematic
+     */
+    @NotNull
+    public Entry describe(@NotNull SchematicStore.SchematicStat stat) {
+        final Entry entry = entries.get(stat.name());
+        return entry == null ? Entry.of(stat) : entry.withStat(stat);
+    }
+
+    /**
+     * Record who uploaded a schematic, now that it is in the store
+     *
+     * @param name         The schematic file name
+     * @param uploader     The UUID of the player who uploaded it
+     * @param uploaderName The name of the player, if known
+     * @throws IOException if the schematic could not be found, or the record could not be written
+     */
+    public void recordUpload(@NotNull String name, @NotNull UUID uploader,
+                             @Nullable String uploaderName) throws IOException {
+        final Optional<SchematicStore.SchematicStat> stat = store.stat(name);
+        if (stat.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            final Entry entry = describe(stat.get());
+            put(new Entry(entry.name(), entry.size(), entry.lastModified(), System.currentTimeMillis(),
+                    uploader, uploaderName, entry.hash(), entry.format(), entry.dimensions()), true);
+        }
+    }
+
+    /**
+     * Record metadata derived from the contents of a schematic. Nothing is recorded if the schematic has changed
+     * since it was read, as the metadata no longer describes it
+     *
+     * @param stat       The {@link SchematicStore.SchematicStat} of the schematic as it was read
+     * @param hash       The hex-encoded SHA-256 hash of its contents
+     * @param format     Its format
+     * @param dimensions Its dimensions, if they could be read
+     * @throws IOException if the record could not be written
+     */
+    public void recordDerived(@NotNull SchematicStore.SchematicStat stat, @NotNull String hash,
+                              @NotNull Format format, @Nullable Dimensions dimensions) throws IOException {
+        final Optional<SchematicStore.SchematicStat> current = store.stat(stat.name());
+        if (current.isEmpty() || !current.get().equals(stat)) {
+            return;
+        }
+        synchronized (this) {
+            final Entry entry = describe(stat);
+            put(new Entry(entry.name(), entry.size(), entry.lastModified(), entry.uploadedAt(),
+                    entry.uploader(), entry.uploaderName(), hash, format, dimensions), false);
+        }
+    }
+
+    // Returns true if a schematic is catalogued as it is now, with its metadata derived
+    public boolean isDerived(@NotNull SchematicStore.SchematicStat stat) {
+        final Entry entry = entries.get(stat.name());
+        return entry != null && entry.matches(stat) && entry.isDerived();
+    }
+
+    /**
+     * Keep the catalogue up to date with a change to the {@link SchematicIndex}. Called whilst the index is locked,
+     * so removals are written on the catalogue's own thread; schematics that are added or changed are left to the
+     * processing pipeline to derive metadata for
+     *
+     * @param change The change to the index
+     */
+    public void onChange(@NotNull SchematicIndex.Change change) {
+        if (change.type() != SchematicIndex.Change.Type.REMOVED) {
+            return;
+        }
+        final SchematicStore.SchematicStat removed = change.stat();
+        try {
+            writer.execute(() -> remove(removed));
+        } catch (RejectedExecutionException ignored) {
+            // The catalogue is closed
+        }
+    }
+
+    /**
+     * Reconcile the catalogue against every schematic in the store, dropping those that are gone
+     * <p>
+     * The schematics passed may have been listed some time ago, so an entry missing from them is only dropped once
+     * the store confirms the schematic is gone; one uploaded since the list was taken is kept.
+     *
+     * @param schematics Every schematic in the store
+     * @return The schematics that are new or have changed since they were catalogued, and so need their metadata
+     * derived
+     */
+    @NotNull
+    public List<SchematicStore.SchematicStat> reconcile(@NotNull Collection<SchematicStore.SchematicStat> schematics) {
+        final Set<String> names = new HashSet<>(schematics.size());
+        final List<SchematicStore.SchematicStat> stale = new ArrayList<>();
+        for (SchematicStore.SchematicStat stat : schematics) {
+            names.add(stat.name());
+            if (!isDerived(stat)) {
+                stale.add(stat);
+            }
+        }
+        for (String name : List.copyOf(entries.keySet())) {
+            if (!names.contains(name) && isGone(name)) {
+                remove(name);
+            }
+        }
+        return stale;
+    }
+
+    // Returns true if the store no longer holds a schematic; if the store can't be checked, it is assumed to remain
+    private boolean isGone(@NotNull String name) {
+        try {
+            return store.stat(name).isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Remove the entry of a schematic removed from the store, unless it has been uploaded again since
+    private synchronized void remove(@NotNull SchematicStore.SchematicStat removed) {
+        final Entry entry = entries.get(removed.name());
+        if (entry != null && entry.lastModified() <= removed.lastModified()) {
+            remove(removed.name());
+        }
+    }
+
+    private synchronized void remove(@NotNull String name) {
+        if (!removeEntry(name)) {
+            return;
+        }
+        try {
+            append(encodeRemoval(name), false);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to record the removal of " + name + " in the catalogue", e);
+        }
+        compactIfNeeded();
+    }
+
+    // Set an entry, and append it to the file; records that must survive a crash are synced to disk
+    private synchronized void put(@NotNull Entry entry, boolean sync) throws IOException {
+        if (entry.equals(entries.get(entry.name()))) {
+            return;
+        }
+        setEntry(entry);
+        append(encode(entry), sync);
+        compactIfNeeded();
+    }
+
+    private void append(@NotNull byte[] payload, boolean sync) throws IOException {
+        if (channel == null) {
+            throw new IOException("Catalogue is closed");
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        records++;
+    }
+
+    // Rewrite the file with only the live entries, once superseded records outnumber them
+    private synchronized void compactIfNeeded() {
+        if (channel == null || records <= entries.size() * 2L + COMPACT_SLACK) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to compact the schematic catalogue", e);
+        }
+    }
+
+    /**
+     * Rewrite the catalogue file with only the live entries. The new file replaces the old atomically, so the
+     * catalogue is never lost part way through
+     *
+     * @throws IOException if the file could not be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        final Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        final FileChannel previous = channel;
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        try {
+            records = 0;
+            channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+            for (Entry entry : entries.values()) {
+                append(encode(entry), false);
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (previous != null) {
+                previous.close();
+            }
+        } catch (IOException e) {
+            channel.close();
+            channel = previous;
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Read every record in a single pass, dropping a torn record at the end
+    private void load() throws IOException {
+        Files.createDirectories(file.getParent());
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            try (FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                created.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+            }
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return;
+        }
+
+        long validLength = HEADER_SIZE;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Invalid schematic catalogue: " + file);
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                final int checksum;
+                final byte[] payload;
+                try {
+                    length = input.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    checksum = input.readInt();
+                    payload = input.readNBytes(length);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if (payload.length < length || (int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(payload);
+                validLength += 8 + length;
+                records++;
+            }
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            channel.truncate(validLength);
+        }
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void apply(@NotNull byte[] payload) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte type = input.readByte();
+        final String name = input.readUTF();
+        if (type == RECORD_REMOVE) {
+            removeEntry(name);
+            return;
+        }
+        if (type != RECORD_PUT) {
+            throw new IOException("Unknown catalogue record type " + type);
+        }
+        final long size = input.readLong();
+        final long lastModified = input.readLong();
+        final long uploadedAt = input.readLong();
+        final byte flags = input.readByte();
+        UUID uploader = null;
+        String uploaderName = null;
+        if ((flags & 1) != 0) {
+            uploader = new UUID(input.readLong(), input.readLong());
+            uploaderName = input.readUTF();
+            uploaderName = uploaderName.isEmpty() ? null : uploaderName;
+        }
+        String hash = null;
+        if ((flags & 2) != 0) {
+            hash = HexFormat.of().formatHex(input.readNBytes(HASH_SIZE));
+        }
+        final Format format = Format.byId(input.readByte());
+        Dimensions dimensions = null;
+        if ((flags & 4) != 0) {
+            dimensions = new Dimensions(input.readInt(), input.readInt(), input.readInt());
+        }
+        setEntry(new Entry(name, size, lastModified, uploadedAt, uploader, uploaderName, hash, format, dimensions));
+    }
+
+    // Set an entry, keeping its uploader's schematics and usage up to date
+    private void setEntry(@NotNull Entry entry) {
+        unindex(entries.put(entry.name(), entry));
+        final UUID uploader = entry.uploader();
+        if (uploader == null) {
+            return;
+        }
+        uploads.computeIfAbsent(uploader, u -> new TreeSet<>(NEWEST_FIRST)).add(entry);
+        usage.merge(uploader, new Usage(1, entry.size()), Usage::plus);
+        if (entry.uploaderName() != null) {
+            uploaderNames.put(entry.uploaderName().toLowerCase(Locale.ENGLISH), uploader);
+        }
+    }
+
+    private boolean removeEntry(@NotNull String name) {
+        final Entry removed = entries.remove(name);
+        unindex(removed);
+        return removed != null;
+    }
+
+    private void unindex(@Nullable Entry entry) {
+        if (entry == null || entry.uploader() == null) {
+            return;
+        }
+        final UUID uploader = entry.uploader();
+        final NavigableSet<Entry> uploaded = uploads.get(uploader);
+        if (uploaded != null && uploaded.remove(entry) && uploaded.isEmpty()) {
+            uploads.remove(uploader);
+        }
+        usage.computeIfPresent(uploader, (u, current) -> {
+            final Usage remaining = current.plus(new Usage(-1, -entry.size()));
+            return remaining.files() <= 0 ? null : remaining;
+        });
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull Entry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(RECORD_PUT);
+        output.writeUTF(entry.name());
+        output.writeLong(entry.size());
+        output.writeLong(entry.lastModified());
+        output.writeLong(entry.uploadedAt());
+        output.writeByte((entry.uploader() != null ? 1 : 0) | (entry.hash() != null ? 2 : 0)
+                         | (entry.dimensions() != null ? 4 : 0));
+        if (entry.uploader() != null) {
+            output.writeLong(entry.uploader().getMostSignificantBits());
+            output.writeLong(entry.uploader().getLeastSignificantBits());
+            output.writeUTF(entry.uploaderName() != null ? entry.uploaderName() : "");
+        }
+        if (entry.hash() != null) {
+            output.write(HexFormat.of().parseHex(entry.hash()));
+        }
+        output.writeByte(entry.format().getId());
+        if (entry.dimensions() != null) {
+            output.writeInt(entry.dimensions().width());
+            output.writeInt(entry.dimensions().height());
+            output.writeInt(entry.dimensions().length());
+        }
+        return bytes.toByteArray();
+    }
+
+    @NotNull
+    private static byte[] encodeRemoval(@NotNull String name) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(RECORD_REMOVE);
+        output.writeUTF(name);
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Metadata about a catalogued schematic
+     *
+     * @param name         The schematic file name
+     * @param size         The size of the schematic, in bytes
+     * @param lastModified When the schematic was last modified, in epoch milliseconds
+     * @param uploadedAt   When the schematic was uploaded, or first catalogued if not uploaded through the web
+     *                     server, in epoch milliseconds
+     * @param uploader     The UUID of the player who uploaded the schematic, if known
+     * @param uploaderName The name of that player, if known
+     * @param hash         The SHA-256 hash of the schematic contents, in hex, if derived
+     * @param format       The format of the schematic
+     * @param dimensions   The dimensions of the schematic, if derived
+     */
+    public record Entry(@NotNull String name, long size, long lastModified, long uploadedAt, @Nullable UUID uploader,
+                        @Nullable String uploaderName, @Nullable String hash, @NotNull Format format,
+                        @Nullable Dimensions dimensions) {
+
+        // Create an entry for a schematic that has not been catalogued yet
+        @NotNull
+        public static Entry of(@NotNull SchematicStore.SchematicStat stat) {
+            return new Entry(stat.name(), stat.size(), stat.lastModified(), stat.lastModified(), null, null, null,
+                    Format.of(stat.name()), null);
+        }
+
+        // Returns true if the entry describes the schematic as it is now
+        public boolean matches(@NotNull SchematicStore.SchematicStat stat) {
+            return size == stat.size() && lastModified == stat.lastModified();
+        }
+
+        public boolean isDerived() {
+            return hash != null;
+        }
+
+        // Get this entry for the schematic as it is now, dropping derived metadata if it has changed since
+        @NotNull
+        private Entry withStat(@NotNull SchematicStore.SchematicStat stat) {
+            if (matches(stat)) {
+                return this;
+            }
+            return new Entry(name, stat.size(), stat.lastModified(), uploadedAt, uploader, uploaderName, null,
+                    Format.of(name), null);
+        }
+
+        @NotNull
+        public SchematicStore.SchematicStat toStat() {
+            return new SchematicStore.SchematicStat(name, size, lastModified);
+        }
+
+    }
+
+    /**
+     * How many schematics a player has uploaded that are still stored, and their total size
+     *
+     * @param files The number of schematics
+     * @param bytes The total size of the schematics, in bytes
+     */
+    public record Usage(int files, long bytes) {
+
+        public static final Usage NONE = new Usage(0, 0);
+
+        @NotNull
+        private Usage plus(@NotNull Usage other) {
+            return new Usage(files + other.files, bytes + other.bytes);
+        }
+
+    }
+
+    /**
+     * The size of a schematic's region, in blocks
+     */
+    public record Dimensions(int width, int height, int length) {
+
+        public long getVolume() {
+            return (long) width * height * length;
+        }
+
+    }
+
+    /**
+     * The format of a schematic file
+     */
+    public enum Format {
+        UNKNOWN(0),
+        SPONGE(1),
+        LEGACY(2),
+        LITEMATIC(3);
+
+        private final int id;
+
+        Format(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @NotNull
+        public String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        // Guess the format of a schematic from its file extension
+        @NotNull
+        public static Format of(@NotNull String name) {
+            if (name.endsWith(".schem")) {
+                return SPONGE;
+            } else if (name.endsWith(".schematic")) {
+                return LEGACY;
+            } else if (name.endsWith(".litematic")) {
+                return LITEMATIC;
+            }
+            return UNKNOWN;
+        }
+
+        @NotNull
+        private static Format byId(int id) {
+            for (Format format : values()) {
+                if (format.id == id) {
+                    return format;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory index of the schematics in the store, for tab completion and argument validation without touching
+ * the store on the main thread, and for streaming changes to the catalogue to web clients
+ * <p>
+ * Names are held in a hash map for exact lookups, and in a case-insensitively sorted set so that every name
+ * starting with a prefix is found by seeking to the prefix and reading forward. Every change to the index is
+ * given a version number, and the most recent changes are kept so clients can catch up from the last version
+ * they saw. Versions are counted within an epoch, the time the index was created, and clients hold on to both; a
+ * version from another epoch, such as one from before a restart, is never caught up from, so the client knows to
+ * start over.
+ */
+public class SchematicIndex {
+
+    private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER
+            .thenComparing(Comparator.naturalOrder());
+    // Number of recent changes kept for clients catching up
+    private static final int MAX_CHANGES = 4096;
+
+    private final SchematicStore store;
+    private final Map<String, SchematicStore.SchematicStat> entries = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> sorted = new ConcurrentSkipListSet<>(ORDER);
+    private final List<Consumer<Change>> listeners = new CopyOnWriteArrayList<>();
+    // Guarded by itself, along with the version; also held whilst updating the entries so changes are ordered
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private final long epoch = System.currentTimeMillis();
+    private long version;
+
+    public SchematicIndex(@NotNull SchematicStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns whether a schematic with the exact name is in the index
+     *
+     * @param name The schematic file name
+     * @return {@code true} if the schematic is indexed
+     */
+    public boolean contains(@NotNull String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Get the names of schematics starting with a prefix, ignoring case, in case-insensitive order
+     *
+     * @param prefix The prefix to match
+     * @param limit  The maximum number of names to return
+     * @return The matching names
+     */
+    @NotNull
+    public List<String> complete(@NotNull String prefix, int limit) {
+        final List<String> matches = new ArrayList<>(Math.min(limit, 16));
+        for (String name : sorted.tailSet(lowerBound(prefix))) {
+            if (matches.size() >= limit || !name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                break;
+            }
+            matches.add(name);
+        }
+        return matches;
+    }
+
+    // The first name in the index's order that matches a prefix ignoring case. Names equal to the prefix ignoring case
+    // are ordered by their exact characters, so the prefix itself might sort after one of them, such as "AB" for "ab"
+    @NotNull
+    private static String lowerBound(@NotNull String prefix) {
+        final char[] bound = prefix.toCharArray();
+        for (int i = 0; i < bound.length; i++) {
+            final char upper = Character.toUpperCase(bound[i]);
+            final char lower = Character.toLowerCase(bound[i]);
+            bound[i] = (char) Math.min(bound[i], Math.min(upper, lower));
+        }
+        return new String(bound);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Returns every indexed schematic, in no particular order
+    @NotNull
+    public List<SchematicStore.SchematicStat> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Fill the index from a saved listing, such as the {@link SchematicCatalogue}, without recording changes, so it
+     * is usable before the store has been listed. Must be called before the index is in use
+     *
+     * @param schematics The schematics to index
+     */
+    public void load(@NotNull Collection<SchematicStore.SchematicStat> schematics) {
+        synchronized (changes) {
+            for (SchematicStore.SchematicStat stat : schematics) {
+                entries.put(stat.name(), stat);
+                sorted.add(stat.name());
+            }
+        }
+    }
+
+    /**
+     * Get the epoch versions are counted within, which differs each time the index is created
+     *
+     * @return The epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get the current version of the index, which is that of the latest change
+     *
+     * @return The version
+     */
+    public long getVersion() {
+        synchronized (changes) {
+            return version;
+        }
+    }
+
+    /**
+     * Get the changes made after a version, for a client to catch up from the last version it saw
+     *
+     * @param epoch The {@link #getEpoch() epoch} of the last version seen
+     * @param since The last version seen
+     * @return An {@link Optional} of the changes in order, or empty if they are no longer all kept (or the
+     * version is unknown, or from another epoch), in which case the client must start over from a full listing
+     */
+    @NotNull
+    public Optional<List<Change>> getChangesSince(long epoch, long since) {
+        if (epoch != this.epoch) {
+            return Optional.empty();
+        }
+        synchronized (changes) {
+            final long oldestKept = changes.isEmpty() ? version + 1 : changes.peekFirst().version();
+            if (since > version || since < oldestKept - 1) {
+                return Optional.empty();
+            }
+            final List<Change> newer = new ArrayList<>((int) (version - since));
+            for (Change change : changes) {
+                if (change.version() > since) {
+                    newer.add(change);
+                }
+            }
+            return Optional.of(newer);
+        }
+    }
+
+    /**
+     * Add a listener to be notified of each change, in version order. Listeners are called whilst the index is
+     * locked, so must hand work off rather than block
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(@NotNull Consumer<Change> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull Consumer<Change> listener) {
+        listeners.remove(listener);
+    }
+
+    // Add a schematic to the index, or update its size and modification time
+    public void update(@NotNull SchematicStore.SchematicStat stat) {
+        synchronized (changes) {
+            final SchematicStore.SchematicStat previous = entries.put(stat.name(), stat);
+            if (previous == null) {
+                sorted.add(stat.name());
+                record(Change.Type.ADDED, stat);
+            } else if (!previous.equals(stat)) {
+                record(Change.Type.CHANGED, stat);
+            }
+        }
+    }
+
+    public void remove(@NotNull String name) {
+        synchronized (changes) {
+            final SchematicStore.SchematicStat removed = entries.remove(name);
+            if (removed != null) {
+                sorted.remove(name);
+                record(Change.Type.REMOVED, removed);
+            }
+        }
+    }
+
+    // Record a change under the lock, and notify listeners
+    private void record(@NotNull Change.Type type, @NotNull SchematicStore.SchematicStat stat) {
+        final Change change = new Change(++version, type, stat);
+        changes.addLast(change);
+        if (changes.size() > MAX_CHANGES) {
+            changes.removeFirst();
+        }
+        for (Consumer<Change> listener : listeners) {
+            try {
+                listener.accept(change);
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+
+    /**
+     * Re-check a single schematic against the store, after it may have changed. Files that leave the schematic
+     * directory may still be in the store, for instance when archived, so the store decides
+     *
+     * @param name The schematic file name
+     * @throws IOException if the store could not be read
+     */
+    public void refresh(@NotNull String name) throws IOException {
+        final Optional<SchematicStore.SchematicStat> stat = store.stat(name);
+        if (stat.isPresent()) {
+            update(stat.get());
+        } else {
+            remove(name);
+        }
+    }
+
+    /**
+     * Rebuild the index from a full listing of the store. Schematics added whilst the listing is read are kept,
+     * as names missing from the listing are checked against the store before being dropped
+     *
+     * @throws IOException if the store could not be read
+     */
+    public void rebuild() throws IOException {
+        final Set<String> listed = new HashSet<>();
+        for (SchematicStore.SchematicStat stat : store.listAll()) {
+            listed.add(stat.name());
+            update(stat);
+        }
+        for (String name : List.copyOf(entries.keySet())) {
+            if (!listed.contains(name)) {
+                refresh(name);
+            }
+        }
+    }
+
+    /**
+     * A change to the index
+     *
+     * @param version The version of the index after the change
+     * @param type    The kind of change
+     * @param stat    The schematic after the change, or before it if removed
+     */
+    public record Change(long version, @NotNull Type type, @NotNull SchematicStore.SchematicStat stat) {
+
+        public enum Type {
+            ADDED,
+            CHANGED,
+            REMOVED;
+
+            @NotNull
+            public String getId() {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static net.william278.schematicupload.SchematicUpload.ALLOWED_EXTENSIONS;
+
+/**
+ * A backend that schematic files are stored in and read from
+ * <p>
+ * Schematics are addressed by their flat file name (e.g. {@code abcd1234-house.schem}); how that name maps to
+ * a physical location is up to the implementation.
+ */
+public interface SchematicStore extends Closeable {
+
+    // Maximum number of entries returned by a single page when listing
+    int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Store a schematic, streaming its contents from the given input. Replaces any existing schematic of that name
+     *
+     * @param name The schematic file name
+     * @param data The schematic contents; not closed by this method
+     * @throws IOException if the schematic could not be written
+     */
+    void put(@NotNull String name, @NotNull InputStream data) throws IOException;
+
+    /**
+     * Open a stream to read the contents of a schematic
+     *
+     * @param name The schematic file name
+     * @return An {@link InputStream} of the schematic contents, which must be closed by the caller
+     * @throws java.nio.file.NoSuchFileException if the schematic does not exist
+     * @throws IOException                        if the schematic could not be read
+     */
+    @NotNull
+    InputStream get(@NotNull String name) throws IOException;
+
+    /**
+     * Get information about a stored schematic
+     *
+     * @param name The schematic file name
+     * @return An {@link Optional} containing the {@link SchematicStat}, if the schematic exists
+     * @throws IOException if the store could not be queried
+     */
+    @NotNull
+    Optional<SchematicStat> stat(@NotNull String name) throws IOException;
+
+    /**
+     * List a page of stored schematics, ordered by name
+     *
+     * @param cursor The name to list after (exclusive), or {@code null} to list from the start
+     * @param limit  The maximum number of entries to return, capped to {@link #MAX_PAGE_SIZE}
+     * @return A {@link Page} of schematics
+     * @throws IOException if the store could not be listed
+     */
+    @NotNull
+    Page list(@Nullable String cursor, int limit) throws IOException;
+
+    /**
+     * Delete a stored schematic
+     *
+     * @param name The schematic file name
+     * @return {@code true} if a schematic was deleted
+     * @throws IOException if the schematic could not be deleted
+     */
+    boolean delete(@NotNull String name) throws IOException;
+
+    /**
+     * Get a path to the schematic on the local disk, where WorldEdit can load it from, fetching it if needed
+     *
+     * @param name The schematic file name
+     * @return An {@link Optional} containing the local path, if the schematic exists and this store has local storage
+     * @throws IOException if the schematic could not be fetched to disk
+     */
+    @NotNull
+    Optional<Path> getLocalFile(@NotNull String name) throws IOException;
+
+    /**
+     * Returns whether a schematic may have to be fetched with {@link #getLocalFile(String)} before WorldEdit can load
+     * it, checking only what is known in memory
+     *
+     * @param name The schematic file name
+     * @return {@code true} if the schematic may not be on the local disk
+     */
+    default boolean needsFetching(@NotNull String name) {
+        return false;
+    }
+
+    /**
+     * Get a read-only buffer of a schematic's contents, if it is already held in memory or memory-mapped and can be
+     * served without copying
+     *
+     * @param name The schematic file name
+     * @return An {@link Optional} containing the schematic contents, if available as a buffer
+     * @throws IOException if the store could not be queried
+     */
+    @NotNull
+    default Optional<ByteBuffer> getBuffer(@NotNull String name) throws IOException {
+        return Optional.empty();
+    }
+
+    /**
+     * Get the path of a schematic relative to the schematic directory, for use with {@code //schem load}
+     *
+     * @param name The schematic file name
+     * @return The path to load the schematic with, using {@code /} as the separator
+     */
+    @NotNull
+    default String getLoadPath(@NotNull String name) {
+        return name;
+    }
+
+    /**
+     * List every stored schematic, ordered by name, by walking through all pages
+     *
+     * @return A list of all stored schematics
+     * @throws IOException if the store could not be listed
+     */
+    @NotNull
+    default List<SchematicStat> listAll() throws IOException {
+        final List<SchematicStat> schematics = new ArrayList<>();
+        String cursor = null;
+        do {
+            final Page page = list(cursor, MAX_PAGE_SIZE);
+            schematics.addAll(page.entries());
+            cursor = page.nextCursor();
+        } while (cursor != null);
+        return schematics;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Check whether a name is a valid, flat schematic file name
+     *
+     * @param name The name to check
+     * @return {@code true} if the name can be safely used to address a schematic
+     */
+    static boolean isValidName(@NotNull String name) {
+        return !name.isBlank() && !name.startsWith(".") && !name.contains("..")
+                && !name.contains("/") && !name.contains("\\")
+                && ALLOWED_EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    /**
+     * Information about a stored schematic
+     *
+     * @param name         The schematic file name
+     * @param size         The size of the schematic, in bytes
+     * @param lastModified When the schematic was last modified, in epoch milliseconds
+     */
+    record SchematicStat(@NotNull String name, long size, long lastModified) {
+    }
+
+    /**
+     * A page of schematics returned by {@link #list(String, int)}
+     *
+     * @param entries    The schematics on this page, ordered by name
+     * @param nextCursor The cursor to pass to fetch the next page, or {@code null} if this is the last page
+     */
+    record Page(@NotNull List<SchematicStat> entries, @Nullable String nextCursor) {
+    }
+
+}
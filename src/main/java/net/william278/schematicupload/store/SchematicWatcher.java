@@ -0,0 +1,153 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the schematic directory, including sharded subdirectories, and notifies listeners when schematics
+ * are created, modified or deleted - whether by this plugin, WorldEdit or anything else
+ */
+public class SchematicWatcher implements Closeable {
+
+    private static final Pattern SHARD_PATTERN = Pattern.compile("[0-9a-f]{2}");
+
+    private final Path directory;
+    private final WatchService watchService;
+    private final Thread thread;
+    private final List<BiConsumer<Change, String>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    public SchematicWatcher(@NotNull Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.watchService = directory.getFileSystem().newWatchService();
+        register(directory);
+        try (Stream<Path> shards = Files.walk(directory, 2)) {
+            for (Path shard : shards.filter(this::isShardDirectory).toList()) {
+                register(shard);
+            }
+        }
+        this.thread = new Thread(this::run, "SchematicUpload-Watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Add a listener to be notified of changes, on the watcher thread. On {@link Change#OVERFLOW}, the name
+     * is {@code null} and any schematic may have changed
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(@NotNull BiConsumer<Change, String> listener) {
+        listeners.add(listener);
+    }
+
+    private void run() {
+        while (running) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            final Path parent = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    fireChange(Change.OVERFLOW, null);
+                    continue;
+                }
+                final Path child = parent.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && isShardDirectory(child)) {
+                    try {
+                        register(child);
+                    } catch (IOException ignored) {
+                    }
+                    continue;
+                }
+
+                final String name = child.getFileName().toString();
+                if (SchematicStore.isValidName(name)) {
+                    fireChange(event.kind() == ENTRY_CREATE ? Change.CREATED
+                            : event.kind() == ENTRY_DELETE ? Change.DELETED : Change.MODIFIED, name);
+                }
+            }
+            key.reset();
+        }
+    }
+
+    private void fireChange(@NotNull Change change, @Nullable String name) {
+        for (BiConsumer<Change, String> listener : listeners) {
+            try {
+                listener.accept(change, name);
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+
+    private void register(@NotNull Path path) throws IOException {
+        path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    }
+
+    // Returns true if the path is one or two levels of shard directory below the schematic directory
+    private boolean isShardDirectory(@NotNull Path path) {
+        if (!Files.isDirectory(path) || path.equals(directory)) {
+            return false;
+        }
+        final Path relative = directory.relativize(path);
+        for (Path part : relative) {
+            if (!SHARD_PATTERN.matcher(part.toString()).matches()) {
+                return false;
+            }
+        }
+        return relative.getNameCount() <= 2;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        watchService.close();
+        thread.interrupt();
+    }
+
+    /**
+     * A kind of change to a schematic in the directory
+     */
+    public enum Change {
+        CREATED,
+        MODIFIED,
+        DELETED,
+        OVERFLOW
+    }
+
+}
@@ -0,0 +1,455 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory inverted index for searching schematics by name and metadata
+ * <p>
+ * Each schematic is given an int id, and its name is split into lowercase words on punctuation, camelCase and
+ * digits, so {@code medieval_CastleGate2} is found by {@code castle}, {@code gate} or {@code medi}. Each word maps
+ * to a sorted array of the ids of the schematics it appears in, as do the format and uploader of each schematic.
+ * Numeric attributes are held in a flat array by id, to filter on ranges such as {@code volume<10000} without
+ * touching any objects. The index is kept up to date one schematic at a time as they change.
+ */
+public class SearchIndex {
+
+    // Score for each query word that matches a word of a name exactly, and that only starts one
+    private static final int EXACT_SCORE = 2;
+    private static final int PREFIX_SCORE = 1;
+    private static final Pattern FILTER = Pattern.compile("^(\\w+)(<=|>=|<|>|=|:)(.+)$");
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by the lock
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final NavigableMap<String, Postings> words = new TreeMap<>();
+    private final Map<String, Postings> tags = new HashMap<>();
+    private SchematicCatalogue.Entry[] documents = new SchematicCatalogue.Entry[64];
+    private long[] attributes = new long[64 * Attribute.VALUES.length];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+
+    /**
+     * Index schematics in bulk, skipping any already indexed, which are taken to be newer
+     *
+     * @param schematics The schematics to index
+     */
+    public void load(@NotNull Collection<SchematicCatalogue.Entry> schematics) {
+        lock.writeLock().lock();
+        try {
+            for (SchematicCatalogue.Entry schematic : schematics) {
+                if (!ids.containsKey(schematic.name())) {
+                    put(schematic);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index a schematic, replacing what was indexed for it before
+     *
+     * @param schematic The schematic, described by the catalogue
+     */
+    public void put(@NotNull SchematicCatalogue.Entry schematic) {
+        lock.writeLock().lock();
+        try {
+            final Integer existing = ids.get(schematic.name());
+            if (existing != null && schematic.equals(documents[existing])) {
+                return;
+            }
+            final int id = existing != null ? existing : allocate();
+            if (existing != null) {
+                unindex(id);
+            }
+            ids.put(schematic.name(), id);
+            documents[id] = schematic;
+            for (String term : getTags(schematic)) {
+                tags.computeIfAbsent(term, key -> new Postings()).add(id);
+            }
+            for (String word : tokenize(stripExtension(schematic.name()))) {
+                words.computeIfAbsent(word, key -> new Postings()).add(id);
+            }
+            for (Attribute attribute : Attribute.VALUES) {
+                attributes[id * Attribute.VALUES.length + attribute.ordinal()] = attribute.of(schematic);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Drop a schematic from the index
+    public void remove(@NotNull String name) {
+        lock.writeLock().lock();
+        try {
+            final Integer id = ids.remove(name);
+            if (id == null) {
+                return;
+            }
+            unindex(id);
+            documents[id] = null;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[freeCount++] = id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns true if a schematic is indexed exactly as described
+    public boolean isIndexed(@NotNull SchematicCatalogue.Entry schematic) {
+        lock.readLock().lock();
+        try {
+            final Integer id = ids.get(schematic.name());
+            return id != null && schematic.equals(documents[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Search for schematics. A query is made of words, each of which must start a word of a schematic's name,
+     * and filters: {@code format:sponge} and {@code uploader:name} match exactly, while {@code width}, {@code height},
+     * {@code length}, {@code volume} and {@code size} may be compared with {@code <}, {@code <=}, {@code >},
+     * {@code >=} or {@code =}. Results are ranked by how many words matched whole, then by the shortest name
+     *
+     * @param query The query
+     * @param limit The maximum number of results to return
+     * @return The best matching schematics, and how many matched in all
+     */
+    @NotNull
+    public Result search(@NotNull String query, int limit) {
+        final Query parsed = Query.parse(query);
+        lock.readLock().lock();
+        try {
+            // Count the terms each schematic has matched, dropping out those that miss one
+            final int[] matched = new int[nextId];
+            final int[] scores = new int[nextId];
+            int step = 0;
+            for (String tag : parsed.tags()) {
+                final Postings postings = tags.get(tag);
+                if (postings == null) {
+                    return Result.EMPTY;
+                }
+                postings.match(matched, step, scores, 0);
+                step++;
+            }
+            for (String word : parsed.words()) {
+                final Postings exact = words.get(word);
+                if (exact != null) {
+                    exact.match(matched, step, scores, EXACT_SCORE);
+                }
+                for (Postings postings : words.subMap(word, false, word + Character.MAX_VALUE, false).values()) {
+                    postings.match(matched, step, scores, PREFIX_SCORE);
+                }
+                step++;
+            }
+
+            // Keep the best results in a heap, worst first, so only the results returned are ever sorted
+            final Comparator<Integer> ranking = Comparator.<Integer>comparingInt(id -> scores[id]).reversed()
+                    .thenComparingInt(id -> documents[id].name().length())
+                    .thenComparing(id -> documents[id].name(), String.CASE_INSENSITIVE_ORDER);
+            final PriorityQueue<Integer> best = new PriorityQueue<>(Math.max(1, limit + 1), ranking.reversed());
+            int total = 0;
+            for (int id = 0; id < nextId; id++) {
+                if (matched[id] != step || documents[id] == null || !parsed.accepts(attributes, id)) {
+                    continue;
+                }
+                total++;
+                if (best.size() < limit) {
+                    best.add(id);
+                } else if (limit > 0 && ranking.compare(id, best.peek()) < 0) {
+                    best.poll();
+                    best.add(id);
+                }
+            }
+            final List<SchematicCatalogue.Entry> results = new ArrayList<>(best.size());
+            while (!best.isEmpty()) {
+                results.add(documents[best.poll()]);
+            }
+            Collections.reverse(results);
+            return new Result(total, results);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Drop a schematic's terms from the postings, leaving its id allocated
+    private void unindex(int id) {
+        final SchematicCatalogue.Entry previous = documents[id];
+        for (String term : getTags(previous)) {
+            removePosting(tags, term, id);
+        }
+        for (String word : tokenize(stripExtension(previous.name()))) {
+            removePosting(words, word, id);
+        }
+    }
+
+    private static void removePosting(@NotNull Map<String, Postings> map, @NotNull String term, int id) {
+        final Postings postings = map.get(term);
+        if (postings != null && postings.remove(id) && postings.size == 0) {
+            map.remove(term);
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        if (nextId == documents.length) {
+            documents = Arrays.copyOf(documents, documents.length * 2);
+            attributes = Arrays.copyOf(attributes, documents.length * Attribute.VALUES.length);
+        }
+        return nextId++;
+    }
+
+    // The exact-match terms for a schematic's format and uploader
+    @NotNull
+    private static List<String> getTags(@NotNull SchematicCatalogue.Entry schematic) {
+        final String format = "format:" + schematic.format().getName();
+        if (schematic.uploaderName() == null) {
+            return List.of(format);
+        }
+        return List.of(format, "uploader:" + schematic.uploaderName().toLowerCase(Locale.ENGLISH));
+    }
+
+    @NotNull
+    private static String stripExtension(@NotNull String name) {
+        final int extension = name.lastIndexOf('.');
+        return extension > 0 ? name.substring(0, extension) : name;
+    }
+
+    /**
+     * Split text into lowercase words on anything that isn't a letter or digit, on changes of case within a word
+     * ({@code castleGate}, {@code HTMLExport}), and between letters and digits
+     *
+     * @param text The text to split
+     * @return The distinct words, in order
+     */
+    @NotNull
+    public static List<String> tokenize(@NotNull String text) {
+        final Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+            if (!Character.isLetterOrDigit(c)) {
+                if (start >= 0) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+                    start = -1;
+                }
+                continue;
+            }
+            if (start >= 0 && isBoundary(text, i)) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+                start = i;
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return List.copyOf(tokens);
+    }
+
+    // Returns true if a new word starts at the given letter or digit, which follows another
+    private static boolean isBoundary(@NotNull String text, int i) {
+        final char previous = text.charAt(i - 1);
+        final char current = text.charAt(i);
+        if (Character.isDigit(previous) != Character.isDigit(current)) {
+            return true;
+        }
+        if (Character.isLowerCase(previous) && Character.isUpperCase(current)) {
+            return true;
+        }
+        // The last capital of a run starts the next word, as in HTMLExport
+        return Character.isUpperCase(previous) && Character.isUpperCase(current) && i + 1 < text.length()
+               && Character.isLowerCase(text.charAt(i + 1));
+    }
+
+    /**
+     * The result of a search
+     *
+     * @param total   The number of schematics that matched
+     * @param results The best matching schematics, best first
+     */
+    public record Result(int total, @NotNull List<SchematicCatalogue.Entry> results) {
+        private static final Result EMPTY = new Result(0, List.of());
+    }
+
+    // A numeric attribute of a schematic that can be filtered on; -1 if not known
+    private enum Attribute {
+        WIDTH, HEIGHT, LENGTH, VOLUME, SIZE;
+
+        private static final Attribute[] VALUES = values();
+
+        private long of(@NotNull SchematicCatalogue.Entry schematic) {
+            final SchematicCatalogue.Dimensions dimensions = schematic.dimensions();
+            return switch (this) {
+                case WIDTH -> dimensions == null ? -1 : dimensions.width();
+                case HEIGHT -> dimensions == null ? -1 : dimensions.height();
+                case LENGTH -> dimensions == null ? -1 : dimensions.length();
+                case VOLUME -> dimensions == null ? -1 : dimensions.getVolume();
+                case SIZE -> schematic.size();
+            };
+        }
+
+        @Nullable
+        private static Attribute byName(@NotNull String name) {
+            for (Attribute attribute : VALUES) {
+                if (attribute.name().equalsIgnoreCase(name)) {
+                    return attribute;
+                }
+            }
+            return null;
+        }
+    }
+
+    // A range an attribute must fall within, inclusive
+    private record Range(@NotNull Attribute attribute, long min, long max) {
+
+        private boolean accepts(long[] attributes, int id) {
+            final long value = attributes[id * Attribute.VALUES.length + attribute.ordinal()];
+            return value >= 0 && value >= min && value <= max;
+        }
+
+    }
+
+    // A parsed query: words to match against names, exact tags, and attribute ranges
+    private record Query(@NotNull List<String> words, @NotNull List<String> tags, @NotNull List<Range> ranges) {
+
+        @NotNull
+        private static Query parse(@NotNull String query) {
+            final Set<String> words = new LinkedHashSet<>();
+            final List<String> tags = new ArrayList<>();
+            final List<Range> ranges = new ArrayList<>();
+            for (String part : query.trim().split("\\s+")) {
+                final Matcher filter = FILTER.matcher(part);
+                if (filter.matches() && parseFilter(filter, tags, ranges)) {
+                    continue;
+                }
+                words.addAll(tokenize(part));
+            }
+            return new Query(List.copyOf(words), tags, ranges);
+        }
+
+        // Parse a filter, returning false if it isn't one, so it is searched for as words instead
+        private static boolean parseFilter(@NotNull Matcher filter, @NotNull List<String> tags,
+                                           @NotNull List<Range> ranges) {
+            final String key = filter.group(1).toLowerCase(Locale.ENGLISH);
+            final String operator = filter.group(2);
+            final String value = filter.group(3);
+            if (operator.equals(":")) {
+                if (!key.equals("format") && !key.equals("uploader")) {
+                    return false;
+                }
+                tags.add(key + ":" + value.toLowerCase(Locale.ENGLISH));
+                return true;
+            }
+            final Attribute attribute = Attribute.byName(key);
+            if (attribute == null) {
+                return false;
+            }
+            final long bound;
+            try {
+                bound = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            ranges.add(switch (operator) {
+                case "<" -> new Range(attribute, Long.MIN_VALUE, bound - 1);
+                case "<=" -> new Range(attribute, Long.MIN_VALUE, bound);
+                case ">" -> new Range(attribute, bound + 1, Long.MAX_VALUE);
+                case ">=" -> new Range(attribute, bound, Long.MAX_VALUE);
+                default -> new Range(attribute, bound, bound);
+            });
+            return true;
+        }
+
+        private boolean accepts(long[] attributes, int id) {
+            for (Range range : ranges) {
+                if (!range.accepts(attributes, id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    // A sorted, growable array of the ids of the schematics a term appears in
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int id) {
+            final int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            final int insertion = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, insertion, ids, insertion + 1, size - insertion);
+            ids[insertion] = id;
+            size++;
+        }
+
+        private boolean remove(int id) {
+            final int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        // Advance the schematics that have matched every term so far, adding to their score
+        private void match(int[] matched, int step, int[] scores, int score) {
+            for (int i = 0; i < size; i++) {
+                final int id = ids[i];
+                if (matched[id] == step) {
+                    matched[id] = step + 1;
+                    scores[id] += score;
+                }
+            }
+        }
+    }
+
+}
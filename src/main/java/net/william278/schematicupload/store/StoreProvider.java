@@ -0,0 +1,283 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.store;
+
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.pipeline.ProcessingPipeline;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.logging.Level;
+
+public interface StoreProvider {
+
+    // Ticks to wait after startup before reconciling a loaded catalogue with the store
+    long RECONCILE_DELAY_TICKS = 200L;
+
+    @NotNull
+    SchematicStore getSchematicStore();
+
+    void setSchematicStore(@NotNull SchematicStore schematicStore);
+
+    // Create the schematic store for the configured storage backend
+    default void loadSchematicStore() {
+        final Settings.StorageSettings settings = getPlugin().getSettings().getStorageSettings();
+        final FileSchematicStore local = new FileSchematicStore(
+                getPlugin().getSchematicDirectory(), settings.getLayout(), loadPackArchive()
+        );
+        if (settings.getType() == Settings.StorageSettings.StorageType.FILE) {
+            setSchematicStore(local);
+            return;
+        }
+
+        try {
+            setSchematicStore(new CachingSchematicStore(
+                    new S3SchematicStore(settings.getS3Settings()), local, settings.getCacheSize()
+            ));
+        } catch (Throwable e) {
+            getPlugin().log(Level.SEVERE, "Failed to initialize S3 storage; falling back to local storage", e);
+            setSchematicStore(local);
+        }
+    }
+
+    @Nullable
+    SchematicWatcher getSchematicWatcher();
+
+    void setSchematicWatcher(@Nullable SchematicWatcher schematicWatcher);
+
+    // Watch the schematic directory for changes made outside the plugin
+    default void loadSchematicWatcher() {
+        try {
+            setSchematicWatcher(new SchematicWatcher(getPlugin().getSchematicDirectory()));
+        } catch (Throwable e) {
+            getPlugin().log(Level.WARNING, "Failed to watch the schematic directory for changes", e);
+        }
+    }
+
+    @NotNull
+    SchematicCache getSchematicCache();
+
+    void setSchematicCache(@NotNull SchematicCache schematicCache);
+
+    // Create the in-memory cache of schematic contents, invalidating entries as files change on disk
+    default void loadSchematicCache() {
+        final Settings.StorageSettings settings = getPlugin().getSettings().getStorageSettings();
+        final SchematicCache cache = new SchematicCache(
+                settings.getMemoryCacheSize(), settings.getMemoryCacheMaxEntrySize()
+        );
+        final SchematicWatcher watcher = getSchematicWatcher();
+        if (watcher != null) {
+            watcher.addListener((change, name) -> {
+                if (name == null) {
+                    cache.invalidateAll();
+                } else {
+                    cache.invalidate(name);
+                }
+            });
+        }
+        setSchematicCache(cache);
+    }
+
+    @Nullable
+    SchematicCatalogue getSchematicCatalogue();
+
+    void setSchematicCatalogue(@Nullable SchematicCatalogue schematicCatalogue);
+
+    // Load the catalogue of schematic metadata, setting aside a catalogue file that can't be read
+    default void loadSchematicCatalogue() {
+        final Path file = getPlugin().getConfigDirectory().resolve(SchematicCatalogue.FILE_NAME);
+        try {
+            setSchematicCatalogue(new SchematicCatalogue(file, getSchematicStore(), getPlugin().getLogger()));
+            return;
+        } catch (Throwable e) {
+            getPlugin().log(Level.SEVERE, "Failed to load the schematic catalogue; starting a new one", e);
+        }
+        try {
+            Files.move(file, file.resolveSibling(SchematicCatalogue.FILE_NAME + ".broken"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            setSchematicCatalogue(new SchematicCatalogue(file, getSchematicStore(), getPlugin().getLogger()));
+        } catch (Throwable e) {
+            getPlugin().log(Level.SEVERE, "Failed to create a schematic catalogue", e);
+        }
+    }
+
+    @NotNull
+    SchematicIndex getSchematicIndex();
+
+    void setSchematicIndex(@NotNull SchematicIndex schematicIndex);
+
+    // Index schematic names off the main thread, keeping the index up to date as files change on disk. The index
+    // starts from the catalogue, so is usable straight away, and the store is listed to reconcile it a little later,
+    // backfilling metadata for schematics that changed whilst the server was down
+    default void loadSchematicIndex() {
+        final SchematicIndex index = new SchematicIndex(getSchematicStore());
+        final SchematicCatalogue catalogue = getSchematicCatalogue();
+        if (catalogue != null) {
+            index.load(catalogue.list().stream().map(SchematicCatalogue.Entry::toStat).toList());
+            index.addListener(catalogue::onChange);
+        }
+        final SchematicWatcher watcher = getSchematicWatcher();
+        if (watcher != null) {
+            watcher.addListener((change, name) -> {
+                try {
+                    if (name == null) {
+                        index.rebuild();
+                    } else {
+                        index.refresh(name);
+                    }
+                } catch (Throwable e) {
+                    getPlugin().log(Level.WARNING, "Failed to update the schematic index", e);
+                }
+            });
+        }
+        setSchematicIndex(index);
+        final long delay = catalogue != null && catalogue.size() > 0 ? RECONCILE_DELAY_TICKS : 0L;
+        getPlugin().getServer().getScheduler().runTaskLaterAsynchronously(getPlugin(), () -> {
+            try {
+                index.rebuild();
+                if (catalogue == null) {
+                    return;
+                }
+                final List<SchematicStore.SchematicStat> stale = catalogue.reconcile(index.list());
+                final ProcessingPipeline pipeline = getPlugin().getProcessingPipeline();
+                if (pipeline != null) {
+                    stale.forEach(stat -> pipeline.submit(stat.name(), ProcessingPipeline.Priority.BACKFILL));
+                }
+            } catch (Throwable e) {
+                getPlugin().log(Level.WARNING, "Failed to index schematics in the store", e);
+            }
+        }, delay);
+    }
+
+    @NotNull
+    SearchIndex getSearchIndex();
+
+    void setSearchIndex(@NotNull SearchIndex searchIndex);
+
+    // Index schematics for searching, keeping the index up to date as the schematic index changes. Metadata derived
+    // later is indexed by the processing pipeline
+    default void loadSearchIndex() {
+        final SearchIndex search = new SearchIndex();
+        final SchematicIndex index = getSchematicIndex();
+        final SchematicCatalogue catalogue = getSchematicCatalogue();
+        index.addListener(change -> {
+            if (change.type() == SchematicIndex.Change.Type.REMOVED) {
+                search.remove(change.stat().name());
+            } else {
+                search.put(describe(catalogue, change.stat()));
+            }
+        });
+        setSearchIndex(search);
+        getPlugin().getServer().getScheduler().runTaskAsynchronously(getPlugin(), () -> {
+            try {
+                search.load(index.list().stream().map(stat -> describe(catalogue, stat)).toList());
+            } catch (Throwable e) {
+                getPlugin().log(Level.WARNING, "Failed to build the search index", e);
+            }
+        });
+    }
+
+    // Describe a schematic with its catalogued metadata, if there is a catalogue
+    @NotNull
+    private static SchematicCatalogue.Entry describe(@Nullable SchematicCatalogue catalogue,
+                                                     @NotNull SchematicStore.SchematicStat stat) {
+        return catalogue != null ? catalogue.describe(stat) : SchematicCatalogue.Entry.of(stat);
+    }
+
+    // Load the cold-storage archive if enabled, or if schematics were archived before it was disabled
+    @Nullable
+    default PackArchive loadPackArchive() {
+        final Settings.StorageSettings.ArchiveSettings settings = getPlugin().getSettings()
+                .getStorageSettings().getArchiveSettings();
+        final Path directory = getPlugin().getSchematicDirectory();
+        if (!settings.isEnabled() && !Files.isDirectory(directory.resolve(PackArchive.ARCHIVE_DIRECTORY))) {
+            return null;
+        }
+        try {
+            return new PackArchive(directory);
+        } catch (Throwable e) {
+            getPlugin().log(Level.SEVERE, "Failed to load the schematic archive", e);
+            return null;
+        }
+    }
+
+    // Periodically move schematics that haven't been touched for a while into the archive
+    default void scheduleArchiving() {
+        final Settings.StorageSettings.ArchiveSettings settings = getPlugin().getSettings()
+                .getStorageSettings().getArchiveSettings();
+        if (!settings.isEnabled()) {
+            return;
+        }
+        final long period = Duration.ofHours(Math.max(1, settings.getCheckIntervalHours())).getSeconds() * 20L;
+        getPlugin().getServer().getScheduler().runTaskTimerAsynchronously(getPlugin(), () -> {
+            try {
+                final int archived = getLocalSchematicStore().archive(Duration.ofDays(settings.getArchiveAfterDays()));
+                if (archived > 0) {
+                    getPlugin().log(Level.INFO, "Archived " + archived + " schematics that haven't been used recently");
+                }
+                if (settings.getCompactUnusedPercent() > 0) {
+                    final long freed = getLocalSchematicStore().compactArchive(
+                            Math.min(settings.getCompactUnusedPercent(), 100) / 100d);
+                    if (freed > 0) {
+                        getPlugin().log(Level.INFO, "Compacted the schematic archive, freeing " + (freed / 1024) + "KiB");
+                    }
+                }
+            } catch (Throwable e) {
+                getPlugin().log(Level.WARNING, "Failed to archive unused schematics", e);
+            }
+        }, period, period);
+    }
+
+    // Get the store for schematics on the local disk, which may be a cache in front of a remote store
+    @NotNull
+    default FileSchematicStore getLocalSchematicStore() {
+        final SchematicStore store = getSchematicStore();
+        if (store instanceof CachingSchematicStore caching) {
+            return caching.getLocalStore();
+        }
+        return (FileSchematicStore) store;
+    }
+
+    default void endSchematicStore() {
+        try {
+            final SchematicWatcher watcher = getSchematicWatcher();
+            if (watcher != null) {
+                watcher.close();
+            }
+            final SchematicCatalogue catalogue = getSchematicCatalogue();
+            if (catalogue != null) {
+                catalogue.close();
+            }
+            getSchematicStore().close();
+        } catch (Throwable e) {
+            getPlugin().log(Level.WARNING, "Failed to close the schematic store", e);
+        }
+    }
+
+    @NotNull
+    SchematicUpload getPlugin();
+
+}
@@ -19,54 +19,110 @@
 
 package net.william278.schematicupload.upload;
 
-import com.google.common.collect.Maps;
-import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
 import net.william278.schematicupload.SchematicUpload;
 import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.store.SchematicCatalogue;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
-@AllArgsConstructor(access = lombok.AccessLevel.PACKAGE)
+// Codes are consumed from web server threads whilst being generated on the main thread, so state is concurrent
+@RequiredArgsConstructor(access = lombok.AccessLevel.PACKAGE)
 public class UploadManager {
 
     // Map of UUIDs to auth codes
-    private final HashMap<UUID, UploadCode> uploadAuthorizationCodes = Maps.newHashMap();
+    private final ConcurrentHashMap<UUID, UploadCode> uploadAuthorizationCodes = new ConcurrentHashMap<>();
+
+    // Map of auth codes to the UUIDs they were generated for, to look codes up without a scan
+    private final ConcurrentHashMap<String, UUID> codeOwners = new ConcurrentHashMap<>();
 
     // Map of UUIDs to timestamps indicating the last file they uploaded (used for rate limiting)
-    private final HashMap<UUID, LinkedList<OffsetDateTime>> userUploadQueues = Maps.newHashMap();
+    private final ConcurrentHashMap<UUID, LinkedList<OffsetDateTime>> userUploadQueues = new ConcurrentHashMap<>();
 
-    private SchematicUpload plugin;
+    private final SchematicUpload plugin;
 
     public boolean canUpload(@NotNull UUID player) {
         final Settings.LimitSettings limits = plugin.getSettings().getLimitSettings();
         final int maxUploads = limits.getSchematicsPerPeriod();
         final Duration period = Duration.of(limits.getPeriodMinutes(), ChronoUnit.MINUTES);
-        if (!userUploadQueues.containsKey(player)) {
-            userUploadQueues.put(player, new LinkedList<>());
+        final LinkedList<OffsetDateTime> uploads = userUploadQueues.computeIfAbsent(player, p -> new LinkedList<>());
+        synchronized (uploads) {
+            if (!uploads.isEmpty()) {
+                if (OffsetDateTime.now().isAfter(uploads.getLast().plus(period))) {
+                    uploads.removeLast();
+                }
+                return uploads.size() <= maxUploads;
+            }
+            return true;
         }
+    }
 
-        if (!userUploadQueues.get(player).isEmpty()) {
-            if (OffsetDateTime.now().isAfter(userUploadQueues.get(player).getLast().plus(period))) {
-                userUploadQueues.get(player).removeLast();
-            }
-            return userUploadQueues.get(player).size() <= maxUploads;
+    /**
+     * Check whether a player's stored schematics leave room for another upload, within their storage quota
+     *
+     * <p>
+     * If the upload will overwrite a schematic of the same name the player already stored, that schematic's size and
+     * count are netted out, as it will no longer take up space once replaced.
+     *
+     * @param player The UUID of the player
+     * @param name   The name the upload will be stored under, or {@code null} if not yet known
+     * @param size   The size of the upload, in bytes
+     * @return {@code true} if the upload would fit within the player's quota
+     */
+    public boolean isWithinQuota(@NotNull UUID player, @Nullable String name, long size) {
+        final Settings.LimitSettings limits = plugin.getSettings().getLimitSettings();
+        final SchematicCatalogue catalogue = plugin.getSchematicCatalogue();
+        if (catalogue == null) {
+            return true;
         }
-        return true;
+        final SchematicCatalogue.Usage usage = catalogue.getUsage(player);
+        final Optional<SchematicCatalogue.Entry> replaced = name == null ? Optional.empty() : catalogue.get(name)
+                .filter(entry -> player.equals(entry.uploader()));
+        final int files = usage.files() - (replaced.isPresent() ? 1 : 0);
+        final long bytes = usage.bytes() - replaced.map(SchematicCatalogue.Entry::size).orElse(0L);
+        return (limits.getMaxStoredSchematics() <= 0 || files < limits.getMaxStoredSchematics())
+               && (limits.getMaxStoredBytes() <= 0 || bytes + size <= limits.getMaxStoredBytes());
     }
 
     public void markAsUploaded(@NotNull UUID player) {
         final OffsetDateTime currentTimestamp = OffsetDateTime.now();
-        if (!userUploadQueues.containsKey(player)) {
-            userUploadQueues.put(player, new LinkedList<>());
+        final LinkedList<OffsetDateTime> uploads = userUploadQueues.computeIfAbsent(player, p -> new LinkedList<>());
+        synchronized (uploads) {
+            uploads.addFirst(currentTimestamp);
+        }
+    }
+
+    /**
+     * Check whether a code could currently be consumed, without consuming it
+     *
+     * @param input The code to check
+     * @return {@code true} if the code exists, has not timed out, and its player may upload
+     */
+    public boolean isCodeValid(@NotNull String input) {
+        final UUID player = codeOwners.get(input);
+        if (player == null) {
+            return false;
         }
-        userUploadQueues.get(player).addFirst(currentTimestamp);
+        final UploadCode code = uploadAuthorizationCodes.get(player);
+        return code != null && code.getCode().equals(input) && !code.hasTimedOut() && canUpload(player);
+    }
+
+    /**
+     * Get the player a code was generated for, without consuming it
+     *
+     * @param input The code to look up
+     * @return The UUID of the code's player, if the code exists
+     */
+    public Optional<UUID> getCodeOwner(@NotNull String input) {
+        return Optional.ofNullable(codeOwners.get(input));
     }
 
     @NotNull
@@ -76,41 +132,33 @@ public class UploadManager {
             return new ConsumptionResult(false, Optional.empty(), "Invalid code; wrong length");
         }
 
-        UUID uuidToRemove = null;
-        boolean consumed = false;
-        for (UUID uuid : uploadAuthorizationCodes.keySet()) {
-            UploadCode code = uploadAuthorizationCodes.get(uuid);
-            if (code.getCode().equals(input)) {
-                uuidToRemove = uuid;
-                if (code.hasTimedOut()) {
-                    errorMessage = "Invalid code; that code has expired";
-                    break;
-                }
-                if (!canUpload(uuid)) {
-                    errorMessage = String.format("You've reached the maximum uploads you can do in %s minutes",
-                            plugin.getSettings().getLimitSettings().getPeriodMinutes());
-                    break;
-                }
-
-                consumed = true;
-                break;
-            }
+        // Remove the code first, so that it can only be consumed once
+        final UUID owner = codeOwners.remove(input);
+        final UploadCode code = owner != null ? uploadAuthorizationCodes.get(owner) : null;
+        if (code == null || !code.getCode().equals(input) || !uploadAuthorizationCodes.remove(owner, code)) {
+            return new ConsumptionResult(false, Optional.empty(), errorMessage);
         }
 
-        final Optional<UUID> player;
-        if (uuidToRemove != null) {
-            uploadAuthorizationCodes.remove(uuidToRemove);
-            player = Optional.of(uuidToRemove);
+        boolean consumed = false;
+        if (code.hasTimedOut()) {
+            errorMessage = "Invalid code; that code has expired";
+        } else if (!canUpload(owner)) {
+            errorMessage = String.format("You've reached the maximum uploads you can do in %s minutes",
+                    plugin.getSettings().getLimitSettings().getPeriodMinutes());
         } else {
-            player = Optional.empty();
+            consumed = true;
         }
-        return new ConsumptionResult(consumed, player, errorMessage);
+        return new ConsumptionResult(consumed, Optional.of(owner), errorMessage);
     }
 
     @NotNull
     public UploadCode generateCode(@NotNull UUID player) {
         UploadCode code = UploadCode.generate();
-        uploadAuthorizationCodes.put(player, code);
+        final UploadCode previous = uploadAuthorizationCodes.put(player, code);
+        if (previous != null) {
+            codeOwners.remove(previous.getCode(), player);
+        }
+        codeOwners.put(code.getCode(), player);
         return code;
     }
 
@@ -20,10 +20,13 @@
 package net.william278.schematicupload.util;
 
 import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.metrics.FlightRecorderEvents;
 import org.bstats.bukkit.Metrics;
 import org.bstats.charts.SimplePie;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.logging.Level;
+
 public interface MetricsProvider {
     int METRICS_ID = 14611;
     String WORLD_EDIT_METRIC_ID = "worldedit_type";
@@ -37,6 +40,18 @@ public interface MetricsProvider {
         ));
     }
 
+    // Register Java Flight Recorder events, if enabled
+    default void loadFlightRecorderEvents() {
+        if (!getPlugin().getSettings().isFlightRecorderEvents()) {
+            return;
+        }
+        try {
+            FlightRecorderEvents.register();
+        } catch (Throwable e) {
+            getPlugin().log(Level.WARNING, "Failed to register Java Flight Recorder events", e);
+        }
+    }
+
     @NotNull
     SchematicUpload getPlugin();
 }
@@ -0,0 +1,128 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal, streaming reader of uncompressed NBT, for picking a few values out of a schematic without loading it
+ * <p>
+ * Numbers and strings in compounds near the root are collected by their dotted path (e.g.
+ * {@code Metadata.EnclosingSize.x}); everything else, including block data arrays and list elements, is skipped.
+ */
+public final class NbtReader {
+
+    // Maximum nesting of compounds and lists, as enforced by the game
+    private static final int MAX_NESTING = 512;
+
+    private final DataInputStream input;
+    private final int maxDepth;
+    private final Map<String, Object> values = new HashMap<>();
+
+    private NbtReader(@NotNull InputStream input, int maxDepth) {
+        this.input = new DataInputStream(input);
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Read the numbers and strings within a number of compounds of the root of an NBT stream
+     *
+     * @param input    The uncompressed NBT stream, positioned at the root tag; read to the end of the root tag
+     * @param maxDepth The depth of compounds to collect values from, where 1 is the root compound alone
+     * @return The values found, by their dotted path from the root compound
+     * @throws IOException if the stream could not be read, or is not valid NBT
+     */
+    @NotNull
+    public static Map<String, Object> readValues(@NotNull InputStream input, int maxDepth) throws IOException {
+        final NbtReader reader = new NbtReader(input, maxDepth);
+        if (reader.input.readByte() != 10) {
+            throw new IOException("NBT root is not a compound");
+        }
+        reader.input.readUTF();
+        reader.readCompound("", 1);
+        return reader.values;
+    }
+
+    private void readCompound(@Nullable String path, int depth) throws IOException {
+        byte type;
+        while ((type = input.readByte()) != 0) {
+            final String name = input.readUTF();
+            readPayload(type, path == null || depth > maxDepth ? null
+                    : path.isEmpty() ? name : path + "." + name, depth);
+        }
+    }
+
+    // Read or skip the payload of a tag, recording its value if it has a path
+    private void readPayload(byte type, @Nullable String path, int depth) throws IOException {
+        if (depth > MAX_NESTING) {
+            throw new IOException("NBT is nested too deeply");
+        }
+        final Object value = switch (type) {
+            case 1 -> input.readByte();
+            case 2 -> input.readShort();
+            case 3 -> input.readInt();
+            case 4 -> input.readLong();
+            case 5 -> input.readFloat();
+            case 6 -> input.readDouble();
+            case 7 -> skip(readLength(), 1);
+            case 8 -> input.readUTF();
+            case 9 -> {
+                final byte elementType = input.readByte();
+                final int length = readLength();
+                for (int i = 0; i < length; i++) {
+                    readPayload(elementType, null, depth + 1);
+                }
+                yield null;
+            }
+            case 10 -> {
+                readCompound(path, depth + 1);
+                yield null;
+            }
+            case 11 -> skip(readLength(), 4);
+            case 12 -> skip(readLength(), 8);
+            default -> throw new IOException("Unknown NBT tag type " + type);
+        };
+        if (value != null && path != null) {
+            values.put(path, value);
+        }
+    }
+
+    private int readLength() throws IOException {
+        final int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Negative NBT length " + length);
+        }
+        return length;
+    }
+
+    @Nullable
+    private Object skip(int length, int elementSize) throws IOException {
+        input.skipNBytes((long) length * elementSize);
+        return null;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a ZIP archive straight to a stream, with every entry stored uncompressed
+ * <p>
+ * Unlike {@link java.util.zip.ZipOutputStream}, stored entries need not have their CRC known before they are
+ * written: each is followed by a data descriptor holding the CRC computed as it was copied, so entries are read
+ * once, with no temporary file or buffering. Archives are limited to 65535 entries and 4 GiB, as ZIP64 is not
+ * written.
+ */
+public class StoredZipWriter {
+
+    public static final long MAX_SIZE = 0xFFFFFFFFL;
+    public static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final short VERSION = 20;
+    // Sizes and CRC follow the data, and names are UTF-8
+    private static final short FLAGS = 0x0808;
+    private static final short STORED = 0;
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private final OutputStream output;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private long offset;
+
+    public StoredZipWriter(@NotNull OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Copy an entry into the archive
+     *
+     * @param name         The entry name
+     * @param lastModified When the entry was last modified, in epoch milliseconds
+     * @param data         The entry contents; not closed by this method
+     * @return The number of bytes copied
+     * @throws IOException if the entry could not be read or written, or the archive would be too large
+     */
+    public long writeEntry(@NotNull String name, long lastModified, @NotNull InputStream data) throws IOException {
+        if (entries.size() >= MAX_ENTRIES) {
+            throw new IOException("Too many entries for a ZIP archive");
+        }
+        final byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        final int dosTime = toDosTime(lastModified);
+        final long headerOffset = offset;
+
+        header.clear();
+        header.putInt(LOCAL_HEADER).putShort(VERSION).putShort(FLAGS).putShort(STORED).putInt(dosTime)
+                .putInt(0).putInt(0).putInt(0)
+                .putShort((short) encodedName.length).putShort((short) 0);
+        writeHeader();
+        write(encodedName, encodedName.length);
+
+        crc.reset();
+        long size = 0;
+        int read;
+        while ((read = data.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            size += read;
+            write(buffer, read);
+        }
+
+        header.clear();
+        header.putInt(DATA_DESCRIPTOR).putInt((int) crc.getValue()).putInt((int) size).putInt((int) size);
+        writeHeader();
+        entries.add(new Entry(encodedName, dosTime, (int) crc.getValue(), size, headerOffset));
+        return size;
+    }
+
+    /**
+     * Write the central directory, completing the archive. The underlying stream is not closed
+     *
+     * @throws IOException if the central directory could not be written
+     */
+    public void finish() throws IOException {
+        final long directoryOffset = offset;
+        for (Entry entry : entries) {
+            header.clear();
+            header.putInt(CENTRAL_HEADER).putShort(VERSION).putShort(VERSION).putShort(FLAGS).putShort(STORED)
+                    .putInt(entry.dosTime()).putInt(entry.crc()).putInt((int) entry.size()).putInt((int) entry.size())
+                    .putShort((short) entry.name().length).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) entry.offset());
+            writeHeader();
+            write(entry.name(), entry.name().length);
+        }
+        final long directorySize = offset - directoryOffset;
+        header.clear();
+        header.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+                .putShort((short) entries.size()).putShort((short) entries.size())
+                .putInt((int) directorySize).putInt((int) directoryOffset).putShort((short) 0);
+        writeHeader();
+        output.flush();
+    }
+
+    private void writeHeader() throws IOException {
+        write(header.array(), header.position());
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        if (offset + length > MAX_SIZE) {
+            throw new IOException("ZIP archive would exceed " + MAX_SIZE + " bytes");
+        }
+        output.write(bytes, 0, length);
+        offset += length;
+    }
+
+    // Convert a time to the MS-DOS date and time format used by ZIP, in local time and from 1980
+    private static int toDosTime(long epochMillis) {
+        final LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private record Entry(byte[] name, int dosTime, int crc, long size, long offset) {
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import net.william278.schematicupload.config.Settings;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shapes download bandwidth, so that downloads cannot saturate the uplink the game server shares
+ * <p>
+ * Downloads are paced by a global token bucket and one per IP address, each of which may burst before settling
+ * to its configured rate. Writes are split into chunks and each chunk reserves its bytes in turn, so concurrent
+ * downloads take it in turns and share the bandwidth evenly, however large they are. Downloads no larger than
+ * the small file threshold are never shaped, so browsing and previews stay quick while large transfers slow down.
+ */
+public class BandwidthShaper {
+
+    private static final int CHUNK_SIZE = 16384;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Settings.WebServerSettings.BandwidthSettings settings;
+    private final Pacer globalPacer;
+    private final ConcurrentHashMap<String, Pacer> addressPacers = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final LongAdder shapedBytes = new LongAdder();
+    private final LongAdder delayedNanos = new LongAdder();
+
+    public BandwidthShaper(@NotNull Settings.WebServerSettings.BandwidthSettings settings) {
+        this.settings = settings;
+        this.globalPacer = new Pacer(settings.getGlobalBytesPerSecond(), settings.getBurstBytes());
+    }
+
+    /**
+     * Returns whether a download of the given size should be shaped
+     *
+     * @param size The size of the download, in bytes
+     * @return {@code true} if the download is larger than the small file threshold and a limit is set
+     */
+    public boolean isShaped(long size) {
+        return size > settings.getSmallFileThreshold()
+               && (settings.getGlobalBytesPerSecond() > 0 || settings.getPerIpBytesPerSecond() > 0);
+    }
+
+    /**
+     * Wrap a response stream so that writes to it are paced. Closing the returned stream closes the response
+     * stream, and ends the download's share of the bandwidth
+     *
+     * @param address The IP address of the client
+     * @param output  The response stream to write to
+     * @return The shaped stream
+     */
+    @NotNull
+    public OutputStream shape(@NotNull String address, @NotNull OutputStream output) {
+        sweep();
+        final Pacer addressPacer = addressPacers.compute(address, (a, pacer) -> {
+            final Pacer open = pacer != null ? pacer
+                    : new Pacer(settings.getPerIpBytesPerSecond(), settings.getBurstBytes());
+            open.streams++;
+            return open;
+        });
+        activeDownloads.incrementAndGet();
+        return new ShapedOutputStream(output, address, addressPacer);
+    }
+
+    // Wait until both the client's and the global bucket can spare the bytes, reserving them in turn
+    private void acquire(@NotNull Pacer addressPacer, int bytes) throws InterruptedIOException {
+        pause(addressPacer.reserve(bytes));
+        pause(globalPacer.reserve(bytes));
+        shapedBytes.add(bytes);
+    }
+
+    private void pause(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        delayedNanos.add(nanos);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst shaping download");
+        }
+    }
+
+    private void release(@NotNull String address) {
+        addressPacers.computeIfPresent(address, (a, pacer) -> {
+            pacer.streams--;
+            return pacer.isIdle() ? null : pacer;
+        });
+        activeDownloads.decrementAndGet();
+    }
+
+    // Drop idle per-address buckets that have refilled completely, as they behave the same as a new bucket
+    private void sweep() {
+        final long now = System.nanoTime();
+        final long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (String address : addressPacers.keySet()) {
+            addressPacers.computeIfPresent(address, (a, pacer) -> pacer.isIdle() ? null : pacer);
+        }
+    }
+
+    public int getActiveDownloads() {
+        return activeDownloads.get();
+    }
+
+    public long getShapedBytes() {
+        return shapedBytes.sum();
+    }
+
+    public long getDelayedNanos() {
+        return delayedNanos.sum();
+    }
+
+    // A token bucket, kept as the time at which it would next be full, so that reservations are served in order
+    private static final class Pacer {
+
+        private final double nanosPerByte;
+        private final long burstNanos;
+        private long fullAt = System.nanoTime();
+        private int streams;
+
+        private Pacer(long bytesPerSecond, long burstBytes) {
+            this.nanosPerByte = bytesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / (double) bytesPerSecond : 0d;
+            this.burstNanos = (long) (Math.max(burstBytes, CHUNK_SIZE) * nanosPerByte);
+        }
+
+        // Reserve bytes, returning how long to wait before sending them
+        private synchronized long reserve(int bytes) {
+            if (nanosPerByte == 0d) {
+                return 0;
+            }
+            final long now = System.nanoTime();
+            fullAt = Math.max(fullAt, now) + (long) (bytes * nanosPerByte);
+            return fullAt - now - burstNanos;
+        }
+
+        private synchronized boolean isIdle() {
+            return streams <= 0 && fullAt - System.nanoTime() <= 0;
+        }
+
+    }
+
+    private final class ShapedOutputStream extends FilterOutputStream {
+
+        private final String address;
+        private final Pacer addressPacer;
+        private boolean closed;
+
+        private ShapedOutputStream(@NotNull OutputStream output, @NotNull String address,
+                                   @NotNull Pacer addressPacer) {
+            super(output);
+            this.address = address;
+            this.addressPacer = addressPacer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(addressPacer, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int chunk = Math.min(len, CHUNK_SIZE);
+                acquire(addressPacer, chunk);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                release(address);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.store.SchematicIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Streams changes to the schematic catalogue to list pages as Server-Sent Events
+ * <p>
+ * Each event carries the index epoch and version as its id, so a reconnecting client (or one passing {@code since=}
+ * with the version from the list response) is sent only what it missed. If those changes are no longer kept, it is
+ * sent a {@code reset} event and should fetch the list again. Clients wait in async requests, holding no thread;
+ * events are written by a single thread, which also sends a comment every so often to keep idle connections open.
+ * <p>
+ * Events are written without blocking, so a slow client can't hold up the others. Each client has a short queue of
+ * events waiting to be written; a client that falls so far behind that it fills is disconnected, and on reconnecting
+ * is caught up from the version it last saw.
+ */
+public class CatalogueEventsServlet extends HttpServlet {
+
+    public static final String VERSION_HEADER = "X-Catalogue-Version";
+    // Well under the connector's default idle timeout, so waiting clients are not disconnected
+    private static final long KEEP_ALIVE_SECONDS = 15;
+    // The most events that may wait to be written to a client before it is dropped
+    private static final int MAX_PENDING_EVENTS = 64;
+
+    private final SchematicUpload plugin;
+    private final int maxClients;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    // Connections holding a client slot, reserved when the request arrives so the limit can't be overrun
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "SchematicUpload-Events");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Consumer<SchematicIndex.Change> listener = change -> executor.execute(() -> broadcast(change));
+
+    CatalogueEventsServlet(@NotNull SchematicUpload plugin, int maxClients) {
+        this.plugin = plugin;
+        this.maxClients = maxClients;
+        plugin.getSchematicIndex().addListener(listener);
+        executor.scheduleWithFixedDelay(this::keepAlive, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (connections.incrementAndGet() > maxClients) {
+            connections.decrementAndGet();
+            response.setStatus(503);
+            response.setContentType("application/json");
+            response.getWriter().println("{\"error\":\"Too many clients are watching for changes\"}");
+            return;
+        }
+
+        // The slot is released by the client once it is closed; until then, release it if the stream can't be opened
+        boolean opened = false;
+        try {
+            response.setStatus(200);
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            response.setHeader("Cache-Control", "no-cache");
+            response.setHeader("X-Accel-Buffering", "no");
+            final ServletOutputStream output = response.getOutputStream();
+            response.flushBuffer();
+
+            final AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            final Client client = new Client(async, output);
+            async.addListener(client);
+            output.setWriteListener(client);
+            opened = true;
+            final Long since = getSince(request);
+            executor.execute(() -> connect(client, since));
+        } finally {
+            if (!opened) {
+                connections.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Get the id of an index version, as sent in events and the list response, and returned by clients catching up
+     *
+     * @param index   The schematic index
+     * @param version The version
+     * @return The id of the version, within the index's current epoch
+     */
+    @NotNull
+    public static String toEventId(@NotNull SchematicIndex index, long version) {
+        return index.getEpoch() + "-" + version;
+    }
+
+    // Get the last version the client saw, from its reconnection header or the query
+    @Nullable
+    private static Since getSince(@NotNull HttpServletRequest request) {
+        final String lastEventId = request.getHeader("Last-Event-ID");
+        final String since = lastEventId != null ? lastEventId : request.getParameter("since");
+        if (since == null) {
+            return null;
+        }
+        final int separator = since.indexOf('-');
+        try {
+            return new Since(Long.parseLong(since.substring(0, Math.max(separator, 0)).trim()),
+                    Long.parseLong(since.substring(separator + 1).trim()));
+        } catch (NumberFormatException e) {
+            return Since.UNKNOWN;
+        }
+    }
+
+    // Catch the client up, then start sending it changes; runs on the event thread, so no change is missed
+    private void connect(@NotNull Client client, @Nullable Since since) {
+        final SchematicIndex index = plugin.getSchematicIndex();
+        final long version = index.getVersion();
+        if (since == null) {
+            client.send(version, "version", "{\"version\":\"" + toEventId(index, version) + "\"}");
+        } else {
+            final Optional<List<SchematicIndex.Change>> changes = index.getChangesSince(since.epoch(), since.version());
+            if (changes.isEmpty()) {
+                client.send(version, "reset", "{\"version\":\"" + toEventId(index, version) + "\"}");
+            } else {
+                client.lastVersion = since.version();
+                changes.get().forEach(client::send);
+            }
+        }
+        if (!client.closed.get()) {
+            clients.add(client);
+        }
+    }
+
+    private void broadcast(@NotNull SchematicIndex.Change change) {
+        for (Client client : clients) {
+            client.send(change);
+        }
+    }
+
+    private void keepAlive() {
+        for (Client client : clients) {
+            client.write(": keep-alive\n\n");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        plugin.getSchematicIndex().removeListener(listener);
+        executor.shutdownNow();
+        for (Client client : clients) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    // The last version a client saw, in the epoch it was seen
+    private record Since(long epoch, long version) {
+        private static final Since UNKNOWN = new Since(-1, -1);
+    }
+
+    // A client waiting for changes
+    private final class Client implements AsyncListener, WriteListener {
+
+        private final AsyncContext async;
+        private final ServletOutputStream output;
+        // Events waiting for the connection to accept them; guarded by the client
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private boolean needsFlush;
+        // Only accessed on the event thread
+        private long lastVersion = Long.MIN_VALUE;
+
+        private Client(@NotNull AsyncContext async, @NotNull ServletOutputStream output) {
+            this.async = async;
+            this.output = output;
+        }
+
+        // Send a change, unless the client has already been sent it whilst catching up
+        private void send(@NotNull SchematicIndex.Change change) {
+            if (change.version() <= lastVersion) {
+                return;
+            }
+            send(change.version(), change.type().getId(), SchematicListServlet.toJson(
+                    SchematicListServlet.describe(plugin.getSchematicCatalogue(), change.stat())));
+        }
+
+        private void send(long version, @NotNull String event, @NotNull String data) {
+            lastVersion = version;
+            final String id = toEventId(plugin.getSchematicIndex(), version);
+            write("id: " + id + "\nevent: " + event + "\ndata: " + data + "\n\n");
+        }
+
+        // Queue a message and write as much as the connection will take, dropping the client if it has fallen behind
+        private synchronized void write(@NotNull String message) {
+            if (closed.get()) {
+                return;
+            }
+            if (pending.size() >= MAX_PENDING_EVENTS) {
+                close();
+                return;
+            }
+            pending.add(message.getBytes(StandardCharsets.UTF_8));
+            drain();
+        }
+
+        // Write queued messages until the connection would block; the container calls back once it can take more
+        private synchronized void drain() {
+            try {
+                while (!closed.get() && output.isReady()) {
+                    final byte[] message = pending.poll();
+                    if (message != null) {
+                        output.write(message);
+                        needsFlush = true;
+                    } else if (needsFlush) {
+                        needsFlush = false;
+                        output.flush();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (!release()) {
+                return;
+            }
+            try {
+                async.complete();
+            } catch (IllegalStateException ignored) {
+            }
+        }
+
+        // Mark the client closed and give up its slot, returning whether it was still open
+        private boolean release() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            clients.remove(this);
+            connections.decrementAndGet();
+            synchronized (this) {
+                pending.clear();
+            }
+            return true;
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+    }
+
+}
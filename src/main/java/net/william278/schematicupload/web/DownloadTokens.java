@@ -0,0 +1,110 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Mints and verifies short-lived, signed tokens that grant access to download a schematic
+ * <p>
+ * A token is the schematic name and an expiry time, signed with HMAC-SHA256 using a key generated when the
+ * server starts. Tokens are therefore stateless, and are all invalidated by a restart.
+ */
+public class DownloadTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+
+    public DownloadTokens() {
+        final byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Mint a token granting access to download a schematic
+     *
+     * @param name     The schematic file name
+     * @param validity How long the token should remain valid for
+     * @return The URL-safe token
+     */
+    @NotNull
+    public String mint(@NotNull String name, @NotNull Duration validity) {
+        final long expiry = Instant.now().plus(validity).getEpochSecond();
+        final byte[] payload = (expiry + ":" + name).getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * Verify a token, returning the schematic it grants access to
+     *
+     * @param token The token to verify
+     * @return An {@link Optional} containing the schematic file name, if the token is valid and has not expired
+     */
+    @NotNull
+    public Optional<String> verify(@NotNull String token) {
+        final int separator = token.indexOf('.');
+        if (separator < 0) {
+            return Optional.empty();
+        }
+        try {
+            final byte[] payload = DECODER.decode(token.substring(0, separator));
+            final byte[] signature = DECODER.decode(token.substring(separator + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature)) {
+                return Optional.empty();
+            }
+
+            final String decoded = new String(payload, StandardCharsets.UTF_8);
+            final int nameStart = decoded.indexOf(':');
+            final long expiry = Long.parseLong(decoded.substring(0, nameStart));
+            if (Instant.now().getEpochSecond() > expiry) {
+                return Optional.empty();
+            }
+            return Optional.of(decoded.substring(nameStart + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return Optional.empty();
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to sign download token", e);
+        }
+    }
+
+}
@@ -28,44 +28,73 @@ import jakarta.servlet.http.Part;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.metrics.FlightRecorderEvents;
+import net.william278.schematicupload.metrics.RequestTimer;
+import net.william278.schematicupload.metrics.WebMetrics;
+import net.william278.schematicupload.pipeline.ProcessingPipeline;
+import net.william278.schematicupload.store.FileSchematicStore;
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicStore;
 import net.william278.schematicupload.upload.UploadManager;
 import net.william278.schematicupload.util.GZipUtil;
-import org.bukkit.entity.Player;
-import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @AllArgsConstructor(access = AccessLevel.PACKAGE)
 public class FileUploadServlet extends HttpServlet {
     private static final List<String> ALLOWED_EXTENSIONS = List.of(".schem", ".schematic", ".litematic");
+    private static final int MAX_FILE_NAME_LENGTH = 48;
 
     private final SchematicUpload plugin;
 
     @Override
     protected void doPost(HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
+        final FlightRecorderEvents.Upload event = new FlightRecorderEvents.Upload();
+        final Submission submission = new Submission();
+        event.begin();
         try {
             // Handle the multipart form upload
-            processParts(servletRequest, servletResponse, plugin.getSchematicDirectory());
+            processParts(servletRequest, servletResponse, plugin.getSchematicDirectory(), submission);
         } catch (IOException | ServletException e) {
             plugin.getLogger().log(Level.SEVERE, "Failed to process upload", e);
             sendReply(servletResponse, 500, "An error occurred on the server");
+        } finally {
+            if (event.shouldCommit()) {
+                event.player = submission.getPlayer();
+                event.fileName = submission.getFileName();
+                event.bytes = submission.getBytes();
+                event.format = submission.getFormat();
+                event.outcome = FlightRecorderEvents.getOutcome(servletResponse.getStatus());
+                event.commit();
+            }
         }
     }
 
-    private void processParts(HttpServletRequest servletRequest, HttpServletResponse servletResponse, Path outputDir) throws ServletException, IOException {
+    private void processParts(HttpServletRequest servletRequest, HttpServletResponse servletResponse, Path outputDir,
+                              Submission submission) throws ServletException, IOException {
+        // Time each stage of the upload; the first part read receives the whole body
+        final RequestTimer timer = RequestTimer.of(servletRequest);
+        final WebMetrics metrics = plugin.getWebServer().getMetrics();
+
         // Process and check the code
         Part codePart = servletRequest.getPart("input-code");
+        Part filePart = servletRequest.getPart("file-upload");
+        submission.filePart = filePart;
+        endStage(timer, WebMetrics.Stage.RECEIVE);
         StringBuilder codeBuilder = new StringBuilder();
         try (Reader reader = new BufferedReader(new InputStreamReader(codePart.getInputStream(), StandardCharsets.UTF_8))) {
             int readerHead;
@@ -73,21 +102,22 @@ public class FileUploadServlet extends HttpServlet {
                 codeBuilder.append((char) readerHead);
             }
         }
+        // Check the code without consuming it, so a rejected upload doesn't use it up
         final String code = codeBuilder.toString();
-        final UploadManager.ConsumptionResult consumptionResult = plugin.getUploadManager().consumeCode(code);
-        if (!consumptionResult.consumed()) {
+        final Optional<UUID> uploader = plugin.getUploadManager().getCodeOwner(code);
+        submission.uploader = uploader;
+        if (!plugin.getUploadManager().isCodeValid(code)) {
             sendReply(servletResponse, 403, "Invalid or expired code");
             return;
         }
 
         // Process and validate the file
-        Part filePart = servletRequest.getPart("file-upload");
         String fileName = code + "-" + filePart.getSubmittedFileName();
         if (StringUtil.isBlank(fileName)) {
             sendReply(servletResponse, 400, "Invalid file name (empty)");
             return;
         }
-        if (fileName.length() >= 48) {
+        if (fileName.length() >= MAX_FILE_NAME_LENGTH) {
             sendReply(servletResponse, 400, "Invalid file name (too long)");
             return;
         }
@@ -96,58 +126,185 @@ public class FileUploadServlet extends HttpServlet {
             return;
         }
 
-        // Encode the file name and set the output file
+        // Encode the file name, and check it can be stored; litematic files are stored under their converted names
         String encodedFileName = URLEncoder.encode(fileName, StandardCharsets.UTF_8);
-        Path outputFile = outputDir.resolve(encodedFileName);
-        try (InputStream inputStream = filePart.getInputStream();
-             OutputStream outputStream = Files.newOutputStream(
-                     outputFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
-             )) {
+        if (!fileName.endsWith(".litematic") && !SchematicStore.isValidName(encodedFileName)) {
+            sendReply(servletResponse, 400, "Invalid file name");
+            return;
+        }
+
+        // Write the schematic to the store
+        final SchematicStore store = plugin.getSchematicStore();
+        try (InputStream inputStream = new BufferedInputStream(filePart.getInputStream())) {
             final long maxSize = plugin.getSettings().getLimitSettings().getMaxFileSize();
-            if (inputStream.available() > maxSize) {
-                Files.delete(outputFile);
+            if (filePart.getSize() > maxSize) {
                 sendReply(servletResponse, 400, "Invalid schematic; too large. (Max size: " + (maxSize / 1024) + "KiB)");
                 return;
             }
+            if (uploader.isPresent() && !plugin.getUploadManager()
+                    .isWithinQuota(uploader.get(), encodedFileName, filePart.getSize())) {
+                sendReply(servletResponse, 403, "You have reached your schematic storage quota");
+                return;
+            }
+
+            metrics.addUploadedBytes(filePart.getSize());
 
             // Convert litematic files if needed
             if (!fileName.endsWith(".litematic")) {
                 if (!GZipUtil.isGZipped(inputStream)) {
-                    Files.delete(outputFile);
                     sendReply(servletResponse, 400, "Invalid schematic format.");
                     return;
                 }
-                IO.copy(inputStream, outputStream);
-            } else {
-                IO.copy(inputStream, outputStream);
-                final List<File> converted = Converter.litematicToWorldEdit(
-                        outputFile.toFile(), outputFile.toFile().getParentFile()
-                );
-                Files.delete(outputFile);
-                if (converted.isEmpty()) {
-                    sendReply(servletResponse, 400, "Invalid schematic format.");
+                endStage(timer, WebMetrics.Stage.VALIDATE);
+                if (!consumeCode(code, servletResponse)) {
                     return;
                 }
-                fileName = converted.stream().map(File::getName).collect(Collectors.joining(" "));
+                store.put(encodedFileName, inputStream);
+                recordUploader(encodedFileName, uploader);
+                plugin.getSchematicIndex().refresh(encodedFileName);
+                process(encodedFileName);
+                fileName = store.getLoadPath(encodedFileName);
+                endStage(timer, WebMetrics.Stage.WRITE);
+            } else {
+                endStage(timer, WebMetrics.Stage.VALIDATE);
+                final Path conversionDir = outputDir.resolve(FileSchematicStore.TEMP_DIRECTORY)
+                        .resolve(UUID.randomUUID().toString());
+                Files.createDirectories(conversionDir);
+                try {
+                    final FlightRecorderEvents.Conversion conversion = new FlightRecorderEvents.Conversion();
+                    conversion.begin();
+                    final Path litematicFile = conversionDir.resolve(encodedFileName);
+                    Files.copy(inputStream, litematicFile);
+                    final List<File> converted = Converter.litematicToWorldEdit(
+                            litematicFile.toFile(), conversionDir.toFile()
+                    );
+                    if (conversion.shouldCommit()) {
+                        conversion.fileName = submission.getFileName();
+                        conversion.bytes = submission.getBytes();
+                        conversion.format = submission.getFormat();
+                        conversion.player = submission.getPlayer();
+                        conversion.outcome = converted.isEmpty() ? "rejected" : "success";
+                        conversion.commit();
+                    }
+                    if (converted.isEmpty()) {
+                        sendReply(servletResponse, 400, "Invalid schematic format.");
+                        return;
+                    }
+                    endStage(timer, WebMetrics.Stage.CONVERT);
+                    if (converted.stream().map(File::getName).anyMatch(name -> !isValidConvertedName(name))) {
+                        sendReply(servletResponse, 400, "Invalid converted schematic name");
+                        return;
+                    }
+                    if (!consumeCode(code, servletResponse)) {
+                        return;
+                    }
+                    for (File convertedFile : converted) {
+                        try (InputStream convertedStream = Files.newInputStream(convertedFile.toPath())) {
+                            store.put(convertedFile.getName(), convertedStream);
+                        }
+                        recordUploader(convertedFile.getName(), uploader);
+                        plugin.getSchematicIndex().refresh(convertedFile.getName());
+                        process(convertedFile.getName());
+                    }
+                    fileName = converted.stream()
+                            .map(file -> store.getLoadPath(file.getName()))
+                            .collect(Collectors.joining(" "));
+                    endStage(timer, WebMetrics.Stage.WRITE);
+                } finally {
+                    deleteDirectory(conversionDir);
+                }
             }
         }
 
         // Validate the upload occurred successfully
-        final Optional<UUID> result = consumptionResult.user();
-        if (result.isPresent()) {
-            final UUID user = result.get();
+        if (uploader.isPresent()) {
+            final UUID user = uploader.get();
             plugin.getUploadManager().markAsUploaded(user); // Mark them as uploaded to rate limit
-            Player player = plugin.getServer().getPlayer(user);
-            if (player != null) {
-                plugin.sendMessage(player, "schematic_upload_complete",
-                        String.format("//schem load %s fast.2", fileName));
-            }
+            plugin.queueMessage(user, "schematic_upload_complete", String.format("//schem load %s fast.2", fileName));
+            endStage(timer, WebMetrics.Stage.NOTIFY);
         }
 
         // Send reply
         sendReply(servletResponse, 200, fileName);
     }
 
+    // Check a name produced by converting a litematic can be stored, as it does not come from the checked file name
+    private boolean isValidConvertedName(@NotNull String name) {
+        return SchematicStore.isValidName(name) && name.length() < MAX_FILE_NAME_LENGTH;
+    }
+
+    // Consume the upload code once the upload has been accepted, replying if it was used up or expired meanwhile
+    private boolean consumeCode(@NotNull String code, @NotNull HttpServletResponse response) {
+        final UploadManager.ConsumptionResult result = plugin.getUploadManager().consumeCode(code);
+        if (!result.consumed()) {
+            sendReply(response, 403, "Invalid or expired code");
+            return false;
+        }
+        return true;
+    }
+
+    // Record who uploaded a stored schematic in the catalogue, before it is indexed and announced to web clients
+    private void recordUploader(@NotNull String name, @NotNull Optional<UUID> user) {
+        final SchematicCatalogue catalogue = plugin.getSchematicCatalogue();
+        if (catalogue == null || user.isEmpty()) {
+            return;
+        }
+        try {
+            catalogue.recordUpload(name, user.get(), plugin.getServer().getOfflinePlayer(user.get()).getName());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to catalogue uploaded schematic " + name, e);
+        }
+    }
+
+    // Hand a stored schematic to the pipeline, ahead of any backfill, to derive its metadata off the request path
+    private void process(@NotNull String name) {
+        final ProcessingPipeline pipeline = plugin.getProcessingPipeline();
+        if (pipeline != null) {
+            pipeline.submit(name, ProcessingPipeline.Priority.UPLOAD);
+        }
+    }
+
+    // End a stage of the upload, recording it in the request's timings and the metrics
+    private void endStage(@NotNull RequestTimer timer, @NotNull WebMetrics.Stage stage) {
+        plugin.getWebServer().getMetrics().recordStage(stage, timer.mark(stage.getId()));
+    }
+
+    // Delete a temporary directory and its contents
+    private void deleteDirectory(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to clean up temporary upload directory", e);
+        }
+    }
+
+    // The parts of an upload read so far, only described for its flight recorder events if they are recorded
+    private static final class Submission {
+        @Nullable
+        private Part filePart;
+        private Optional<UUID> uploader = Optional.empty();
+
+        @Nullable
+        private String getPlayer() {
+            return uploader.map(UUID::toString).orElse(null);
+        }
+
+        @Nullable
+        private String getFileName() {
+            return filePart != null ? filePart.getSubmittedFileName() : null;
+        }
+
+        private long getBytes() {
+            return filePart != null ? filePart.getSize() : 0L;
+        }
+
+        @Nullable
+        private String getFormat() {
+            final String fileName = getFileName();
+            return fileName != null ? FlightRecorderEvents.getFormat(fileName) : null;
+        }
+    }
+
     // Send a reply back to the web client
     private void sendReply(HttpServletResponse response, int replyCode, String replyMessage) {
         try {
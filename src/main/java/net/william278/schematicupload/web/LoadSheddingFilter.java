@@ -0,0 +1,253 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.Getter;
+import net.william278.schematicupload.config.Settings;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sheds load when the web server is overloaded, refusing requests quickly with a {@code 503} rather than letting
+ * them queue until every client times out
+ * <p>
+ * Uploads, listing, downloads and static files each get their own concurrency limit and bounded queue, so a flood of
+ * uploads cannot starve the pages, and downloads held open by bandwidth shaping cannot starve listing and search. Each limit adapts to queueing delay in the spirit of CoDel: if even the shortest wait
+ * over an interval is above the target, a standing queue has formed and the limit is cut; otherwise the limit grows
+ * back towards its configured maximum while there is demand.
+ */
+public class LoadSheddingFilter implements Filter {
+
+    private final Settings.WebServerSettings.LoadSheddingSettings settings;
+    private final Map<Endpoint, ConcurrencyLimiter> limiters = new EnumMap<>(Endpoint.class);
+
+    public LoadSheddingFilter(@NotNull Settings.WebServerSettings.LoadSheddingSettings settings) {
+        this.settings = settings;
+        limiters.put(Endpoint.UPLOAD, new ConcurrencyLimiter(settings.getUploadConcurrency(), settings));
+        limiters.put(Endpoint.LIST, new ConcurrencyLimiter(settings.getListConcurrency(), settings));
+        limiters.put(Endpoint.DOWNLOAD, new ConcurrencyLimiter(settings.getDownloadConcurrency(), settings));
+        limiters.put(Endpoint.STATIC, new ConcurrencyLimiter(settings.getStaticConcurrency(), settings));
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        final Endpoint endpoint = Endpoint.of((HttpServletRequest) request);
+        final ConcurrencyLimiter limiter = limiters.get(endpoint);
+        final boolean acquired;
+        try {
+            acquired = limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reject((HttpServletResponse) response, endpoint);
+            return;
+        }
+        if (!acquired) {
+            reject((HttpServletResponse) response, endpoint);
+            return;
+        }
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    private void reject(@NotNull HttpServletResponse response, @NotNull Endpoint endpoint) throws IOException {
+        response.setStatus(503);
+        response.setHeader("Retry-After", Integer.toString(settings.getRetryAfterSeconds()));
+        response.setContentType("application/json");
+        response.getWriter().println("{\"" + endpoint.replyKey + "\":\"Server is busy; please try again shortly\"}");
+    }
+
+    @NotNull
+    public ConcurrencyLimiter getLimiter(@NotNull Endpoint endpoint) {
+        return limiters.get(endpoint);
+    }
+
+    /**
+     * A group of requests sharing a concurrency limit
+     */
+    public enum Endpoint {
+        UPLOAD("message"),
+        LIST("error"),
+        DOWNLOAD("error"),
+        STATIC("error");
+
+        // Key of the message in JSON replies, matching what the endpoint's client reads
+        private final String replyKey;
+
+        Endpoint(@NotNull String replyKey) {
+            this.replyKey = replyKey;
+        }
+
+        @NotNull
+        public static Endpoint of(@NotNull HttpServletRequest request) {
+            final String path = request.getRequestURI();
+            if (path.equals("/api")) {
+                return UPLOAD;
+            }
+            if (path.startsWith("/api/list/download/") || path.startsWith("/api/list/link/")
+                    || path.equals("/api/list/bundle")) {
+                return DOWNLOAD;
+            }
+            if (path.startsWith("/api/")) {
+                return LIST;
+            }
+            return STATIC;
+        }
+    }
+
+    /**
+     * An adaptive concurrency limit with a bounded queue of waiting requests
+     */
+    public static final class ConcurrencyLimiter {
+
+        private static final double DECREASE_FACTOR = 0.9;
+
+        private final int maxLimit;
+        private final int maxQueued;
+        private final long maxWaitNanos;
+        private final long targetDelayNanos;
+        private final long intervalNanos;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        @Getter
+        private volatile int limit;
+        private int inFlight;
+        private int queued;
+        private long intervalStart = System.nanoTime();
+        private long intervalMinDelay = Long.MAX_VALUE;
+        private boolean intervalSaturated;
+
+        private final LongAdder rejected = new LongAdder();
+
+        private ConcurrencyLimiter(int maxLimit, @NotNull Settings.WebServerSettings.LoadSheddingSettings settings) {
+            this.maxLimit = Math.max(1, maxLimit);
+            this.maxQueued = Math.max(0, settings.getQueueSize());
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(settings.getMaxQueueWait());
+            this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(settings.getTargetQueueDelay());
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, settings.getAdaptInterval()));
+            this.limit = this.maxLimit;
+        }
+
+        // Wait for a slot, returning false if the queue is full or the wait is too long
+        private boolean acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                if (inFlight < limit) {
+                    inFlight++;
+                    onAdmitted(0L, inFlight >= limit);
+                    return true;
+                }
+                if (queued >= maxQueued) {
+                    rejected.increment();
+                    return false;
+                }
+
+                queued++;
+                final long start = System.nanoTime();
+                try {
+                    long remaining = maxWaitNanos;
+                    while (inFlight >= limit) {
+                        if (remaining <= 0L) {
+                            rejected.increment();
+                            return false;
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                    inFlight++;
+                    onAdmitted(System.nanoTime() - start, true);
+                    return true;
+                } finally {
+                    queued--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                inFlight--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Track the shortest queueing delay in each interval, and adapt the limit when the interval ends
+        private void onAdmitted(long delayNanos, boolean saturated) {
+            intervalMinDelay = Math.min(intervalMinDelay, delayNanos);
+            intervalSaturated |= saturated;
+            final long now = System.nanoTime();
+            if (now - intervalStart < intervalNanos) {
+                return;
+            }
+
+            if (intervalMinDelay > targetDelayNanos) {
+                limit = Math.max(1, (int) (limit * DECREASE_FACTOR));
+            } else if (intervalSaturated && limit < maxLimit) {
+                limit++;
+                available.signal();
+            }
+            intervalStart = now;
+            intervalMinDelay = Long.MAX_VALUE;
+            intervalSaturated = false;
+        }
+
+        public int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getQueued() {
+            lock.lock();
+            try {
+                return queued;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.william278.schematicupload.metrics.WebMetrics;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+// Records the latency and status of every request
+public class MetricsFilter implements Filter {
+
+    private final WebMetrics metrics;
+
+    public MetricsFilter(@NotNull WebMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        final WebMetrics.Endpoint endpoint = WebMetrics.Endpoint.of(((HttpServletRequest) request).getRequestURI());
+        final long start = System.nanoTime();
+        metrics.requestStarted();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            metrics.requestFinished(endpoint, ((HttpServletResponse) response).getStatus(), System.nanoTime() - start);
+        }
+    }
+
+}
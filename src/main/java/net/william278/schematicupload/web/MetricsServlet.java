@@ -0,0 +1,143 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.metrics.WebMetrics;
+import net.william278.schematicupload.pipeline.ProcessingPipeline;
+import net.william278.schematicupload.store.SchematicCache;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Locale;
+
+import static net.william278.schematicupload.metrics.WebMetrics.writeHeader;
+import static net.william278.schematicupload.metrics.WebMetrics.writeValue;
+
+// Serves metrics in the Prometheus text format, to local clients only
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+public class MetricsServlet extends HttpServlet {
+
+    private final SchematicUpload plugin;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+            response.setStatus(403);
+            return;
+        }
+
+        final WebServer webServer = plugin.getWebServer();
+        final StringBuilder builder = new StringBuilder(16384);
+        webServer.getMetrics().write(builder);
+        writeThreadPool(builder, webServer.getThreadPool());
+        writeRejections(builder, webServer);
+        writeBandwidth(builder, webServer.getBandwidthShaper());
+        writeCache(builder, plugin.getSchematicCache());
+        final ProcessingPipeline pipeline = plugin.getProcessingPipeline();
+        if (pipeline != null) {
+            writePipeline(builder, pipeline);
+        }
+
+        response.setStatus(200);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.getWriter().write(builder.toString());
+    }
+
+    private void writeThreadPool(@NotNull StringBuilder builder, @NotNull QueuedThreadPool threadPool) {
+        writeHeader(builder, "threads", "gauge", "Web server threads, by state");
+        writeValue(builder, "threads", "state=\"busy\"", threadPool.getBusyThreads());
+        writeValue(builder, "threads", "state=\"idle\"", threadPool.getIdleThreads());
+        writeHeader(builder, "threads_max", "gauge", "Maximum web server threads");
+        writeValue(builder, "threads_max", "", threadPool.getMaxThreads());
+        writeHeader(builder, "thread_pool_queued_jobs", "gauge", "Jobs waiting for a web server thread");
+        writeValue(builder, "thread_pool_queued_jobs", "", threadPool.getQueueSize());
+    }
+
+    private void writeRejections(@NotNull StringBuilder builder, @NotNull WebServer webServer) {
+        writeHeader(builder, "rejections_total", "counter", "Connections and requests refused by rate limits");
+        final ThrottlingFilter throttling = webServer.getThrottlingFilter();
+        if (throttling != null) {
+            writeValue(builder, "rejections_total", "reason=\"ip_connections\"", throttling.getRejectedConnections());
+            writeValue(builder, "rejections_total", "reason=\"ip_requests\"", throttling.getRejectedRequests());
+            writeValue(builder, "rejections_total", "reason=\"ip_uploads\"", throttling.getRejectedUploads());
+        }
+        final LoadSheddingFilter loadShedding = webServer.getLoadSheddingFilter();
+        if (loadShedding == null) {
+            return;
+        }
+        for (LoadSheddingFilter.Endpoint endpoint : LoadSheddingFilter.Endpoint.values()) {
+            writeValue(builder, "rejections_total", "reason=\"overload_" + endpoint.name().toLowerCase(Locale.ENGLISH) + "\"",
+                    loadShedding.getLimiter(endpoint).getRejected());
+        }
+        writeHeader(builder, "concurrency_limit", "gauge", "Current adaptive concurrency limit, by endpoint");
+        for (LoadSheddingFilter.Endpoint endpoint : LoadSheddingFilter.Endpoint.values()) {
+            writeValue(builder, "concurrency_limit", "endpoint=\"" + endpoint.name().toLowerCase(Locale.ENGLISH) + "\"",
+                    loadShedding.getLimiter(endpoint).getLimit());
+        }
+    }
+
+    private void writeBandwidth(@NotNull StringBuilder builder, @NotNull BandwidthShaper shaper) {
+        writeHeader(builder, "shaped_downloads", "gauge", "Downloads currently being shaped");
+        writeValue(builder, "shaped_downloads", "", shaper.getActiveDownloads());
+        writeHeader(builder, "shaped_bytes_total", "counter", "Bytes sent by shaped downloads");
+        writeValue(builder, "shaped_bytes_total", "", shaper.getShapedBytes());
+        writeHeader(builder, "shaping_delay_seconds_total", "counter", "Time downloads spent waiting for bandwidth");
+        writeValue(builder, "shaping_delay_seconds_total", "", shaper.getDelayedNanos() / 1e9d);
+    }
+
+    private void writeCache(@NotNull StringBuilder builder, @NotNull SchematicCache cache) {
+        final long hits = cache.getHits();
+        final long misses = cache.getMisses();
+        writeHeader(builder, "cache_hits_total", "counter", "Downloads served from the in-memory cache");
+        writeValue(builder, "cache_hits_total", "", hits);
+        writeHeader(builder, "cache_misses_total", "counter", "Downloads not found in the in-memory cache");
+        writeValue(builder, "cache_misses_total", "", misses);
+        writeHeader(builder, "cache_evictions_total", "counter", "Schematics evicted from the in-memory cache");
+        writeValue(builder, "cache_evictions_total", "", cache.getEvictions());
+        writeHeader(builder, "cache_bytes", "gauge", "Bytes held in the in-memory cache");
+        writeValue(builder, "cache_bytes", "", cache.getUsedBytes());
+        writeHeader(builder, "cache_hit_ratio", "gauge", "Ratio of cache lookups that were hits");
+        writeValue(builder, "cache_hit_ratio", "", hits + misses == 0 ? 0d : hits / (double) (hits + misses));
+    }
+
+    private void writePipeline(@NotNull StringBuilder builder, @NotNull ProcessingPipeline pipeline) {
+        writeHeader(builder, "pipeline_jobs", "gauge", "Schematics waiting for and being processed, by state");
+        writeValue(builder, "pipeline_jobs", "state=\"queued\"", pipeline.getQueuedJobs());
+        writeValue(builder, "pipeline_jobs", "state=\"running\"", pipeline.getRunningJobs());
+        writeHeader(builder, "pipeline_jobs_total", "counter", "Schematics processed, by outcome");
+        writeValue(builder, "pipeline_jobs_total", "outcome=\"completed\"", pipeline.getCompletedJobs());
+        writeValue(builder, "pipeline_jobs_total", "outcome=\"failed\"", pipeline.getFailedJobs());
+        writeValue(builder, "pipeline_jobs_total", "outcome=\"dropped\"", pipeline.getDroppedJobs());
+        writeHeader(builder, "pipeline_retries_total", "counter", "Pipeline stages retried after failing");
+        writeValue(builder, "pipeline_retries_total", "", pipeline.getRetries());
+        writeHeader(builder, "pipeline_stages_total", "counter", "Pipeline stages run, and skipped as already done");
+        writeValue(builder, "pipeline_stages_total", "result=\"run\"", pipeline.getStagesRun());
+        writeValue(builder, "pipeline_stages_total", "result=\"skipped\"", pipeline.getStagesSkipped());
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.metrics.RequestTimer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Gives every request an id and a {@link RequestTimer}, returning the id in the {@value #REQUEST_ID_HEADER} header
+ * and the phase timings in the {@code Server-Timing} header, and logging requests slower than a threshold
+ */
+public class RequestTimingFilter implements Filter {
+
+    public static final String REQUEST_ID_HEADER = "X-Request-Id";
+
+    private final SchematicUpload plugin;
+    private final boolean serverTiming;
+    private final long slowThresholdNanos;
+    private final String idPrefix = Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000));
+    private final AtomicLong nextId = new AtomicLong();
+
+    public RequestTimingFilter(@NotNull SchematicUpload plugin, @NotNull Settings.WebServerSettings settings) {
+        this.plugin = plugin;
+        this.serverTiming = settings.isServerTimingHeader();
+        this.slowThresholdNanos = settings.getSlowRequestThreshold() > 0
+                ? TimeUnit.MILLISECONDS.toNanos(settings.getSlowRequestThreshold()) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        final HttpServletRequest request = (HttpServletRequest) servletRequest;
+        final HttpServletResponse response = (HttpServletResponse) servletResponse;
+        final RequestTimer timer = new RequestTimer(idPrefix + "-" + Long.toHexString(nextId.incrementAndGet()));
+        request.setAttribute(RequestTimer.ATTRIBUTE, timer);
+        response.setHeader(REQUEST_ID_HEADER, timer.getId());
+
+        try {
+            chain.doFilter(request, serverTiming ? new TimedResponse(response, timer) : response);
+        } finally {
+            final long elapsed = timer.getElapsed();
+            if (elapsed >= slowThresholdNanos) {
+                plugin.log(Level.WARNING, String.format("Slow request id=%s method=%s path=%s status=%d total_ms=%.1f %s",
+                        timer.getId(), request.getMethod(), request.getRequestURI(), response.getStatus(),
+                        elapsed / 1_000_000d, timer.toLogString()));
+            }
+        }
+    }
+
+    // Adds the Server-Timing header just before the response body is written
+    private static final class TimedResponse extends HttpServletResponseWrapper {
+
+        private final RequestTimer timer;
+        private boolean timed;
+
+        private TimedResponse(@NotNull HttpServletResponse response, @NotNull RequestTimer timer) {
+            super(response);
+            this.timer = timer;
+        }
+
+        private void addTiming() {
+            if (!timed && !isCommitted()) {
+                timed = true;
+                setHeader("Server-Timing", timer.toServerTiming());
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            addTiming();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            addTiming();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            addTiming();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            addTiming();
+            super.sendError(status, message);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            addTiming();
+            super.sendError(status);
+        }
+
+    }
+
+}
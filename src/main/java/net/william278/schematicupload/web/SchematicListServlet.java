@@ -20,31 +20,47 @@
 package net.william278.schematicupload.web;
 
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.metrics.FlightRecorderEvents;
+import net.william278.schematicupload.metrics.RequestTimer;
+import net.william278.schematicupload.store.SchematicCache;
+import net.william278.schematicupload.store.SchematicCatalogue;
+import net.william278.schematicupload.store.SchematicIndex;
+import net.william278.schematicupload.store.SchematicStore;
+import net.william278.schematicupload.store.SearchIndex;
+import net.william278.schematicupload.util.StoredZipWriter;
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.util.IO;
 
 import java.io.*;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 import org.jetbrains.annotations.NotNull;
-
-import static net.william278.schematicupload.SchematicUpload.ALLOWED_EXTENSIONS;
+import org.jetbrains.annotations.Nullable;
 
 @AllArgsConstructor(access = AccessLevel.PACKAGE)
 public class SchematicListServlet extends HttpServlet {
-    
+
+    public static final String LINK_PATH = "/link/";
+    public static final String BUNDLE_PATH = "/bundle";
+    public static final String SEARCH_PATH = "/search";
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    private static final int MAX_SEARCH_LIMIT = 1000;
+
     private final SchematicUpload plugin;
 
     @Override
@@ -54,36 +70,101 @@ public class SchematicListServlet extends HttpServlet {
         if (path == null || path.equals("/") || path.equals("/list")) {
             // List schematics
             handleList(request, response);
+        } else if (path.equals(SEARCH_PATH)) {
+            // Search schematics by name and metadata
+            handleSearch(request, response);
         } else if (path.startsWith("/download/")) {
             // Download schematic
             handleDownload(request, response);
+        } else if (path.startsWith(LINK_PATH)) {
+            // Download schematic from a signed link minted in-game
+            handleLink(request, response);
+        } else if (path.equals(BUNDLE_PATH)) {
+            // Download several schematics in a ZIP
+            handleBundle(request, response);
         } else {
             response.setStatus(404);
             response.getWriter().println("{\"error\":\"Not found\"}");
         }
     }
 
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Download the schematics selected in a form as a ZIP
+        if (BUNDLE_PATH.equals(request.getPathInfo())) {
+            handleBundle(request, response);
+            return;
+        }
+        response.setStatus(405);
+        response.getWriter().println("{\"error\":\"Method not allowed\"}");
+    }
+
     private void handleList(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final FlightRecorderEvents.Listing event = new FlightRecorderEvents.Listing();
+        event.begin();
         try {
-            final List<SchematicInfo> schematics = getSchematicList();
+            final RequestTimer timer = RequestTimer.of(request);
+            // Taken before listing, so a client streaming changes from this version misses nothing
+            final SchematicIndex index = plugin.getSchematicIndex();
+            final long version = index.getVersion();
+            final List<SchematicCatalogue.Entry> schematics = getSchematicList(request);
+            event.count = schematics.size();
+            timer.mark("list");
             
             response.setContentType("application/json");
+            response.setHeader(CatalogueEventsServlet.VERSION_HEADER, CatalogueEventsServlet.toEventId(index, version));
             response.setStatus(200);
             
-            final String json = "[" + schematics.stream()
-                    .map(s -> String.format(
-                            "{\"name\":\"%s\",\"size\":%d,\"encodedName\":\"%s\"}",
-                            escapeJson(s.name),
-                            s.size,
-                            URLEncoder.encode(s.name, StandardCharsets.UTF_8)
-                    ))
-                    .collect(Collectors.joining(",")) + "]";
+            final String json = toJson(schematics);
+            timer.mark("serialize");
             
             response.getWriter().println(json);
         } catch (Exception e) {
             plugin.getLogger().log(Level.SEVERE, "Failed to list schematics", e);
             response.setStatus(500);
             response.getWriter().println("{\"error\":\"Failed to list schematics\"}");
+        } finally {
+            if (event.shouldCommit()) {
+                event.outcome = FlightRecorderEvents.getOutcome(response.getStatus());
+                event.commit();
+            }
+        }
+    }
+
+    private void handleSearch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final FlightRecorderEvents.Search event = new FlightRecorderEvents.Search();
+        event.begin();
+        try {
+            final String query = Objects.requireNonNullElse(request.getParameter("q"), "");
+            event.query = query;
+            final SearchIndex.Result result = plugin.getSearchIndex().search(query, getSearchLimit(request));
+            event.count = result.total();
+            RequestTimer.of(request).mark("search");
+
+            response.setContentType("application/json");
+            response.setStatus(200);
+            final String json = "{\"total\":" + result.total() + ",\"results\":" + toJson(result.results()) + "}";
+            response.getWriter().println(json);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to search schematics", e);
+            response.setStatus(500);
+            response.getWriter().println("{\"error\":\"Failed to search schematics\"}");
+        } finally {
+            if (event.shouldCommit()) {
+                event.outcome = FlightRecorderEvents.getOutcome(response.getStatus());
+                event.commit();
+            }
+        }
+    }
+
+    // Get the maximum number of search results to return, from the limit parameter
+    private static int getSearchLimit(@NotNull HttpServletRequest request) {
+        try {
+            final String limit = request.getParameter("limit");
+            return limit == null ? DEFAULT_SEARCH_LIMIT
+                    : Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(limit)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_SEARCH_LIMIT;
         }
     }
 
@@ -99,32 +180,30 @@ public class SchematicListServlet extends HttpServlet {
                 return;
             }
             
-            if (ALLOWED_EXTENSIONS.stream().noneMatch(decodedFileName::endsWith)) {
+            if (!SchematicStore.isValidName(decodedFileName)) {
                 response.setStatus(400);
                 response.getWriter().println("{\"error\":\"Invalid file type\"}");
                 return;
             }
             
-            final Path schematicFile = plugin.getSchematicDirectory().resolve(decodedFileName);
-            
-            if (!Files.exists(schematicFile) || !Files.isRegularFile(schematicFile)) {
-                response.setStatus(404);
-                response.getWriter().println("{\"error\":\"File not found\"}");
+            serveSchematic(request, response, decodedFileName);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to download schematic", e);
+            response.setStatus(500);
+            response.getWriter().println("{\"error\":\"Failed to download schematic\"}");
+        }
+    }
+
+    private void handleLink(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            final String token = request.getPathInfo().substring(LINK_PATH.length());
+            final Optional<String> fileName = plugin.getWebServer().getDownloadTokens().verify(token);
+            if (fileName.isEmpty() || !SchematicStore.isValidName(fileName.get())) {
+                response.setStatus(403);
+                response.getWriter().println("{\"error\":\"Download link is invalid or has expired\"}");
                 return;
             }
-            
-            // Set headers for file download
-            response.setContentType("application/octet-stream");
-            response.setHeader("Content-Disposition", 
-                    String.format("attachment; filename=\"%s\"", 
-                            URLEncoder.encode(decodedFileName, StandardCharsets.UTF_8)));
-            response.setContentLengthLong(Files.size(schematicFile));
-            
-            // Stream the file
-            try (InputStream inputStream = Files.newInputStream(schematicFile);
-                 OutputStream outputStream = response.getOutputStream()) {
-                IO.copy(inputStream, outputStream);
-            }
+            serveSchematic(request, response, fileName.get());
         } catch (Exception e) {
             plugin.getLogger().log(Level.SEVERE, "Failed to download schematic", e);
             response.setStatus(500);
@@ -132,36 +211,294 @@ public class SchematicListServlet extends HttpServlet {
         }
     }
 
+    // Stream the requested schematics as a ZIP, copying each straight from the store
+    private void handleBundle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final FlightRecorderEvents.Bundle event = new FlightRecorderEvents.Bundle();
+        event.begin();
+        try {
+            final RequestTimer timer = RequestTimer.of(request);
+            final Settings.WebServerSettings settings = plugin.getSettings().getWebServerSettings();
+            final Set<String> names = getBundleNames(request);
+            if (names.isEmpty()) {
+                response.setStatus(400);
+                response.getWriter().println("{\"error\":\"No schematics selected\"}");
+                return;
+            }
+            if (names.size() > Math.min(settings.getMaxBundleEntries(), StoredZipWriter.MAX_ENTRIES)) {
+                response.setStatus(400);
+                response.getWriter().println("{\"error\":\"Too many schematics selected (max "
+                        + settings.getMaxBundleEntries() + ")\"}");
+                return;
+            }
+
+            // Check every schematic exists, and the bundle is within the limit, before sending anything
+            final SchematicStore store = plugin.getSchematicStore();
+            final List<SchematicStore.SchematicStat> schematics = new ArrayList<>(names.size());
+            long totalSize = 0;
+            for (String name : names) {
+                if (!SchematicStore.isValidName(name)) {
+                    response.setStatus(400);
+                    response.getWriter().println("{\"error\":\"Invalid file name\"}");
+                    return;
+                }
+                final Optional<SchematicStore.SchematicStat> schematic = store.stat(name);
+                if (schematic.isEmpty()) {
+                    response.setStatus(404);
+                    response.getWriter().println("{\"error\":\"File not found: " + escapeJson(name) + "\"}");
+                    return;
+                }
+                schematics.add(schematic.get());
+                totalSize += schematic.get().size();
+            }
+            timer.mark("stat");
+            if (totalSize > Math.min(settings.getMaxBundleSize(), StoredZipWriter.MAX_SIZE)) {
+                response.setStatus(413);
+                response.getWriter().println("{\"error\":\"Selected schematics are too large to download together\"}");
+                return;
+            }
+
+            response.setContentType("application/zip");
+            response.setHeader("Content-Disposition", "attachment; filename=\"schematics.zip\"");
+            plugin.getWebServer().getMetrics().addDownloadedBytes(totalSize);
+            final BandwidthShaper shaper = plugin.getWebServer().getBandwidthShaper();
+            try (OutputStream outputStream = shaper.isShaped(totalSize)
+                    ? shaper.shape(request.getRemoteAddr(), response.getOutputStream())
+                    : response.getOutputStream()) {
+                final StoredZipWriter zip = new StoredZipWriter(outputStream);
+                for (SchematicStore.SchematicStat schematic : schematics) {
+                    try (InputStream inputStream = store.get(schematic.name())) {
+                        event.bytes += zip.writeEntry(schematic.name(), schematic.lastModified(), inputStream);
+                    }
+                    event.count++;
+                }
+                zip.finish();
+            }
+            timer.mark("stream");
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to send schematic bundle", e);
+            if (response.isCommitted()) {
+                // Abort the response, so the client does not keep a truncated archive
+                throw e instanceof IOException io ? io : new IOException(e);
+            }
+            response.setStatus(500);
+            response.getWriter().println("{\"error\":\"Failed to download schematics\"}");
+        } finally {
+            if (event.shouldCommit()) {
+                event.outcome = FlightRecorderEvents.getOutcome(response.getStatus());
+                event.commit();
+            }
+        }
+    }
+
+    // Get the schematics requested for a bundle: each 'name' parameter as given, and 'names' split on commas
     @NotNull
-    private List<SchematicInfo> getSchematicList() {
-        final List<SchematicInfo> schematics = new ArrayList<>();
-        final File schematicDir = plugin.getSchematicDirectory().toFile();
-        
-        if (!schematicDir.exists() || !schematicDir.isDirectory()) {
-            return schematics;
+    private static Set<String> getBundleNames(@NotNull HttpServletRequest request) {
+        final Set<String> names = new LinkedHashSet<>();
+        final String[] single = request.getParameterValues("name");
+        if (single != null) {
+            names.addAll(Arrays.asList(single));
+        }
+        final String[] lists = request.getParameterValues("names");
+        if (lists != null) {
+            for (String list : lists) {
+                for (String name : list.split(",")) {
+                    if (!name.isBlank()) {
+                        names.add(name.trim());
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    // Send a schematic from the store as an attachment, recording a download or preview event
+    private void serveSchematic(HttpServletRequest request, HttpServletResponse response,
+                                String fileName) throws IOException {
+        final FlightRecorderEvents.SchematicEvent event = request.getParameter("preview") != null
+                ? new FlightRecorderEvents.Preview() : new FlightRecorderEvents.Download();
+        event.begin();
+        long bytes = 0;
+        try {
+            bytes = sendSchematic(request, response, fileName);
+        } finally {
+            if (event.shouldCommit()) {
+                event.fileName = fileName;
+                event.bytes = bytes;
+                event.format = FlightRecorderEvents.getFormat(fileName);
+                event.outcome = FlightRecorderEvents.getOutcome(response.getStatus());
+                event.commit();
+            }
+        }
+    }
+
+    // Send a schematic, returning its size, or 0 if it was not found
+    private long sendSchematic(HttpServletRequest request, HttpServletResponse response,
+                               String fileName) throws IOException {
+        final RequestTimer timer = RequestTimer.of(request);
+        final SchematicStore store = plugin.getSchematicStore();
+        final Optional<SchematicStore.SchematicStat> schematic = store.stat(fileName);
+        timer.mark("stat");
+        if (schematic.isEmpty()) {
+            response.setStatus(404);
+            response.getWriter().println("{\"error\":\"File not found\"}");
+            return 0;
         }
         
-        final File[] files = schematicDir.listFiles((dir, name) -> 
-                ALLOWED_EXTENSIONS.stream().anyMatch(name::endsWith));
+        // Set headers for file download
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Disposition", 
+                String.format("attachment; filename=\"%s\"", 
+                        URLEncoder.encode(fileName, StandardCharsets.UTF_8)));
+        response.setContentLengthLong(schematic.get().size());
+        plugin.getWebServer().getMetrics().addDownloadedBytes(schematic.get().size());
         
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile() && !file.getName().startsWith(".")) {
-                    schematics.add(new SchematicInfo(
-                            file.getName(),
-                            file.length()
-                    ));
+        // Serve archived schematics straight from their memory-mapped buffer, and hot ones from memory
+        final SchematicCache cache = plugin.getSchematicCache();
+        Optional<ByteBuffer> buffer = store.getBuffer(fileName);
+        if (buffer.isEmpty()) {
+            buffer = cache.get(schematic.get());
+        }
+        if (buffer.isEmpty() && cache.isCacheable(schematic.get().size())) {
+            try (InputStream inputStream = store.get(fileName)) {
+                buffer = Optional.of(cache.load(schematic.get(), inputStream));
+            }
+        }
+        timer.mark("load");
+
+        // Pace large downloads, so that they share the bandwidth evenly and leave room for game traffic
+        final BandwidthShaper shaper = plugin.getWebServer().getBandwidthShaper();
+        if (shaper.isShaped(schematic.get().size())) {
+            try (OutputStream outputStream = shaper.shape(request.getRemoteAddr(), response.getOutputStream())) {
+                if (buffer.isPresent()) {
+                    writeBuffer(outputStream, buffer.get());
+                } else {
+                    try (InputStream inputStream = store.get(fileName)) {
+                        IO.copy(inputStream, outputStream);
+                    }
                 }
             }
+            return schematic.get().size();
+        }
+        if (buffer.isPresent()) {
+            sendBuffer(response, buffer.get());
+            return schematic.get().size();
         }
         
-        // Sort by name
-        schematics.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
-        
+        // Stream the file
+        try (InputStream inputStream = store.get(fileName);
+             OutputStream outputStream = response.getOutputStream()) {
+            IO.copy(inputStream, outputStream);
+        }
+        return schematic.get().size();
+    }
+
+    // Write a buffer to the response without copying it onto the heap, where supported
+    private void sendBuffer(HttpServletResponse response, ByteBuffer buffer) throws IOException {
+        final ServletOutputStream outputStream = response.getOutputStream();
+        if (outputStream instanceof HttpOutput httpOutput) {
+            httpOutput.sendContent(buffer);
+            return;
+        }
+        writeBuffer(outputStream, buffer);
+    }
+
+    private static void writeBuffer(OutputStream outputStream, ByteBuffer buffer) throws IOException {
+        final WritableByteChannel channel = Channels.newChannel(outputStream);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        outputStream.flush();
+    }
+
+    // List the indexed schematics with their catalogued metadata, or only those of one uploader, in the order asked for
+    @NotNull
+    private List<SchematicCatalogue.Entry> getSchematicList(@NotNull HttpServletRequest request) {
+        final SchematicCatalogue catalogue = plugin.getSchematicCatalogue();
+        final String uploader = request.getParameter("uploader");
+        final List<SchematicCatalogue.Entry> schematics;
+        if (uploader != null) {
+            schematics = new ArrayList<>(catalogue == null ? List.of() : getUploads(catalogue, uploader));
+        } else {
+            final List<SchematicStore.SchematicStat> stats = plugin.getSchematicIndex().list();
+            schematics = new ArrayList<>(stats.size());
+            for (SchematicStore.SchematicStat stat : stats) {
+                schematics.add(describe(catalogue, stat));
+            }
+        }
+        final SortOrder order = SortOrder.parse(request.getParameter("sort"));
+        final String direction = request.getParameter("order");
+        return sort(schematics, order, direction == null ? order.isDescendingByDefault()
+                : direction.equalsIgnoreCase("desc"));
+    }
+
+    // Get every schematic uploaded by a player, given their UUID or the name they uploaded under
+    @NotNull
+    private static List<SchematicCatalogue.Entry> getUploads(@NotNull SchematicCatalogue catalogue,
+                                                             @NotNull String uploader) {
+        Optional<UUID> uuid;
+        try {
+            uuid = Optional.of(UUID.fromString(uploader));
+        } catch (IllegalArgumentException e) {
+            uuid = catalogue.findUploader(uploader);
+        }
+        return uuid.map(id -> catalogue.getUploads(id, 0, Integer.MAX_VALUE)).orElse(List.of());
+    }
+
+    // Describe a schematic with its catalogued metadata, if there is a catalogue
+    @NotNull
+    static SchematicCatalogue.Entry describe(@Nullable SchematicCatalogue catalogue,
+                                             @NotNull SchematicStore.SchematicStat stat) {
+        return catalogue != null ? catalogue.describe(stat) : SchematicCatalogue.Entry.of(stat);
+    }
+
+    // Sort schematics, breaking ties by name, ignoring case
+    @NotNull
+    static List<SchematicCatalogue.Entry> sort(@NotNull List<SchematicCatalogue.Entry> schematics,
+                                               @NotNull SortOrder order, boolean descending) {
+        final Comparator<SchematicCatalogue.Entry> comparator = descending
+                ? order.getComparator().reversed() : order.getComparator();
+        schematics.sort(comparator.thenComparing(SortOrder.NAME.getComparator()));
         return schematics;
     }
 
-    private String escapeJson(String str) {
+    // Encode the schematic list as a JSON array
+    @NotNull
+    static String toJson(@NotNull List<SchematicCatalogue.Entry> schematics) {
+        return "[" + schematics.stream()
+                .map(SchematicListServlet::toJson)
+                .collect(Collectors.joining(",")) + "]";
+    }
+
+    // Encode a schematic as a JSON object, leaving out metadata that is not known
+    @NotNull
+    static String toJson(@NotNull SchematicCatalogue.Entry schematic) {
+        final StringBuilder json = new StringBuilder(256).append(String.format(
+                "{\"name\":\"%s\",\"size\":%d,\"encodedName\":\"%s\",\"uploadedAt\":%d,\"format\":\"%s\"",
+                escapeJson(schematic.name()),
+                schematic.size(),
+                URLEncoder.encode(schematic.name(), StandardCharsets.UTF_8),
+                schematic.uploadedAt(),
+                schematic.format().getName()
+        ));
+        if (schematic.uploader() != null) {
+            json.append(",\"uploader\":\"").append(schematic.uploader()).append('"');
+        }
+        if (schematic.uploaderName() != null) {
+            json.append(",\"uploaderName\":\"").append(escapeJson(schematic.uploaderName())).append('"');
+        }
+        if (schematic.hash() != null) {
+            json.append(",\"hash\":\"").append(schematic.hash()).append('"');
+        }
+        final SchematicCatalogue.Dimensions dimensions = schematic.dimensions();
+        if (dimensions != null) {
+            json.append(",\"width\":").append(dimensions.width())
+                    .append(",\"height\":").append(dimensions.height())
+                    .append(",\"length\":").append(dimensions.length());
+        }
+        return json.append('}').toString();
+    }
+
+    private static String escapeJson(String str) {
         return str.replace("\\", "\\\\")
                   .replace("\"", "\\\"")
                   .replace("\n", "\\n")
@@ -169,14 +506,44 @@ public class SchematicListServlet extends HttpServlet {
                   .replace("\t", "\\t");
     }
 
-    private static class SchematicInfo {
-        final String name;
-        final long size;
+    /**
+     * An order the schematic list can be sorted in, with the {@code sort} parameter
+     */
+    enum SortOrder {
+        NAME(Comparator.comparing(SchematicCatalogue.Entry::name, String.CASE_INSENSITIVE_ORDER), false),
+        DATE(Comparator.comparingLong(SchematicCatalogue.Entry::uploadedAt), true),
+        SIZE(Comparator.comparingLong(SchematicCatalogue.Entry::size), true),
+        UPLOADER(Comparator.comparing(SchematicCatalogue.Entry::uploaderName,
+                Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)), false);
+
+        private final Comparator<SchematicCatalogue.Entry> comparator;
+        private final boolean descendingByDefault;
+
+        SortOrder(@NotNull Comparator<SchematicCatalogue.Entry> comparator, boolean descendingByDefault) {
+            this.comparator = comparator;
+            this.descendingByDefault = descendingByDefault;
+        }
 
-        SchematicInfo(String name, long size) {
-            this.name = name;
-            this.size = size;
+        @NotNull
+        Comparator<SchematicCatalogue.Entry> getComparator() {
+            return comparator;
+        }
+
+        // Newest and largest first, unless asked otherwise
+        boolean isDescendingByDefault() {
+            return descendingByDefault;
+        }
+
+        @NotNull
+        static SortOrder parse(@Nullable String sort) {
+            if (sort != null) {
+                for (SortOrder order : values()) {
+                    if (order.name().equalsIgnoreCase(sort)) {
+                        return order;
+                    }
+                }
+            }
+            return NAME;
         }
     }
 }
-
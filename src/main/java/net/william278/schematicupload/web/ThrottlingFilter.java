@@ -0,0 +1,264 @@
+/*
+ * This file is part of SchematicUpload, licensed under the Apache License 2.0.
+ *
+ *  Copyright (c) William278 <will27528@gmail.com>
+ *  Copyright (c) contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.william278.schematicupload.web;
+
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Throttles clients by IP address, cheaply turning away abusive traffic before any request body is read
+ * <p>
+ * As a connection listener, it closes connections from an address that already has too many open. As a filter,
+ * it applies per-address token buckets to requests and uploads, and checks the upload code sent in the
+ * {@value #CODE_HEADER} header (or {@value #CODE_PARAMETER} query parameter) before the multipart body is parsed.
+ * Rejected uploads are answered with {@code Connection: close}, so that the body is never consumed.
+ * <p>
+ * Clients behind a trusted reverse proxy are told apart by the {@value #FORWARDED_HEADER} header the proxy adds,
+ * and the proxy's own connections are not limited.
+ */
+public class ThrottlingFilter implements Filter, Connection.Listener {
+
+    public static final String CODE_HEADER = "X-Upload-Code";
+    public static final String CODE_PARAMETER = "code";
+    public static final String FORWARDED_HEADER = "X-Forwarded-For";
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final SchematicUpload plugin;
+    private final Settings.WebServerSettings.ThrottleSettings settings;
+    private final Set<String> trustedProxies;
+    private final ConcurrentHashMap<String, Integer> connections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> requestBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> uploadBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder rejectedUploads = new LongAdder();
+
+    public ThrottlingFilter(@NotNull SchematicUpload plugin, @NotNull Settings.WebServerSettings.ThrottleSettings settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+        this.trustedProxies = settings.getTrustedProxies().stream().map(String::trim).collect(Collectors.toSet());
+    }
+
+    @Override
+    public void onOpened(Connection connection) {
+        final String address = getAddress(connection.getEndPoint());
+        if (address == null || trustedProxies.contains(address)) {
+            return;
+        }
+        if (connections.merge(address, 1, Integer::sum) > settings.getMaxConnectionsPerIp()) {
+            rejectedConnections.increment();
+            connection.getEndPoint().close();
+        }
+    }
+
+    @Override
+    public void onClosed(Connection connection) {
+        final String address = getAddress(connection.getEndPoint());
+        if (address != null) {
+            connections.computeIfPresent(address, (a, open) -> open <= 1 ? null : open - 1);
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        final HttpServletRequest request = (HttpServletRequest) servletRequest;
+        final HttpServletResponse response = (HttpServletResponse) servletResponse;
+        final String address = getClientAddress(request);
+        sweep();
+
+        final boolean upload = request.getMethod().equals("POST") && request.getRequestURI().equals("/api");
+        if (!requestBuckets.computeIfAbsent(address, a -> new TokenBucket(
+                settings.getRequestsPerSecond(), settings.getRequestBurst())).tryConsume()) {
+            rejectedRequests.increment();
+            reject(response, 429, upload ? "message" : "error", "Too many requests; please slow down", upload);
+            return;
+        }
+        if (upload && !checkUpload(request, response, address)) {
+            rejectedUploads.increment();
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    // Check an upload can go ahead before its body is read, replying and returning false if not
+    private boolean checkUpload(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response,
+                                @NotNull String address) throws IOException {
+        if (!uploadBuckets.computeIfAbsent(address, a -> new TokenBucket(
+                settings.getUploadsPerMinute() / 60d, settings.getUploadBurst())).tryConsume()) {
+            reject(response, 429, "message", "Too many uploads; please wait before trying again", true);
+            return false;
+        }
+        final long maxSize = plugin.getSettings().getLimitSettings().getMaxFileSize();
+        if (request.getContentLengthLong() > maxSize + settings.getMaxFormOverhead()) {
+            reject(response, 413, "message", "Invalid schematic; too large. (Max size: " + (maxSize / 1024) + "KiB)", true);
+            return false;
+        }
+        // A code that was sent is always checked; uploads without one are only refused if codes are required up front
+        final String code = getUploadCode(request);
+        if (code != null ? !plugin.getUploadManager().isCodeValid(code) : settings.isRequireCodeHeader()) {
+            reject(response, 403, "message", "Invalid or expired code", true);
+            return false;
+        }
+        return true;
+    }
+
+    // Get the address of the client, looking past trusted proxies to the last address they forwarded for
+    @NotNull
+    private String getClientAddress(@NotNull HttpServletRequest request) {
+        final String remote = request.getRemoteAddr();
+        final String forwarded = request.getHeader(FORWARDED_HEADER);
+        if (forwarded == null || !trustedProxies.contains(remote)) {
+            return remote;
+        }
+        final String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            final String hop = hops[i].trim();
+            if (!hop.isEmpty() && !trustedProxies.contains(hop)) {
+                return hop;
+            }
+        }
+        return remote;
+    }
+
+    @Nullable
+    private String getUploadCode(@NotNull HttpServletRequest request) {
+        final String header = request.getHeader(CODE_HEADER);
+        if (header != null) {
+            return header.trim();
+        }
+
+        // Read the query string directly, as getParameter() may parse the request body
+        final String query = request.getQueryString();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            final int separator = pair.indexOf('=');
+            if (separator > 0 && pair.substring(0, separator).equals(CODE_PARAMETER)) {
+                return URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void reject(@NotNull HttpServletResponse response, int status, @NotNull String key,
+                        @NotNull String message, boolean close) throws IOException {
+        response.setStatus(status);
+        if (status == 429) {
+            response.setHeader("Retry-After", "1");
+        }
+        if (close) {
+            response.setHeader("Connection", "close");
+        }
+        response.setContentType("application/json");
+        response.getWriter().println("{\"" + key + "\":\"" + message + "\"}");
+    }
+
+    // Drop buckets that have refilled completely, as they behave the same as a new bucket, at most once a minute
+    private void sweep() {
+        final long now = System.nanoTime();
+        final long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        requestBuckets.values().removeIf(TokenBucket::isFull);
+        uploadBuckets.values().removeIf(TokenBucket::isFull);
+    }
+
+    @Nullable
+    private static String getAddress(@NotNull EndPoint endPoint) {
+        final SocketAddress address = endPoint.getRemoteSocketAddress();
+        if (address instanceof InetSocketAddress inet && inet.getAddress() != null) {
+            return inet.getAddress().getHostAddress();
+        }
+        return null;
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    public long getRejectedUploads() {
+        return rejectedUploads.sum();
+    }
+
+    // A token bucket, refilled continuously at a fixed rate up to its capacity
+    private static final class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(double tokensPerSecond, double capacity) {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1d, capacity);
+            this.tokens = this.capacity;
+        }
+
+        private synchronized boolean tryConsume() {
+            refill();
+            if (tokens < 1d) {
+                return false;
+            }
+            tokens -= 1d;
+            return true;
+        }
+
+        private synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+
+    }
+
+}
@@ -19,60 +19,185 @@
 
 package net.william278.schematicupload.web;
 
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.Filter;
 import jakarta.servlet.MultipartConfigElement;
+import lombok.Getter;
 import net.william278.schematicupload.SchematicUpload;
+import net.william278.schematicupload.config.Settings;
+import net.william278.schematicupload.metrics.WebMetrics;
+import net.william278.schematicupload.store.FileSchematicStore;
 import org.bukkit.Bukkit;
-import org.eclipse.jetty.server.Connector;
-import org.eclipse.jetty.server.Handler;
-import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.*;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Collections;
-import java.util.Objects;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.logging.Level;
 
-import static net.william278.schematicupload.command.DownloadCommand.DOWNLOAD_DIRECTORY;
-
 public class WebServer {
 
+    // Folder that older versions copied schematics into to serve download links
+    private static final String LEGACY_DOWNLOAD_DIRECTORY = "download";
+    // Hashes of the web files as last shipped, so that files customised since are not overwritten
+    private static final String SHIPPED_MANIFEST = "shipped.txt";
+
     private final SchematicUpload plugin;
+    @Getter
+    private final DownloadTokens downloadTokens = new DownloadTokens();
+    @Getter
+    private final WebMetrics metrics = new WebMetrics();
+    @Getter
+    private QueuedThreadPool threadPool;
+    @Getter
+    @Nullable
+    private ThrottlingFilter throttlingFilter;
+    @Getter
+    @Nullable
+    private LoadSheddingFilter loadSheddingFilter;
+    @Getter
+    private BandwidthShaper bandwidthShaper;
     private Server jettyServer;
 
-    private WebServer(@NotNull SchematicUpload plugin) {
+    WebServer(@NotNull SchematicUpload plugin) {
         this.plugin = plugin;
+    }
+
+    // Create and start the server on the calling thread, returning once it is accepting connections
+    void start() {
+        final Settings.WebServerSettings settings = plugin.getSettings().getWebServerSettings();
+        final int port = settings.getPort();
+
+        plugin.log(Level.INFO, "Starting the internal webserver on port " + port);
+        threadPool = createThreadPool(settings);
+        jettyServer = new Server(threadPool);
+        if (settings.getThrottleSettings().isEnabled()) {
+            throttlingFilter = new ThrottlingFilter(plugin, settings.getThrottleSettings());
+        }
+        bandwidthShaper = new BandwidthShaper(settings.getBandwidthSettings());
+        jettyServer.setConnectors(createConnectors(settings));
+        initialize();
+    }
+
+    // Get the port the server is listening for HTTP on, which is chosen by the system when configured as 0
+    int getLocalPort() {
+        return jettyServer == null ? -1 : ((ServerConnector) jettyServer.getConnectors()[0]).getLocalPort();
+    }
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            final int maxThreads = 32;
-            final int minThreads = 8;
-            final int idleTimeout = 120;
-            final int port = plugin.getSettings().getWebServerSettings().getPort();
-            final QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout);
-
-            plugin.log(Level.INFO, "Starting the internal webserver on port " + port);
-            jettyServer = new Server(threadPool);
-            try (ServerConnector connector = new ServerConnector(jettyServer)) {
-                connector.setPort(port);
-                jettyServer.setConnectors(new Connector[]{connector});
+    // Create the thread pool for handling requests, optionally dispatching them to virtual threads
+    @NotNull
+    private QueuedThreadPool createThreadPool(@NotNull Settings.WebServerSettings settings) {
+        final int maxThreads = Math.max(1, settings.getMaxThreads());
+        final int minThreads = Math.max(1, Math.min(settings.getMinThreads(), maxThreads));
+        final QueuedThreadPool threadPool = settings.getMaxQueuedJobs() > 0
+                ? new QueuedThreadPool(maxThreads, minThreads, settings.getThreadIdleTimeout(),
+                new BlockingArrayQueue<>(minThreads, minThreads, settings.getMaxQueuedJobs()))
+                : new QueuedThreadPool(maxThreads, minThreads, settings.getThreadIdleTimeout());
+        threadPool.setName("SchematicUpload-Web");
+        if (settings.isUseVirtualThreads()) {
+            if (VirtualThreads.areSupported()) {
+                threadPool.setUseVirtualThreads(true);
+            } else {
+                plugin.log(Level.WARNING, "Virtual threads are not supported by this JVM; using platform threads");
             }
-            initialize();
-        });
+        }
+        return threadPool;
     }
 
-    // Copy files from the classpath resources folder to the plugin data folder
+    // Create the HTTP connector, with optional h2c, and the HTTPS connector if enabled
+    @NotNull
+    private Connector[] createConnectors(@NotNull Settings.WebServerSettings settings) {
+        final HttpConfiguration httpConfig = new HttpConfiguration();
+        httpConfig.setOutputBufferSize(settings.getOutputBufferSize());
+
+        final List<Connector> connectors = new ArrayList<>();
+        final HttpConnectionFactory http = new HttpConnectionFactory(httpConfig);
+        connectors.add(createConnector(settings, settings.getPort(), settings.isHttp2Cleartext()
+                ? new ConnectionFactory[]{http, new HTTP2CServerConnectionFactory(httpConfig)}
+                : new ConnectionFactory[]{http}));
+
+        final Settings.WebServerSettings.TlsSettings tls = settings.getTlsSettings();
+        if (!tls.isEnabled()) {
+            return connectors.toArray(Connector[]::new);
+        }
+        final Path keystore = plugin.getConfigDirectory().resolve(tls.getKeystorePath());
+        if (!Files.exists(keystore)) {
+            plugin.log(Level.SEVERE, "Not serving HTTPS, as the keystore could not be found at " + keystore);
+            return connectors.toArray(Connector[]::new);
+        }
+
+        final SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath(keystore.toString());
+        sslContextFactory.setKeyStoreType(tls.getKeystoreType());
+        sslContextFactory.setKeyStorePassword(tls.getKeystorePassword());
+        if (!tls.getKeyManagerPassword().isEmpty()) {
+            sslContextFactory.setKeyManagerPassword(tls.getKeyManagerPassword());
+        }
+
+        final HttpConfiguration httpsConfig = new HttpConfiguration(httpConfig);
+        httpsConfig.addCustomizer(new SecureRequestCustomizer());
+        final HttpConnectionFactory https = new HttpConnectionFactory(httpsConfig);
+        plugin.log(Level.INFO, "Serving HTTPS on port " + tls.getPort());
+        if (!tls.isHttp2()) {
+            connectors.add(createConnector(settings, tls.getPort(), new ConnectionFactory[]{
+                    new SslConnectionFactory(sslContextFactory, https.getProtocol()), https
+            }));
+            return connectors.toArray(Connector[]::new);
+        }
+
+        // Negotiate HTTP/2 with ALPN, falling back to HTTP/1.1
+        final ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+        alpn.setDefaultProtocol(https.getProtocol());
+        sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        connectors.add(createConnector(settings, tls.getPort(), new ConnectionFactory[]{
+                new SslConnectionFactory(sslContextFactory, alpn.getProtocol()), alpn,
+                new HTTP2ServerConnectionFactory(httpsConfig), https
+        }));
+        return connectors.toArray(Connector[]::new);
+    }
+
+    @NotNull
+    private ServerConnector createConnector(@NotNull Settings.WebServerSettings settings, int port,
+                                            @NotNull ConnectionFactory[] factories) {
+        final ServerConnector connector = new ServerConnector(jettyServer, settings.getAcceptors(),
+                settings.getSelectors(), factories);
+        connector.setPort(port);
+        connector.setIdleTimeout(settings.getIdleTimeout());
+        connector.setAcceptQueueSize(settings.getAcceptQueueSize());
+        if (throttlingFilter != null) {
+            connector.addBean(throttlingFilter);
+        }
+        return connector;
+    }
+
+    // Copy files from the classpath resources folder to the plugin data folder. A file that is already there is only
+    // replaced if it is unchanged from the version last shipped; otherwise, the new version is written alongside it
     public void copyWebFiles(final String source, final Path target) throws URISyntaxException, IOException {
         final URI resource = Objects.requireNonNull(getClass().getResource("")).toURI();
+        final Path manifestFile = target.resolve(SHIPPED_MANIFEST);
+        final Map<String, String> shipped = readManifest(manifestFile);
         try (FileSystem fileSystem = FileSystems.newFileSystem(resource, Collections.<String, String>emptyMap())) {
             final Path jarPath = fileSystem.getPath(source);
             Files.walkFileTree(jarPath, new SimpleFileVisitor<>() {
@@ -86,40 +211,91 @@ public class WebServer {
 
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Files.copy(file, target.resolve(jarPath.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+                    final String name = jarPath.relativize(file).toString();
+                    final Path targetFile = target.resolve(name);
+                    final byte[] content = Files.readAllBytes(file);
+                    final String hash = hash(content);
+                    if (Files.exists(targetFile)) {
+                        final String current = hash(Files.readAllBytes(targetFile));
+                        if (!current.equals(hash) && !current.equals(shipped.get(name))) {
+                            Files.write(targetFile.resolveSibling(targetFile.getFileName() + ".new"), content);
+                            plugin.getLogger().log(Level.WARNING, "Kept customised web file " + name
+                                    + "; the new version has been saved alongside it as " + name + ".new");
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }
+                    Files.write(targetFile, content);
+                    shipped.put(name, hash);
                     return FileVisitResult.CONTINUE;
                 }
 
             });
         }
+        writeManifest(manifestFile, shipped);
+    }
+
+    // Read the hashes of the web files last shipped, by their path relative to the web folder
+    @NotNull
+    private static Map<String, String> readManifest(@NotNull Path file) throws IOException {
+        final Map<String, String> hashes = new TreeMap<>();
+        if (!Files.exists(file)) {
+            return hashes;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final int separator = line.indexOf(' ');
+            if (separator > 0) {
+                hashes.put(line.substring(separator + 1), line.substring(0, separator));
+            }
+        }
+        return hashes;
+    }
+
+    private static void writeManifest(@NotNull Path file, @NotNull Map<String, String> hashes) throws IOException {
+        final List<String> lines = new ArrayList<>(hashes.size());
+        hashes.forEach((name, hash) -> lines.add(hash + " " + name));
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String hash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Returns true if the web files were copied by this version of the plugin
+    private static boolean isCurrentVersion(@NotNull File versionFile, @NotNull String version) {
+        try {
+            return versionFile.exists()
+                   && new String(Files.readAllBytes(versionFile.toPath()), StandardCharsets.UTF_8).trim().equals(version);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     // Initialize the webserver
     private void initialize() {
         try {
-            // Copy web resources if needed
+            // Copy web resources if missing, or refresh those left unchanged if they were copied by another version
             final File targetDir = new File(plugin.getDataFolder(), "web");
-            if (!targetDir.exists()) {
+            final File versionFile = new File(targetDir, "version.txt");
+            final String version = plugin.getDescription().getVersion();
+            if (!targetDir.exists() || !isCurrentVersion(versionFile, version)) {
                 plugin.getLogger().log(Level.INFO, "Generating files for the webserver...");
-                if (!targetDir.mkdirs()) {
+                if (!targetDir.exists() && !targetDir.mkdirs()) {
                     plugin.getLogger().log(Level.SEVERE, "Failed to create web directory");
                     return;
                 }
                 copyWebFiles("/web", Paths.get(targetDir.getPath()));
 
                 // Create a file in the /web folder with the current version
-                final File versionFile = new File(targetDir, "version.txt");
-                if (!versionFile.exists()) {
-                    if (!versionFile.createNewFile()) {
-                        plugin.getLogger().log(Level.SEVERE, "Failed to create version file");
-                        return;
-                    }
-                }
-                Files.write(versionFile.toPath(), plugin.getDescription().getVersion().getBytes());
+                Files.write(versionFile.toPath(), version.getBytes(StandardCharsets.UTF_8));
             }
 
-            // Clear web/download folder
-            final File downloadDir = new File(targetDir, DOWNLOAD_DIRECTORY);
+            // Remove the web/download folder left behind by older versions
+            final File downloadDir = new File(targetDir, LEGACY_DOWNLOAD_DIRECTORY);
             if (downloadDir.exists()) {
                 Files.walkFileTree(downloadDir.toPath(), new SimpleFileVisitor<>() {
                     @Override
@@ -127,11 +303,17 @@ public class WebServer {
                         Files.delete(file);
                         return super.visitFile(file, attrs);
                     }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        Files.delete(dir);
+                        return super.postVisitDirectory(dir, e);
+                    }
                 });
             }
 
             // Create multipart upload handler directory
-            final Path uploadTempDirectory = plugin.getSchematicDirectory().resolve(".temp");
+            final Path uploadTempDirectory = plugin.getSchematicDirectory().resolve(FileSchematicStore.TEMP_DIRECTORY);
             if (uploadTempDirectory.toFile().mkdirs()) {
                 plugin.getLogger().log(Level.INFO, "Prepared temporary upload folder for the webserver...");
             }
@@ -162,13 +344,49 @@ public class WebServer {
             final PageRoutingServlet pageRouter = new PageRoutingServlet(plugin);
             final ServletHolder pageRouterHolder = new ServletHolder(pageRouter);
 
+            // Record metrics for every request, including those refused by the filters below
+            final boolean metricsEnabled = plugin.getSettings().getWebServerSettings().isMetricsEnabled();
+            if (metricsEnabled) {
+                contextHandler.addFilter(createFilterHolder(new MetricsFilter(metrics)), "/*",
+                        EnumSet.of(DispatcherType.REQUEST));
+            }
+
+            // Time every request, and give it an id
+            contextHandler.addFilter(createFilterHolder(new RequestTimingFilter(plugin,
+                    plugin.getSettings().getWebServerSettings())), "/*", EnumSet.of(DispatcherType.REQUEST));
+
+            // Turn away abusive clients first, as it is cheapest
+            if (throttlingFilter != null) {
+                contextHandler.addFilter(createFilterHolder(throttlingFilter), "/*",
+                        EnumSet.of(DispatcherType.REQUEST));
+            }
+
+            // Refuse requests quickly when overloaded, rather than letting them queue
+            final Settings.WebServerSettings.LoadSheddingSettings loadShedding = plugin.getSettings()
+                    .getWebServerSettings().getLoadSheddingSettings();
+            if (loadShedding.isEnabled()) {
+                loadSheddingFilter = new LoadSheddingFilter(loadShedding);
+                contextHandler.addFilter(createFilterHolder(loadSheddingFilter), "/*",
+                        EnumSet.of(DispatcherType.REQUEST));
+            }
+
             // Register servlets - specific routes first
             contextHandler.addServlet(servletHolder, "/api");
             contextHandler.addServlet(listServletHolder, "/api/list/*");
+            final int maxEventStreams = plugin.getSettings().getWebServerSettings().getMaxEventStreams();
+            if (maxEventStreams > 0) {
+                final ServletHolder eventsHolder = new ServletHolder(new CatalogueEventsServlet(plugin,
+                        maxEventStreams));
+                eventsHolder.setAsyncSupported(true);
+                contextHandler.addServlet(eventsHolder, "/api/list/events");
+            }
             contextHandler.addServlet(pageRouterHolder, "/list");
             contextHandler.addServlet(pageRouterHolder, "/list/");
             contextHandler.addServlet(pageRouterHolder, "/upload");
             contextHandler.addServlet(pageRouterHolder, "/upload/");
+            if (metricsEnabled) {
+                contextHandler.addServlet(new ServletHolder(new MetricsServlet(plugin)), "/metrics");
+            }
 
             // Add default servlet for static files - must be last to catch unmatched requests
             final ServletHolder defaultHolder = new ServletHolder("default", DefaultServlet.class);
@@ -183,12 +401,19 @@ public class WebServer {
             handlers.setHandlers(new Handler[]{contextHandler});
             jettyServer.setHandler(handlers);
             jettyServer.start();
-            jettyServer.join();
         } catch (Throwable e) {
             plugin.log(Level.SEVERE, "Failed to start the internal webserver.", e);
         }
     }
 
+    // Create a holder for a filter, supporting the async requests used to stream events
+    @NotNull
+    private static FilterHolder createFilterHolder(@NotNull Filter filter) {
+        final FilterHolder holder = new FilterHolder(filter);
+        holder.setAsyncSupported(true);
+        return holder;
+    }
+
     // Gracefully terminate the webserver
     public void end() {
         try {
@@ -203,7 +428,9 @@ public class WebServer {
     // Create a new WebServer and start it on the port
     @NotNull
     public static WebServer createAndStart(@NotNull SchematicUpload plugin) {
-        return new WebServer(plugin);
+        final WebServer webServer = new WebServer(plugin);
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, webServer::start);
+        return webServer;
     }
 
 }
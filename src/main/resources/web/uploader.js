@@ -39,7 +39,7 @@ function postForm() {
     let xhr = new XMLHttpRequest();
 
     xhr.onload = function () {
-        if (this.status === 404 || this.status === 500) {
+        if (this.status === 404 || this.status === 500 || !this.responseText) {
             showMessage('Server error', 'red');
             return;
         }
@@ -57,7 +57,13 @@ function postForm() {
         }
     }
 
+    // The server may refuse an upload and close the connection before the file has been sent
+    xhr.onerror = function () {
+        showMessage('Upload refused; check your code and try again', 'red');
+    }
+
     xhr.open(form.method, form.action);
+    xhr.setRequestHeader('X-Upload-Code', document.getElementById('input-code').value);
     xhr.send(data);
     showMessage("Uploading...", 'var(--main-white)')
 }